@@ -0,0 +1,153 @@
+/**
+ *
+ * Connect4BenchmarkGate
+ *
+ * Checks benchmark results against a baseline.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Regression gate for performance changes. Compares the JSON results of a
+ * JMH run, written with -rf json, against those of an earlier run: any
+ * benchmark worse than its baseline by more than the tolerance fails the
+ * gate with exit status 1. Benchmarks are matched by name and parameters;
+ * those missing from the baseline are skipped.
+ *
+ * Usage: java -cp benchmarks.jar core.Connect4BenchmarkGate results.json
+ * baseline.json [tolerance]
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4BenchmarkGate {
+
+    /**
+     * Default slowdown tolerated against the baseline.
+     */
+    private static final double DEFAULT_TOLERANCE = 0.10;
+
+    /**
+     * One result in a JMH JSON file, up to its score, and the parameters
+     * within it.
+     */
+    private static final Pattern RESULT = Pattern.compile("\"benchmark\"\\s*:\\s*"
+            + "\"([^\"]*)\"\\s*,\\s*\"mode\"\\s*:\\s*\"([^\"]*)\"(.*?)"
+            + "\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*\"?([-0-9.EeNa]+)",
+            Pattern.DOTALL);
+    private static final Pattern PARAMS = Pattern.compile(
+            "\"params\"\\s*:\\s*\\{([^}]*)\\}");
+
+    /**
+     * A benchmark's score and whether more is better, as in throughput mode.
+     */
+    private static class Score {
+
+        /**
+         * The score.
+         */
+        private final double value;
+
+        /**
+         * Whether a higher score is better.
+         */
+        private final boolean higherIsBetter;
+
+        /**
+         * Creates a score.
+         *
+         * @param value the score
+         * @param higherIsBetter whether a higher score is better
+         */
+        private Score(double value, boolean higherIsBetter) {
+            this.value = value;
+            this.higherIsBetter = higherIsBetter;
+        }
+    }
+
+    /**
+     * Runs the gate.
+     *
+     * @param args the results, the baseline and optionally the tolerance
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java core.Connect4BenchmarkGate "
+                    + "results.json baseline.json [tolerance]");
+            return;
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2])
+                : DEFAULT_TOLERANCE;
+        try {
+            if (!compare(read(args[0]), read(args[1]), tolerance)) {
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Reads the scores from a JMH JSON file.
+     *
+     * @param path the file
+     * @return the scores by benchmark name and parameters, in file order
+     * @throws IOException the file cannot be read
+     */
+    private static Map<String, Score> read(String path) throws IOException {
+        String text = new String(Files.readAllBytes(Paths.get(path)), "UTF-8");
+        Map<String, Score> scores = new LinkedHashMap<>();
+        Matcher result = RESULT.matcher(text);
+        while (result.find()) {
+            String key = result.group(1);
+            Matcher params = PARAMS.matcher(result.group(3));
+            if (params.find()) {
+                key += " {" + params.group(1).replaceAll("\\s", "") + "}";
+            }
+            scores.put(key, new Score(Double.parseDouble(result.group(4)),
+                    result.group(2).equals("thrpt")));
+        }
+        return scores;
+    }
+
+    /**
+     * Checks the results against the baseline, printing each comparison.
+     *
+     * @param results this run's scores
+     * @param baseline the earlier run's scores
+     * @param tolerance worsening allowed, e.g. 0.1 for 10%
+     * @return false if any benchmark regressed
+     */
+    private static boolean compare(Map<String, Score> results, Map<String, Score> baseline,
+            double tolerance) {
+        boolean passed = true;
+        for (Map.Entry<String, Score> entry : results.entrySet()) {
+            Score before = baseline.get(entry.getKey());
+            if (before == null) {
+                continue;
+            }
+            Score after = entry.getValue();
+            double change = after.value / before.value - 1;
+            boolean regressed = after.higherIsBetter ? -change > tolerance
+                    : change > tolerance;
+            System.out.printf(Locale.ROOT, "%s: %.3f -> %.3f (%+.1f%%)%s%n",
+                    entry.getKey(), before.value, after.value, change * 100,
+                    regressed ? " REGRESSION" : "");
+            passed &= !regressed;
+        }
+        return passed;
+    }
+}
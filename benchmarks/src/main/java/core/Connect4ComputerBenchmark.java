@@ -0,0 +1,98 @@
+/**
+ *
+ * Connect4ComputerBenchmark
+ *
+ * Benchmark of the computer player's search.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times Connect4ComputerPlayer.getMove over the position suite at several
+ * depths. The search runs on one thread with no time limit, and its table is
+ * cleared before each search, outside the timing, so every search does the
+ * full work.
+ *
+ * @author James Kendall Bruce
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class Connect4ComputerBenchmark {
+
+    /**
+     * Most plies the search looks ahead.
+     */
+    @Param({"4", "8", "12"})
+    public int depth;
+
+    /**
+     * The positions.
+     */
+    private Connect4State[] boards;
+
+    /**
+     * Table the player caches its search in, and the player.
+     */
+    private Connect4TranspositionTable table;
+    private Connect4ComputerPlayer player;
+
+    /**
+     * Position the next search runs on.
+     */
+    private int next;
+
+    /**
+     * Builds the positions and the player.
+     */
+    @Setup
+    public void setUp() {
+        Connect4Positions positions = new Connect4Positions();
+        boards = new Connect4State[Connect4Positions.POSITIONS];
+        for (int i = 0; i < boards.length; i++) {
+            boards[i] = positions.board(i);
+        }
+        table = new Connect4TranspositionTable(1);
+        player = new Connect4ComputerPlayer(depth, 0, table, 1);
+    }
+
+    /**
+     * Forgets the earlier searches.
+     */
+    @Setup(Level.Invocation)
+    public void clearTable() {
+        table.clear();
+    }
+
+    /**
+     * Searches the next position.
+     *
+     * @return the column picked
+     */
+    @Benchmark
+    public int getMove() {
+        return player.getMove(boards[next++ & (Connect4Positions.POSITIONS - 1)]);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ *
+ * Connect4EngineBenchmark
+ *
+ * Benchmarks of the checks and moves done for every token.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times Connect4.checkMove, playToken and checkWin over the position suite,
+ * one position after another. A token played is taken back before the next
+ * operation, so every operation sees the suite's positions.
+ *
+ * @author James Kendall Bruce
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Connect4EngineBenchmark {
+
+    /**
+     * The positions as games, and the column, one based, to play in each.
+     */
+    private Connect4[] games;
+    private int[] columns;
+
+    /**
+     * Token dropped by the move to play in each position.
+     */
+    private char[] icons;
+
+    /**
+     * Position the next operation runs on.
+     */
+    private int next;
+
+    /**
+     * Builds the games from the suite.
+     */
+    @Setup
+    public void setUp() {
+        Connect4Positions positions = new Connect4Positions();
+        games = new Connect4[Connect4Positions.POSITIONS];
+        columns = new int[Connect4Positions.POSITIONS];
+        icons = new char[Connect4Positions.POSITIONS];
+        for (int i = 0; i < games.length; i++) {
+            games[i] = positions.game(i);
+            columns[i] = positions.move(i) + 1;
+            icons[i] = games[i].copyState().getTurn();
+        }
+    }
+
+    /**
+     * Checks a move is legal, as done before every token.
+     *
+     * @return the row the token would land in
+     */
+    @Benchmark
+    public int checkMove() {
+        int i = next++ & (Connect4Positions.POSITIONS - 1);
+        return games[i].checkMove(columns[i]);
+    }
+
+    /**
+     * Drops a token and takes it back.
+     *
+     * @return the row the next token would land in
+     */
+    @Benchmark
+    public int playToken() {
+        int i = next++ & (Connect4Positions.POSITIONS - 1);
+        Connect4 game = games[i];
+        game.playToken(columns[i]);
+        game.undoToken(columns[i]);
+        return game.checkMove(columns[i]);
+    }
+
+    /**
+     * Drops a token, checks whether it ended the game, and takes it back.
+     *
+     * @return the outcome after the token
+     */
+    @Benchmark
+    public int checkWin() {
+        int i = next++ & (Connect4Positions.POSITIONS - 1);
+        Connect4 game = games[i];
+        game.playToken(columns[i]);
+        int outcome = game.checkWin(icons[i]);
+        game.undoToken(columns[i]);
+        return outcome;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ *
+ * Connect4Positions
+ *
+ * Seeded suite of positions shared by the benchmarks.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.util.Random;
+
+/**
+ * Fixed suite of positions the benchmarks run over, so that runs on
+ * different builds and machines do the same work. The suite is generated from
+ * a fixed seed: random legal positions of up to 20 moves in which nobody has
+ * won yet, each with a random legal move to try.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4Positions extends Connect4Constants {
+
+    /**
+     * Seed and size of the suite. The size is a power of two so the
+     * benchmarks can step through it with a mask.
+     */
+    public static final long SEED = 20240601L;
+    public static final int POSITIONS = 64;
+
+    /**
+     * The positions, as moves from the empty board.
+     */
+    private final int[][] games = new int[POSITIONS][];
+
+    /**
+     * Zero based column playable in each position.
+     */
+    private final int[] moves = new int[POSITIONS];
+
+    /**
+     * Generates the suite.
+     */
+    public Connect4Positions() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < POSITIONS; i++) {
+            Connect4State board = Connect4State.create(ROWS, COLUMNS, 4);
+            int plies = random.nextInt(21);
+            int[] played = new int[plies];
+            while (board.getMoves() < plies) {
+                int column = random.nextInt(COLUMNS);
+                if (board.canPlay(column) && !board.isWinningMove(column)) {
+                    played[board.getMoves()] = column;
+                    board.play(column);
+                }
+            }
+            games[i] = played;
+            int column;
+            do {
+                column = random.nextInt(COLUMNS);
+            } while (!board.canPlay(column));
+            moves[i] = column;
+        }
+    }
+
+    /**
+     * Builds a position as a board.
+     *
+     * @param i number of the position
+     * @return the board
+     */
+    public Connect4State board(int i) {
+        Connect4State board = Connect4State.create(ROWS, COLUMNS, 4);
+        for (int column : games[i]) {
+            board.play(column);
+        }
+        return board;
+    }
+
+    /**
+     * Builds a position as a game with no players connected, its tokens
+     * dropped the way a game drops them.
+     *
+     * @param i number of the position
+     * @return the game
+     */
+    public Connect4 game(int i) {
+        Connect4 game = new Connect4(null, null, 2, ROWS, COLUMNS, 4);
+        for (int column : games[i]) {
+            game.playToken(column + 1);
+        }
+        return game;
+    }
+
+    /**
+     * Gets the move to try in a position.
+     *
+     * @param i number of the position
+     * @return zero based column
+     */
+    public int move(int i) {
+        return moves[i];
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ *
+ * Connect4ProtocolBenchmark
+ *
+ * Benchmarks of the messages sent to the players.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the encoding of the boards and status messages launchGame sends
+ * after every token: as serialized objects written by a Connect4StreamPeer
+ * for old clients, and as Connect4Protocol frames for binary ones. The
+ * serialized objects are written to a stream that throws them away.
+ *
+ * @author James Kendall Bruce
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Connect4ProtocolBenchmark extends Connect4Constants {
+
+    /**
+     * The positions, and the zero based column played in each.
+     */
+    private Connect4State[] boards;
+    private int[] columns;
+
+    /**
+     * Peer writing serialized objects, as to an old client.
+     */
+    private Connect4StreamPeer legacy;
+
+    /**
+     * Message the next operation sends.
+     */
+    private int next;
+
+    /**
+     * Output stream that throws its bytes away.
+     */
+    private static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * Builds the positions and the peer.
+     *
+     * @throws IOException the stream header cannot be written
+     */
+    @Setup
+    public void setUp() throws IOException {
+        Connect4Positions positions = new Connect4Positions();
+        boards = new Connect4State[Connect4Positions.POSITIONS];
+        columns = new int[Connect4Positions.POSITIONS];
+        for (int i = 0; i < boards.length; i++) {
+            boards[i] = positions.board(i);
+            columns[i] = positions.move(i);
+        }
+        legacy = new Connect4StreamPeer(new ObjectOutputStream(
+                new NullOutputStream()), null);
+    }
+
+    /**
+     * Sends a board after a move to an old client.
+     *
+     * @throws IOException the board cannot be written
+     */
+    @Benchmark
+    public void legacySendMove() throws IOException {
+        int i = next++ & (Connect4Positions.POSITIONS - 1);
+        legacy.sendMove(boards[i], columns[i], 0, P1);
+    }
+
+    /**
+     * Sends a status to an old client.
+     *
+     * @throws IOException the status cannot be written
+     */
+    @Benchmark
+    public void legacySendStatus() throws IOException {
+        legacy.sendStatus((next++ & 1) == 0 ? P1_TURN : P2_TURN);
+    }
+
+    /**
+     * Sends a whole board to an old client.
+     *
+     * @throws IOException the board cannot be written
+     */
+    @Benchmark
+    public void legacySendSnapshot() throws IOException {
+        legacy.sendSnapshot(boards[next++ & (Connect4Positions.POSITIONS - 1)]);
+    }
+
+    /**
+     * Encodes a move frame.
+     *
+     * @return the frame
+     */
+    @Benchmark
+    public byte[] binarySendMove() {
+        int i = next++ & (Connect4Positions.POSITIONS - 1);
+        return Connect4Protocol.move(columns[i], 0, P1, boards[i].getMoves());
+    }
+
+    /**
+     * Encodes a status frame.
+     *
+     * @return the frame
+     */
+    @Benchmark
+    public byte[] binarySendStatus() {
+        return Connect4Protocol.status((next++ & 1) == 0 ? P1_TURN : P2_TURN);
+    }
+
+    /**
+     * Encodes a snapshot frame.
+     *
+     * @return the frame
+     */
+    @Benchmark
+    public byte[] binarySendSnapshot() {
+        return Connect4Protocol.snapshot(boards[next++ & (Connect4Positions.POSITIONS - 1)]);
+    }
+}
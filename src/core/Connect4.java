@@ -15,9 +15,16 @@
  */
 package core;
 
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Radically reworked version of my previous Connect4 class. Now extends a
@@ -29,14 +36,53 @@ import java.net.Socket;
 public class Connect4 extends Connect4Constants {
 
     /**
-     * 2D array to match the dimensions of the board.
+     * Id of the next game created.
      */
-    private char[][] gameBoard;
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
 
     /**
-     * Array holding the current height of each column in the gameBoard array.
+     * Games started and still going, moves played and rejected, over every
+     * game of the server.
      */
-    private int[] currentHeight;
+    private static final LongAdder STARTED = Connect4Metrics.counter("games_started");
+    private static final LongAdder ACTIVE = Connect4Metrics.counter("games_active");
+    private static final LongAdder MOVES = Connect4Metrics.counter("moves_played");
+    private static final LongAdder INVALID = Connect4Metrics.counter("moves_invalid");
+    private static final LongAdder FORFEITS = Connect4Metrics.counter("turn_forfeits");
+
+    /**
+     * How long a player has for each move before they forfeit, from the
+     * connect4.turnSeconds system property; 0 turns the clock off.
+     */
+    public static final long TURN_MILLIS =
+            TimeUnit.SECONDS.toMillis(Long.getLong("connect4.turnSeconds", 60));
+
+    /**
+     * Time from a player being told it is their turn to their move arriving,
+     * for players and for the computer, in microseconds.
+     */
+    private static final Connect4Histogram TURN_WAIT =
+            Connect4Metrics.histogram("turn_wait_us");
+    private static final Connect4Histogram COMPUTER_WAIT =
+            Connect4Metrics.histogram("computer_turn_wait_us");
+
+    /**
+     * Spacing and offset of the ids this process hands out, see
+     * partitionIds.
+     */
+    private static volatile int idStride = 1;
+    private static volatile int idOffset;
+
+    /**
+     * Id of this game, unique within the server.
+     */
+    private int id = NEXT_ID.getAndIncrement() * idStride + idOffset;
+
+    /**
+     * Game state holding the tokens and column heights of the game. A single
+     * word bitboard for boards that fit in one, a multi-word board otherwise.
+     */
+    private Connect4State board;
 
     /**
      * Contains the total number of players (either 1 or 2).
@@ -44,12 +90,90 @@ public class Connect4 extends Connect4Constants {
     private int totalPlayers;
 
     /**
-     * Input and output variables for each player.
+     * Blocking connections of each player. Only used by the launchGame loop.
+     */
+    private Connect4StreamPeer streamP1;
+    private Connect4StreamPeer streamP2;
+
+    /**
+     * Where the messages for each player go. peerP2 is null in a game against
+     * the computer.
+     */
+    private Connect4Peer peerP1;
+    private Connect4Peer peerP2;
+
+    /**
+     * Token of the player whose turn it is.
+     */
+    private char icon = P1;
+
+    /**
+     * Winning state of the game, see checkWin.
+     */
+    private int outcome = ONGOING;
+
+    /**
+     * Set once the game has ended, by a result or a player leaving.
+     */
+    private boolean over;
+
+    /**
+     * Set once the game has been handed over to another process, after
+     * which it ignores its players.
+     */
+    private boolean suspended;
+
+    /**
+     * Where the game's moves are recorded, or null if they are not.
+     */
+    private Connect4MoveJournal journal;
+
+    /**
+     * The game's spectators, created when the first one arrives.
+     */
+    private Connect4Broadcast spectators;
+
+    /**
+     * When the player to move was told it is their turn, from System.nanoTime.
+     */
+    private long turnSent;
+
+    /**
+     * Runs the turn clock, or null if the game has none.
+     */
+    private Connect4TimerWheel clock;
+
+    /**
+     * Time allowed for each move.
+     */
+    private long turnMillis;
+
+    /**
+     * Runs the forfeit of a player whose clock ran out, or null if the game
+     * is run by launchGame.
+     */
+    private Executor forfeitExecutor;
+
+    /**
+     * Runs after a player has forfeited on time, or null.
+     */
+    private Runnable forfeited;
+
+    /**
+     * The running turn clock of the player to move.
+     */
+    private Connect4TimerWheel.Timeout turnClock;
+
+    /**
+     * Moves on the board when the running clock was started, or -1 while no
+     * clock runs. Read by the wheel without the game's lock.
+     */
+    private volatile int clockMoves = -1;
+
+    /**
+     * Player whose clock ran out in a game run by launchGame, or 0.
      */
-    private ObjectInputStream inputP1;
-    private ObjectOutputStream outputP1;
-    private ObjectInputStream inputP2;
-    private ObjectOutputStream outputP2;
+    private volatile char timedOut;
 
     /**
      * Basic constructor method that creates a gameboard and establishes
@@ -65,31 +189,346 @@ public class Connect4 extends Connect4Constants {
      */
     public Connect4(Socket s1, Socket s2, ObjectOutputStream out1, ObjectOutputStream out2,
             ObjectInputStream in1, ObjectInputStream in2, int num) {
-        inputP1 = in1;
-        inputP2 = in2;
-        outputP1 = out1;
-        outputP2 = out2;
+        this(s1, s2, out1, out2, in1, in2, num, ROWS, COLUMNS, 4);
+    }
+
+    /**
+     * Creates a game on a variant board, e.g. 7x8 or connect five.
+     *
+     * @param s1 Socket instance for P1 thread
+     * @param s2 Socket instance for P2 thread
+     * @param out1 output for P1
+     * @param out2 output for P2
+     * @param in1 input from P1
+     * @param in2 input from P2
+     * @param num number of playes in this game
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param connect tokens in a row needed to win
+     * @throws IllegalArgumentException the geometry is not playable
+     */
+    public Connect4(Socket s1, Socket s2, ObjectOutputStream out1, ObjectOutputStream out2,
+            ObjectInputStream in1, ObjectInputStream in2, int num, int rows,
+            int columns, int connect) {
+        this(new Connect4StreamPeer(out1, in1),
+                out2 == null ? null : new Connect4StreamPeer(out2, in2), num,
+                rows, columns, connect);
+    }
+
+    /**
+     * Creates a game on the standard board for players on blocking
+     * connections, to be run with launchGame.
+     *
+     * @param p1 P1's connection
+     * @param p2 P2's connection, or null against the computer
+     * @param num number of playes in this game
+     */
+    public Connect4(Connect4StreamPeer p1, Connect4StreamPeer p2, int num) {
+        this(p1, p2, num, ROWS, COLUMNS, 4);
+    }
+
+    /**
+     * Creates a game that is driven by events instead of blocking reads: the
+     * caller hands each object received from a player to receive.
+     *
+     * @param p1 where P1's messages go
+     * @param p2 where P2's messages go, or null against the computer
+     * @param num number of playes in this game
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param connect tokens in a row needed to win
+     * @throws IllegalArgumentException the geometry is not playable
+     */
+    public Connect4(Connect4Peer p1, Connect4Peer p2, int num, int rows,
+            int columns, int connect) {
+        peerP1 = p1;
+        peerP2 = p2;
+        if (p1 instanceof Connect4StreamPeer) {
+            streamP1 = (Connect4StreamPeer) p1;
+        }
+        if (p2 instanceof Connect4StreamPeer) {
+            streamP2 = (Connect4StreamPeer) p2;
+        }
         totalPlayers = num;
-        gameBoard = new char[ROWS][COLUMNS];
-        for (int r = 0; r < ROWS; r++) {
-            for (int c = 0; c < COLUMNS; c++) {
-                gameBoard[r][c] = ' ';
+        board = Connect4State.create(rows, columns, connect);
+    }
+
+    /**
+     * Rebuilds a game read back from a Connect4MoveJournal, keeping its id.
+     * Its players are away until they reconnect; what the game sends them in
+     * the meantime is dropped.
+     *
+     * @param saved the game as journaled
+     * @param journal the journal to keep recording the game in
+     * @return the game, with every journaled move played
+     * @throws IllegalArgumentException the geometry is not playable
+     */
+    public static Connect4 restore(Connect4MoveJournal.Game saved,
+            Connect4MoveJournal journal) {
+        Connect4 game = new Connect4(AWAY, saved.getPlayers() == 1 ? null : AWAY,
+                saved.getPlayers(), saved.getRows(), saved.getColumns(),
+                saved.getConnect());
+        game.id = saved.getId();
+        reserveIds(game.id);
+        game.journal = journal;
+        for (byte column : saved.getMoves()) {
+            if (game.over || !game.board.canPlay(column)) {
+                break;
+            }
+            game.playToken(column + 1);
+            game.outcome = game.checkWin(game.icon);
+            if (game.outcome != ONGOING) {
+                game.over = true;
+                journal.end(game.id, game.outcome);
+            } else {
+                game.icon = game.icon == P1 ? P2 : P1;
+            }
+        }
+        if (!game.over) {
+            ACTIVE.increment();
+            game.turnSent = System.nanoTime();
+        }
+        return game;
+    }
+
+    /**
+     * Makes sure games created from now on get ids above those of an earlier
+     * run, so they stay unique in the journal and the archive.
+     *
+     * @param lastId the highest id already used
+     */
+    public static void reserveIds(int lastId) {
+        NEXT_ID.accumulateAndGet(lastId / idStride + 1, Math::max);
+    }
+
+    /**
+     * Gives this process its own share of the game ids, so that the games of
+     * several server processes never share one: from now on ids are offset
+     * plus a multiple of stride. Must be called before any game is created
+     * or restored.
+     *
+     * @param offset this process's offset, below stride
+     * @param stride number of processes the ids are shared between
+     */
+    public static void partitionIds(int offset, int stride) {
+        idStride = stride;
+        idOffset = offset;
+    }
+
+    /**
+     * Stands in for a player of a restored game until they reconnect.
+     */
+    private static final Connect4Peer AWAY = new Connect4Peer() {
+
+        @Override
+        public void sendJoin(char token, int port, int rows, int columns) {
+        }
+
+        @Override
+        public boolean needsPortGUI() {
+            return false;
+        }
+
+        @Override
+        public boolean canResume() {
+            return true;
+        }
+
+        @Override
+        public void sendSession(char token, int gameId, long key) {
+        }
+
+        @Override
+        public void sendStatus(String status) {
+        }
+
+        @Override
+        public void sendMove(Connect4State board, int column, int row, char token) {
+        }
+
+        @Override
+        public void sendSnapshot(Connect4State board) {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Starts recording the game in a journal, beginning with its board and
+     * players. Must be called before the game starts.
+     *
+     * @param journal the journal
+     */
+    public synchronized void setJournal(Connect4MoveJournal journal) {
+        this.journal = journal;
+        journal.start(id, totalPlayers, board.getRows(), board.getColumns(),
+                board.getConnect());
+    }
+
+    /**
+     * Gives the players a clock: a player who has not moved within the given
+     * time of being told it is their turn forfeits, and their opponent is
+     * told they have left the game. Invalid moves do not stop the clock, and
+     * the computer has none. A game already under way starts the clock of
+     * the player to move straight away.
+     *
+     * The wheel never takes the game's lock or writes to a player, since
+     * either may block. In a game run by launchGame it only closes the
+     * connection of the player who ran out, which fails the read the game
+     * thread is waiting in, and the game thread then ends the game. An
+     * event driven game is ended on the executor instead.
+     *
+     * @param wheel runs the clock
+     * @param millis time allowed for each move
+     * @param executor ends the game of a player who ran out, or null if the
+     * game is run by launchGame
+     * @param forfeited runs on the executor after a player has forfeited;
+     * may be null
+     */
+    public synchronized void setTurnClock(Connect4TimerWheel wheel, long millis,
+            Executor executor, Runnable forfeited) {
+        clock = wheel;
+        turnMillis = millis;
+        forfeitExecutor = executor;
+        this.forfeited = forfeited;
+        startClock();
+    }
+
+    /**
+     * Starts the clock of the player to move, stopping the last one.
+     */
+    private void startClock() {
+        stopClock();
+        if (clock == null || over || (totalPlayers == 1 && icon == P2)) {
+            return;
+        }
+        char player = icon;
+        int moves = board.getMoves();
+        clockMoves = moves;
+        turnClock = clock.schedule(() -> expire(player, moves), turnMillis);
+    }
+
+    /**
+     * Stops the running clock, if any.
+     */
+    private void stopClock() {
+        clockMoves = -1;
+        if (turnClock != null) {
+            turnClock.cancel();
+            turnClock = null;
+        }
+    }
+
+    /**
+     * Handles a clock running out, on the wheel thread. Does nothing if the
+     * player has moved since the clock was started.
+     *
+     * @param player the player whose clock ran out
+     * @param moves moves on the board when it was started
+     */
+    private void expire(char player, int moves) {
+        if (clockMoves != moves) {
+            return;
+        }
+        if (forfeitExecutor != null) {
+            forfeitExecutor.execute(() -> timeUp(player, moves));
+            return;
+        }
+        timedOut = player;
+        if (player == P1) {
+            peerP1.close();
+        } else {
+            peerP2.close();
+        }
+    }
+
+    /**
+     * Ends an event driven game if the player is still on the turn their
+     * clock was started for.
+     *
+     * @param player the player whose clock ran out
+     * @param moves moves on the board when it was started
+     */
+    private void timeUp(char player, int moves) {
+        synchronized (this) {
+            if (over || suspended || icon != player || board.getMoves() != moves) {
+                return;
             }
+            FORFEITS.increment();
+            try {
+                quit(player);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (forfeited != null) {
+            forfeited.run();
+        }
+    }
+
+    /**
+     * Ends a game run by launchGame whose read from a player failed, because
+     * the player disconnected, sent something unreadable or had their
+     * connection closed when their clock ran out. The player forfeits like
+     * one who quit, so the game is recorded as ended and the other player
+     * and the spectators are told. Does nothing to a game already over or
+     * handed over to another process.
+     *
+     * @param player the player whose read failed
+     * @param failure why it failed
+     * @throws IOException the other player cannot be reached
+     */
+    private synchronized void leave(char player, IOException failure)
+            throws IOException {
+        if (over || suspended) {
+            return;
+        }
+        if (timedOut == player) {
+            FORFEITS.increment();
+        } else if (!(failure instanceof EOFException
+                || failure instanceof SocketException)) {
+            failure.printStackTrace();
+        }
+        quit(player);
+    }
+
+    /**
+     * Ends a game run by launchGame that failed for any other reason, e.g. a
+     * write to a player, so it is still recorded as ended.
+     */
+    private synchronized void abandon() {
+        if (!over && !suspended) {
+            finish();
         }
-        currentHeight = new int[COLUMNS];
     }
 
     /**
      * Replacement method for previous playToken variants. Streamlined to just
      * the column placement. Other classes and methods will handle the input
-     * retrieval (or calculation in the case of a computer player).
+     * retrieval (or calculation in the case of a computer player). The board
+     * tracks whose token is being dropped.
      *
      * @param column Which column did the player select
-     * @param icon Which token is being dropped
      */
-    private void playToken(int column, char icon) {
-        currentHeight[column - 1] += 1;
-        gameBoard[currentHeight[column - 1] - 1][column - 1] = icon;
+    void playToken(int column) {
+        board.play(column - 1);
+    }
+
+    /**
+     * Takes back the last token, dropped in the given column by playToken.
+     * Lets the benchmarks replay a move on the same position.
+     *
+     * @param column Which column the token was dropped in
+     */
+    void undoToken(int column) {
+        board.undo(column - 1);
     }
 
     /**
@@ -99,329 +538,388 @@ public class Connect4 extends Connect4Constants {
      * @return The row that the token will be placed in (or 0 if it is full)
      */
     public int checkMove(int column) {
-        column -= 1;
-        if (column < 0 || column >= COLUMNS) {
-            return 0;
-        }
-        if (currentHeight[column] >= ROWS) {
+        if (!board.canPlay(column - 1)) {
             return 0;
         }
-        return currentHeight[column] + 1;
+        return board.getHeight(column - 1) + 1;
     }
 
     /**
      * Method called after every token drop to check if the last to play has
-     * triggered a winning state for the current player. Checks how long the
-     * streak (int total) goes in each direction and declares a winner if
-     * appropriate. If the board is entirely filled, a Tie Game will be declared
-     * instead.
+     * triggered a winning state for the current player. The board only tests
+     * lines through the tokens it holds, in all four directions. If the board is
+     * entirely filled, a Tie Game will be declared instead.
      *
-     * @param row Y coordinate of the dropped Token
-     * @param column X coordinate of the dropped Token
-     * @param turn
+     * @param icon Which token was dropped last
      * @return Winning State 0-3: 0 if still ongoing, 1 if P1, 2 if P2 and 3 if
      * a tie game.
      */
-    private int checkWin(int row, int column, char icon) {
-        row -= 1;
-        column -= 1;
-        int c = column - 1;
-        int total = 1;
-        while (c >= 0) {
-            if (gameBoard[row][c] == icon) {
-                total += 1;
-                c -= 1;
-            } else {
-                break;
-            }
-        }
-        c = column + 1;
-        while (c < COLUMNS) {
-            if (gameBoard[row][c] == icon) {
-                total += 1;
-                c += 1;
-            } else {
-                break;
-            }
-        }
-        if (total >= 4) {
+    int checkWin(char icon) {
+        if (board.isWin()) {
             if (icon == P1) {
                 return P1_WINNER;
             } else {
                 return P2_WINNER;
             }
         }
-        int r = row + 1;
-        c = column - 1;
-        total = 1;
-        while (c >= 0 && r < ROWS) {
-            if (gameBoard[r][c] == icon) {
-                total += 1;
-                c -= 1;
-                r += 1;
-            } else {
-                break;
-            }
+        if (board.isFull()) {
+            return TIE_GAME;
         }
-        c = column + 1;
-        r = row - 1;
-        while (c < COLUMNS && r >= 0) {
-            if (gameBoard[r][c] == icon) {
-                total += 1;
-                c += 1;
-                r -= 1;
-            } else {
-                break;
+        return ONGOING;
+    }
+
+    /**
+     * Method to launch and run the game. Reads each player's input in turn,
+     * blocking until it arrives, and waits for the computer's moves from the
+     * shared Connect4AIPool. A player whose read fails, including one whose
+     * turn clock ran out and had their connection closed under the read,
+     * forfeits.
+     */
+    public void launchGame() {
+        Connect4AIPool computer = Connect4AIPool.getDefault();
+        try {
+            start();
+            while (!isOver()) {
+                /**
+                 * Requests the column choice from the current player or
+                 * calculates it if is the computer's turn.
+                 */
+                if (isComputerTurn()) {
+                    receive(P2, computer.submit(copyState(),
+                            Connect4AIPool.PRIORITY_INTERACTIVE,
+                            Connect4AIPool.DEFAULT_DEADLINE_MILLIS)
+                            .exceptionally(failure -> {
+                                failure.printStackTrace();
+                                return Connect4ComputerPlayer.getQuickMove(copyState());
+                            }).join());
+                } else {
+                    char player = icon;
+                    Object obj;
+                    try {
+                        obj = (player == P1 ? streamP1 : streamP2).receive();
+                    } catch (IOException e) {
+                        leave(player, e);
+                        break;
+                    }
+                    receive(player, obj);
+                }
             }
-        }
-        if (total >= 4) {
-            if (icon == P1) {
-                return P1_WINNER;
-            } else {
-                return P2_WINNER;
+        } catch (Exception e) {
+            if (!isOver()) {
+                e.printStackTrace();
             }
+            abandon();
         }
-        r = row - 1;
-        total = 1;
-        while (r >= 0) {
-            if (gameBoard[r][column] == icon) {
-                total += 1;
-                r -= 1;
-            } else {
-                break;
-            }
+        closeAll();
+    }
+
+    /**
+     * Starts the game by sending both players a snapshot of the board, then
+     * telling them that it is P1's turn.
+     *
+     * @throws IOException a player cannot be reached
+     */
+    public synchronized void start() throws IOException {
+        peerP1.sendSnapshot(board);
+        if (peerP2 != null) {
+            peerP2.sendSnapshot(board);
         }
-        r = row + 1;
-        while (r < ROWS) {
-            if (gameBoard[r][column] == icon) {
-                total += 1;
-                r += 1;
-            } else {
-                break;
-            }
+        STARTED.increment();
+        ACTIVE.increment();
+        sendStatus(P1_TURN);
+        turnSent = System.nanoTime();
+        startClock();
+    }
+
+    /**
+     * Handles one object received from a player. Connect4Protocol.SYNC asks
+     * for a snapshot of the board. A String means the player has quit, which
+     * ends the game whoever's turn it is. An Integer is the
+     * column the player picked; it is ignored unless it is that player's turn
+     * and answered with the invalid move status if the column is full or does
+     * not exist. Otherwise the token is dropped, the board goes out to both
+     * players, then either the result or the next turn.
+     *
+     * @param player P1 or P2
+     * @param obj the object the player sent
+     * @throws IOException a player cannot be reached
+     */
+    public synchronized void receive(char player, Object obj) throws IOException {
+        if (over || suspended) {
+            return;
         }
-        if (total >= 4) {
-            if (icon == P1) {
-                return P1_WINNER;
-            } else {
-                return P2_WINNER;
+        if (obj == Connect4Protocol.SYNC) {
+            if (player == P1) {
+                peerP1.sendSnapshot(board);
+            } else if (peerP2 != null) {
+                peerP2.sendSnapshot(board);
             }
+            return;
         }
-        r = row - 1;
-        c = column - 1;
-        total = 1;
-        while (c >= 0 && r >= 0) {
-            if (gameBoard[r][c] == icon) {
-                total += 1;
-                c -= 1;
-                r -= 1;
-            } else {
-                break;
-            }
+        if (obj instanceof String) {
+            quit(player);
+            return;
         }
-        c = column + 1;
-        r = row + 1;
-        while (c < COLUMNS && r < ROWS) {
-            if (gameBoard[r][c] == icon) {
-                total += 1;
-                c += 1;
-                r += 1;
-            } else {
-                break;
-            }
+        if (player != icon) {
+            return;
+        }
+
+        /**
+         * Confirms that the column selected still has room.
+         */
+        int move = 0;
+        if (obj instanceof Integer) {
+            move = (Integer) obj;
         }
-        if (total >= 4) {
+        if (checkMove(move) == 0) {
+            INVALID.increment();
             if (icon == P1) {
-                return P1_WINNER;
+                sendStatus(P1_INVALID);
             } else {
-                return P2_WINNER;
+                sendStatus(P2_INVALID);
             }
+            return;
+        }
+
+        /**
+         * Drops the token into the chosen column.
+         */
+        int row = board.getHeight(move - 1);
+        playToken(move);
+        MOVES.increment();
+        if (totalPlayers == 1 && icon == P2) {
+            COMPUTER_WAIT.record(Connect4Metrics.micros(turnSent));
+        } else {
+            TURN_WAIT.record(Connect4Metrics.micros(turnSent));
+        }
+        if (journal != null) {
+            journal.move(id, board.getMoves(), move - 1);
+        }
+        peerP1.sendMove(board, move - 1, row, icon);
+        if (peerP2 != null) {
+            peerP2.sendMove(board, move - 1, row, icon);
+        }
+        if (spectators != null) {
+            spectators.move(board, move - 1, row, icon);
         }
 
-        for (c = 0; c < COLUMNS; c++) {
-            if (currentHeight[c] < ROWS) {
-                return ONGOING;
+        /**
+         * Updates the outcome based on the result of the checkWin method.
+         * Most liekly scenario is that the game is still onging.
+         */
+        outcome = checkWin(icon);
+        if (outcome == P1_WINNER) {
+            sendStatus(P1_WINS);
+        } else if (outcome == P2_WINNER) {
+            sendStatus(P2_WINS);
+        } else if (outcome == TIE_GAME) {
+            sendStatus(TIE);
+        } else if (icon == P1) {
+            icon = P2;
+            sendStatus(P2_TURN);
+        } else {
+            icon = P1;
+            sendStatus(P1_TURN);
+        }
+        turnSent = System.nanoTime();
+        if (outcome != ONGOING) {
+            finish();
+            closeAll();
+        } else {
+            startClock();
+        }
+    }
+
+    /**
+     * Marks the game as over and records its end.
+     */
+    private void finish() {
+        over = true;
+        stopClock();
+        ACTIVE.decrement();
+        if (journal != null) {
+            journal.end(id, outcome);
+        }
+    }
+
+    /**
+     * Ends the game because a player has left, letting the other player know.
+     *
+     * @param player the player who left
+     * @throws IOException the other player cannot be reached
+     */
+    private void quit(char player) throws IOException {
+        finish();
+        try {
+            if (spectators != null) {
+                spectators.status(player == P1 ? P1_QUIT : P2_QUIT);
+            }
+            if (player == P1 && peerP2 != null) {
+                peerP2.sendStatus(P1_QUIT);
+            } else if (player == P2) {
+                peerP1.sendStatus(P2_QUIT);
             }
+        } finally {
+            closeAll();
         }
-        return TIE_GAME;
     }
 
     /**
-     * Method to launch and run the game. Orchestrates turn-taking, token
-     * playing and win checking.
+     * Sends a status message to both players.
+     *
+     * @param status one of the status String constants
+     * @throws IOException a player cannot be reached
      */
-    public void launchGame() {
-        Connect4ComputerPlayer computer = new Connect4ComputerPlayer();
+    private void sendStatus(String status) throws IOException {
+        peerP1.sendStatus(status);
+        if (peerP2 != null) {
+            peerP2.sendStatus(status);
+        }
+        if (spectators != null && !status.equals(P1_INVALID)
+                && !status.equals(P2_INVALID)) {
+            spectators.status(status);
+        }
+    }
 
-        /**
-         * Stores the game mode in play.
-         */
-        char mode = COMPUTER;
-        if (totalPlayers == 2) {
-            mode = PLAYER;
+    /**
+     * Closes both players' connections, and the spectators'.
+     */
+    private void closeAll() {
+        peerP1.close();
+        if (peerP2 != null) {
+            peerP2.close();
         }
+        if (spectators != null) {
+            spectators.close();
+        }
+    }
 
-        /**
-         * Player 1 goes first. Defaults to the X tokem icon.
-         */
-        char icon = P1;
+    /**
+     * Adds a spectator to the game. It is told the board size, then gets the
+     * board, whose turn it is and everything that happens from then on. A
+     * spectator of a game that is over is closed.
+     *
+     * @param watcher the spectator's connection
+     * @return the broadcast it was added to, or null if the game is over
+     * @throws IOException the spectator cannot be reached
+     */
+    public synchronized Connect4Broadcast watch(Connect4Connection watcher)
+            throws IOException {
+        if (over) {
+            watcher.close();
+            return null;
+        }
+        if (spectators == null) {
+            spectators = new Connect4Broadcast(board, icon == P1 ? P1_TURN : P2_TURN);
+        }
+        watcher.sendJoin((char) 0, 0, board.getRows(), board.getColumns());
+        spectators.add(watcher);
+        return spectators;
+    }
 
-        /**
-         * Holds the current column choice that the token was dropped into.
-         */
-        int move;
+    /**
+     * Gives a player who reconnected their seat back: their messages go to
+     * the new connection, which is sent the board and whose turn it is.
+     *
+     * @param player P1 or P2
+     * @param peer the player's new connection
+     * @throws IOException the player cannot be reached
+     */
+    public synchronized void reconnect(char player, Connect4Peer peer)
+            throws IOException {
+        if (player == P1) {
+            peerP1 = peer;
+        } else {
+            peerP2 = peer;
+        }
+        peer.sendSnapshot(board);
+        if (!over) {
+            peer.sendStatus(icon == P1 ? P1_TURN : P2_TURN);
+        }
+    }
 
-        /**
-         * In the current 0 state, this affirms that the game is ongoing. Other
-         * possible values: 1 - P1 Wins, 2 - P2 Wins, 3 - Tie Game.
-         */
-        int outcome = 0;
+    /**
+     * Freezes the game as it stands, e.g. once it has been checkpointed for
+     * a replacement server: nothing the players send is played any more, and
+     * the game is not ended. Returns only once any move being played has
+     * been.
+     */
+    public synchronized void suspend() {
+        suspended = true;
+        stopClock();
+    }
 
-        /**
-         * The default height that a token falls to. Can only have values from 1
-         * to 6. Any higher and the token must be played in a different column.
-         * (Row 0 and below do not exist)
-         */
-        int valid = 1;
+    /**
+     * Gets the id of the game.
+     *
+     * @return the id
+     */
+    public int getId() {
+        return id;
+    }
 
-        /**
-         * While the outcome state is still 'ONGOING, while loop will continue
-         * to run this main gameplay loop.
-         */
-        while (outcome == ONGOING) {
-            try {
-                /**
-                 * Checks whose turn it is and communicates it to both players.
-                 * Also, communicates if a move was not in bounds.
-                 */
-                if (icon == P1 && valid != 0) {
-                    outputP1.writeObject(P1_TURN);
-                    if (totalPlayers == 2) {
-                        outputP2.writeObject(P1_TURN);
-                    }
-                } else if (icon == P1 && valid == 0) {
-                    outputP1.writeObject(P1_INVALID);
-                    if (totalPlayers == 2) {
-                        outputP2.writeObject(P1_INVALID);
-                    }
-                } else if (icon == P2 && valid != 0) {
-                    outputP1.writeObject(P2_TURN);
-                    if (totalPlayers == 2) {
-                        outputP2.writeObject(P2_TURN);
-                    }
-                } else if (icon == P1 && valid == 0) {
-                    outputP1.writeObject(P2_INVALID);
-                    if (totalPlayers == 2) {
-                        outputP2.writeObject(P2_INVALID);
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                break;
-            }
+    /**
+     * Gets the number of rows of the board.
+     *
+     * @return the row count
+     */
+    public int getRows() {
+        return board.getRows();
+    }
 
-            /**
-             * Requests the column choice from the current player or calculates
-             * it if is the computer's turn. Also checks to see if either player
-             * has quit which is a possible exit scenario.
-             */
-            if (mode == COMPUTER && icon == P2) {
-                move = computer.getMove(gameBoard);
-            } else {
-                Object obj;
-                try {
-                    if (icon == P1) {
-                        obj = inputP1.readObject();
-                        if (obj instanceof String) {
-                            if (totalPlayers == 2) {
-                                outputP2.writeObject(P1_QUIT);
-                            }
-                            break;
-                        } else {
-                            move = (int) obj;
-                        }
-                    } else {
-                        obj = inputP2.readObject();
-                        if (obj instanceof String) {
-                            outputP1.writeObject(P2_QUIT);
-                            break;
-                        } else {
-                            move = (int) obj;
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    break;
-                }
-            }
+    /**
+     * Gets the number of columns of the board.
+     *
+     * @return the column count
+     */
+    public int getColumns() {
+        return board.getColumns();
+    }
 
-            /**
-             * Confirms that the column selected still has room.
-             */
-            valid = checkMove(move);
-            if (valid == 0) {
-                continue;
-            }
+    /**
+     * Gets whose turn it is.
+     *
+     * @return P1 or P2
+     */
+    public synchronized char getTurn() {
+        return icon;
+    }
 
-            /**
-             * Drops the token into the chosen column.
-             */
-            playToken(move, icon);
-            try {
-                outputP1.reset();
-                outputP1.writeObject(gameBoard);
-                if (totalPlayers == 2) {
-                    outputP2.reset();
-                    outputP2.writeObject(gameBoard);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                break;
-            }
+    /**
+     * Checks whether the game has ended.
+     *
+     * @return true once there is a result or a player has left
+     */
+    public synchronized boolean isOver() {
+        return over;
+    }
 
-            /**
-             * Updates the outcome based on the result of the checkWin method.
-             * Most liekly scenario is that the game is still onging.
-             */
-            outcome = checkWin(valid, move, icon);
-            if (icon == P1) {
-                icon = P2;
-            } else {
-                icon = P1;
-            }
-        }
+    /**
+     * Checks whether the computer should move next.
+     *
+     * @return true in a game against the computer when it is P2's turn
+     */
+    public synchronized boolean isComputerTurn() {
+        return !over && totalPlayers == 1 && icon == P2;
+    }
 
-        /**
-         * Checks to see if outcome was changed after the checkWin method call.
-         * If so, the game has ended with 1 of 3 outcomes: P1_WINNER, P2_WINNER
-         * or TIE_GAME.
-         */
-        try {
-            if (outcome == P1_WINNER) {
-                outputP1.writeObject(P1_WINS);
-                if (totalPlayers == 2) {
-                    outputP2.writeObject(P1_WINS);
-                }
-            } else if (outcome == P2_WINNER) {
-                outputP1.writeObject(P2_WINS);
-                if (totalPlayers == 2) {
-                    outputP2.writeObject(P2_WINS);
-                }
-            } else {
-                outputP1.writeObject(TIE);
-                if (totalPlayers == 2) {
-                    outputP2.writeObject(TIE);
-                }
-            }
-            outputP1.close();
-            inputP1.close();
-            if (totalPlayers == 2) {
-                outputP2.close();
-                inputP2.close();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Copies the game state, e.g. for the computer player to search on
+     * another thread.
+     *
+     * @return a copy of the board
+     */
+    public synchronized Connect4State copyState() {
+        return board.copy();
     }
 
+    /**
+     * Gets the winning state of the game.
+     *
+     * @return Winning State 0-3: 0 if still ongoing, 1 if P1, 2 if P2 and 3 if
+     * a tie game.
+     */
+    public synchronized int getOutcome() {
+        return outcome;
+    }
 }
@@ -0,0 +1,408 @@
+/**
+ *
+ * Connect4AIPool
+ *
+ * Shared worker pool searching the computer's moves.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the computer's move searches for every game on a fixed set of worker
+ * threads, one per core by default, so that hundreds of computer games never
+ * have more searches running than there are cores to run them.
+ *
+ * Requests wait in a priority queue: lower priority values first, then the
+ * earliest deadline. The pool protects itself when it falls behind:
+ *
+ * - once more than SHED_FACTOR requests per worker are waiting, moves are
+ *   searched at SHED_DEPTH instead of the full depth;
+ * - a request whose deadline leaves no time for a full search also gets the
+ *   cheap search;
+ * - once the queue holds its capacity, new requests are answered at once by
+ *   Connect4ComputerPlayer.getQuickMove on the caller's thread.
+ *
+ * Every request is answered with a move, so a game never stalls waiting on
+ * the computer. Queue depth and the counts of each outcome are kept for
+ * monitoring.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4AIPool {
+
+    /**
+     * Priority of a move a player is waiting for.
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+
+    /**
+     * Priority of work nobody is watching, e.g. analysis.
+     */
+    public static final int PRIORITY_BACKGROUND = 10;
+
+    /**
+     * Time a player is expected to wait for the computer's move.
+     */
+    public static final long DEFAULT_DEADLINE_MILLIS = 1000;
+
+    /**
+     * Requests waiting per worker before searches are cut short.
+     */
+    public static final int SHED_FACTOR = 2;
+
+    /**
+     * Depth and time budget of a cut short search.
+     */
+    public static final int SHED_DEPTH = 8;
+    public static final long SHED_TIME_MILLIS = 5;
+
+    /**
+     * Requests the queue holds per worker before turning new ones away.
+     */
+    public static final int CAPACITY_PER_WORKER = 256;
+
+    /**
+     * Pool shared by the servers. Created on first use.
+     */
+    private static Connect4AIPool defaultPool;
+
+    /**
+     * Time requests spend queued and searched, over every pool, in
+     * microseconds.
+     */
+    private static final Connect4Histogram QUEUE_WAIT =
+            Connect4Metrics.histogram("ai_queue_wait_us");
+    private static final Connect4Histogram THINK =
+            Connect4Metrics.histogram("ai_think_us");
+
+    /**
+     * A move search waiting for a worker.
+     */
+    private static class Request implements Comparable<Request> {
+
+        /**
+         * Breaks ties between requests in arrival order.
+         */
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+
+        /**
+         * The position to search, owned by the request.
+         */
+        private final Connect4State state;
+
+        /**
+         * Priority, lower first.
+         */
+        private final int priority;
+
+        /**
+         * When the request was made and when the move is wanted by, from
+         * System.nanoTime.
+         */
+        private final long submitted;
+        private final long deadline;
+
+        /**
+         * Arrival order.
+         */
+        private final long sequence = SEQUENCE.getAndIncrement();
+
+        /**
+         * Completed with the move, 1 based.
+         */
+        private final CompletableFuture<Integer> move = new CompletableFuture<>();
+
+        /**
+         * Creates a request.
+         *
+         * @param state the position to search
+         * @param priority priority, lower first
+         * @param deadlineMillis time until the move is wanted
+         */
+        private Request(Connect4State state, int priority, long deadlineMillis) {
+            this.state = state;
+            this.priority = priority;
+            this.submitted = System.nanoTime();
+            this.deadline = submitted + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            if (deadline != other.deadline) {
+                return Long.compare(deadline - other.deadline, 0);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Requests waiting for a worker.
+     */
+    private final PriorityBlockingQueue<Request> queue = new PriorityBlockingQueue<>();
+
+    /**
+     * Requests accepted but not yet taken by a worker.
+     */
+    private final AtomicInteger depth = new AtomicInteger();
+
+    /**
+     * Deepest the queue has been.
+     */
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    /**
+     * Queue depth at which searches are cut short, and at which requests are
+     * turned away.
+     */
+    private final int shedDepth;
+    private final int capacity;
+
+    /**
+     * Outcome counts and total time spent queued.
+     */
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * The worker threads.
+     */
+    private final Thread[] workers;
+
+    /**
+     * Cleared once the pool is shut down.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Starts a pool.
+     *
+     * @param threads number of worker threads, at least 1
+     */
+    public Connect4AIPool(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        shedDepth = SHED_FACTOR * threads;
+        capacity = CAPACITY_PER_WORKER * threads;
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, "Connect4AIWorker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Gets the pool shared by the servers, creating it on first use. Its size
+     * is taken from the connect4.aiThreads system property and defaults to
+     * the number of cores. Its counts are registered with Connect4Metrics.
+     *
+     * @return the shared pool
+     */
+    public static synchronized Connect4AIPool getDefault() {
+        if (defaultPool == null) {
+            Connect4AIPool pool = new Connect4AIPool(Integer.getInteger(
+                    "connect4.aiThreads", Runtime.getRuntime().availableProcessors()));
+            Connect4Metrics.gauge("ai_queue_depth", pool::getQueueDepth);
+            Connect4Metrics.gauge("ai_queue_depth_max", pool::getMaxQueueDepth);
+            Connect4Metrics.gauge("ai_submitted", pool::getSubmitted);
+            Connect4Metrics.gauge("ai_completed", pool::getCompleted);
+            Connect4Metrics.gauge("ai_shed", pool::getShed);
+            Connect4Metrics.gauge("ai_expired", pool::getExpired);
+            Connect4Metrics.gauge("ai_rejected", pool::getRejected);
+            defaultPool = pool;
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Asks for the computer's move. If the queue is full the move is worked
+     * out on the spot with a one move look ahead.
+     *
+     * @param state the position, which the pool owns from now on
+     * @param priority PRIORITY_INTERACTIVE, PRIORITY_BACKGROUND or anything
+     * in between
+     * @param deadlineMillis time until the move is wanted
+     * @return completed with a column between 1 and the number of columns
+     */
+    public CompletableFuture<Integer> submit(Connect4State state, int priority,
+            long deadlineMillis) {
+        submitted.increment();
+        Request request = new Request(state, priority, deadlineMillis);
+        int waiting = depth.incrementAndGet();
+        if (!running || waiting > capacity) {
+            depth.decrementAndGet();
+            rejected.increment();
+            request.move.complete(Connect4ComputerPlayer.getQuickMove(state));
+            return request.move;
+        }
+        maxDepth.accumulateAndGet(waiting, Math::max);
+        queue.add(request);
+        return request.move;
+    }
+
+    /**
+     * Stops the workers. Requests still queued are answered with a one move
+     * look ahead.
+     */
+    public void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            depth.decrementAndGet();
+            rejected.increment();
+            request.move.complete(Connect4ComputerPlayer.getQuickMove(request.state));
+        }
+    }
+
+    /**
+     * Worker loop. Each worker keeps a full strength and a cut short player
+     * of its own, so their searches are never shared between threads.
+     */
+    private void work() {
+        Connect4ComputerPlayer full = new Connect4ComputerPlayer();
+        Connect4ComputerPlayer cheap = new Connect4ComputerPlayer(SHED_DEPTH,
+                SHED_TIME_MILLIS);
+        long fullNanos = TimeUnit.MILLISECONDS.toNanos(
+                Connect4ComputerPlayer.DEFAULT_TIME_MILLIS);
+        while (running) {
+            Request request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            int waiting = depth.decrementAndGet();
+            long now = System.nanoTime();
+            waitNanos.add(now - request.submitted);
+            QUEUE_WAIT.record(TimeUnit.NANOSECONDS.toMicros(now - request.submitted));
+
+            /**
+             * A request that cannot wait for a full search, or a queue that
+             * is backing up, gets the cheap search.
+             */
+            Connect4ComputerPlayer player = full;
+            if (request.deadline - now < fullNanos) {
+                expired.increment();
+                player = cheap;
+            } else if (waiting >= shedDepth) {
+                shed.increment();
+                player = cheap;
+            }
+            try {
+                int move = player.getMove(request.state);
+                THINK.record(Connect4Metrics.micros(now));
+                request.move.complete(move);
+            } catch (RuntimeException e) {
+                request.move.completeExceptionally(e);
+            }
+            completed.increment();
+        }
+    }
+
+    /**
+     * Gets the number of requests waiting for a worker.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Gets the deepest the queue has been.
+     *
+     * @return the largest queue depth seen
+     */
+    public int getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * Gets the number of requests made.
+     *
+     * @return the request count
+     */
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    /**
+     * Gets the number of requests searched by a worker.
+     *
+     * @return the searched count
+     */
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    /**
+     * Gets the number of searches cut short because the queue backed up.
+     *
+     * @return the shed count
+     */
+    public long getShed() {
+        return shed.sum();
+    }
+
+    /**
+     * Gets the number of searches cut short to make their deadline.
+     *
+     * @return the expired count
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * Gets the number of requests answered without queueing because the
+     * queue was full or the pool shut down.
+     *
+     * @return the rejected count
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Gets the average time requests spent queued.
+     *
+     * @return the mean wait in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long count = completed.sum();
+        if (count == 0) {
+            return 0;
+        }
+        return waitNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queued=%d max=%d submitted=%d completed=%d shed=%d"
+                + " expired=%d rejected=%d avgWait=%.2fms", getQueueDepth(),
+                getMaxQueueDepth(), getSubmitted(), getCompleted(), getShed(),
+                getExpired(), getRejected(), getAverageWaitMillis());
+    }
+}
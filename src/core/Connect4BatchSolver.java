@@ -0,0 +1,183 @@
+/**
+ *
+ * Connect4BatchSolver
+ *
+ * Command line solver for files of positions.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Solves every position of an input file with Connect4Solver. Each line holds
+ * one position as the columns played from the empty board, e.g. "4453". For
+ * each line the output holds the moves, the score and the distance to the end
+ * of the game in plies, separated by spaces, in input order. Lines that are
+ * not a game in progress are written back followed by "invalid".
+ *
+ * Positions are read in batches and each batch is spread over worker threads
+ * that share one transposition table.
+ *
+ * Usage: java core.Connect4BatchSolver input output|- [threads] [tableMegabytes]
+ * [book]
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4BatchSolver {
+
+    /**
+     * Positions read and solved at a time.
+     */
+    private static final int BATCH = 10000;
+
+    /**
+     * Solves a file of positions.
+     *
+     * @param args input file, output file or - for standard output, worker
+     * threads (default one per core), table size in megabytes (default 256)
+     * and an exact opening book file (optional)
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java core.Connect4BatchSolver input "
+                    + "output|- [threads] [tableMegabytes] [book]");
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int megabytes = 256;
+        Connect4OpeningBook book = null;
+        if (args.length > 2) {
+            threads = Integer.parseInt(args[2]);
+        }
+        if (args.length > 3) {
+            megabytes = Integer.parseInt(args[3]);
+        }
+        try {
+            if (args.length > 4) {
+                book = new Connect4OpeningBook(Paths.get(args[4]));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        Connect4TranspositionTable table = new Connect4TranspositionTable(megabytes);
+        Connect4Solver[] solvers = new Connect4Solver[threads];
+        for (int t = 0; t < threads; t++) {
+            solvers[t] = new Connect4Solver(table, book);
+        }
+
+        long start = System.nanoTime();
+        long solved = 0;
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(args[0]),
+                StandardCharsets.US_ASCII);
+                Writer out = openOutput(args[1])) {
+            String[] lines = new String[BATCH];
+            String[] results = new String[BATCH];
+            while (true) {
+                int n = 0;
+                String line;
+                while (n < BATCH && (line = in.readLine()) != null) {
+                    lines[n++] = line.trim();
+                }
+                if (n == 0) {
+                    break;
+                }
+                solveBatch(solvers, lines, results, n);
+                for (int i = 0; i < n; i++) {
+                    out.write(results[i]);
+                    out.write('\n');
+                }
+                solved += n;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.err.println("Solved " + solved + " positions in " + millis
+                + " ms (" + solved * 1000 / millis + "/s)");
+    }
+
+    /**
+     * Solves one batch of positions, one worker thread per solver.
+     *
+     * @param solvers one solver per worker
+     * @param lines the positions
+     * @param results receives the output line of each position
+     * @param n number of positions in the batch
+     */
+    private static void solveBatch(Connect4Solver[] solvers, String[] lines,
+            String[] results, int n) {
+        AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[solvers.length];
+        for (int t = 0; t < solvers.length; t++) {
+            Connect4Solver solver = solvers[t];
+            workers[t] = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < n) {
+                    results[i] = solveLine(solver, lines[i]);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Solves a single position.
+     *
+     * @param solver the solver to use
+     * @param moves the position as a move string
+     * @return the output line
+     */
+    private static String solveLine(Connect4Solver solver, String moves) {
+        Connect4Board board;
+        try {
+            board = Connect4Board.fromMoves(moves);
+        } catch (IllegalArgumentException e) {
+            return moves + " invalid";
+        }
+        if (board.isWin() || board.isFull()) {
+            return moves + " invalid";
+        }
+        int score = solver.solve(board);
+        return moves + " " + score + " "
+                + Connect4Solver.distanceToWin(board, score);
+    }
+
+    /**
+     * Opens the output file, or standard output for "-".
+     *
+     * @param name the output file name
+     * @return a buffered writer
+     * @throws IOException the file cannot be created
+     */
+    private static Writer openOutput(String name) throws IOException {
+        if (name.equals("-")) {
+            return new BufferedWriter(new OutputStreamWriter(System.out,
+                    StandardCharsets.US_ASCII));
+        }
+        return Files.newBufferedWriter(Paths.get(name), StandardCharsets.US_ASCII);
+    }
+}
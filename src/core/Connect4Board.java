@@ -0,0 +1,570 @@
+/**
+ *
+ * Connect4Board
+ *
+ * Bitboard representation of a Connect4 game state.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 2.0
+ *
+ */
+package core;
+
+/**
+ * Compact game state for Connect4. The board is stored as two 64 bit masks
+ * plus the height of each column, so a move, an undo and a win check are all a
+ * handful of shifts and ANDs instead of walks over a 2D char array.
+ *
+ * Each column takes rows + 1 bits, bottom row first, with the extra bit acting
+ * as a sentinel so that shifted lines never wrap from one column into the
+ * next. On the standard board:
+ *
+ * <pre>
+ *  6 13 20 27 34 41 48
+ *  5 12 19 26 33 40 47
+ *  4 11 18 25 32 39 46
+ *  3 10 17 24 31 38 45
+ *  2  9 16 23 30 37 44
+ *  1  8 15 22 29 36 43
+ *  0  7 14 21 28 35 42
+ * </pre>
+ *
+ * Any geometry whose (rows + 1) * columns bits fit in a long can be used, as
+ * long as the longest shift of a win check, connect - 1 steps along a
+ * diagonal of rows + 2 bits, stays below 64: Java only uses the low six bits
+ * of a long's shift count, so a longer shift would wrap around instead of
+ * clearing the word. Other boards need Connect4WideBoard.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4Board extends Connect4Constants implements Connect4State {
+
+    /**
+     * Board geometry.
+     */
+    private final int rows;
+    private final int columns;
+    private final int connect;
+
+    /**
+     * Bits used by a single column, including the sentinel bit.
+     */
+    private final int columnBits;
+
+    /**
+     * Mask with the bottom cell of every column set.
+     */
+    private final long bottomMask;
+
+    /**
+     * Mask with every playable cell of the board set.
+     */
+    private final long boardMask;
+
+    /**
+     * Tokens of the player whose turn it is.
+     */
+    private long current;
+
+    /**
+     * Tokens of both players.
+     */
+    private long mask;
+
+    /**
+     * Number of tokens in each column.
+     */
+    private final int[] height;
+
+    /**
+     * Number of tokens played so far.
+     */
+    private int moves;
+
+    /**
+     * Creates an empty standard board with P1 to move.
+     */
+    public Connect4Board() {
+        this(ROWS, COLUMNS, 4);
+    }
+
+    /**
+     * Creates an empty board of any geometry that fits, see fits, with P1 to
+     * move.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param connect tokens in a row needed to win
+     * @throws IllegalArgumentException the geometry is not playable or does
+     * not fit
+     */
+    public Connect4Board(int rows, int columns, int connect) {
+        if (connect < 2 || connect > Math.max(rows, columns)) {
+            throw new IllegalArgumentException("Cannot connect " + connect
+                    + " on a " + rows + "x" + columns + " board");
+        }
+        if (!fits(rows, columns, connect)) {
+            throw new IllegalArgumentException("A " + rows + "x" + columns
+                    + " connect " + connect + " board does not fit in 64 bits");
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.connect = connect;
+        columnBits = rows + 1;
+        long bottom = 0;
+        for (int c = 0; c < columns; c++) {
+            bottom |= 1L << (c * columnBits);
+        }
+        bottomMask = bottom;
+        boardMask = bottom * ((1L << rows) - 1);
+        height = new int[columns];
+    }
+
+    /**
+     * Copy constructor. The copy shares no state with the original.
+     *
+     * @param other the board to copy
+     */
+    public Connect4Board(Connect4Board other) {
+        rows = other.rows;
+        columns = other.columns;
+        connect = other.connect;
+        columnBits = other.columnBits;
+        bottomMask = other.bottomMask;
+        boardMask = other.boardMask;
+        current = other.current;
+        mask = other.mask;
+        height = other.height.clone();
+        moves = other.moves;
+    }
+
+    /**
+     * Checks whether a board, with its sentinel row, fits in 64 bits, and
+     * whether every shift its win checks make is below 64 bits.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param connect tokens in a row needed to win
+     * @return true if the single word bitboard can hold the board
+     */
+    public static boolean fits(int rows, int columns, int connect) {
+        return rows >= 1 && rows < 63 && columns >= 1 && (rows + 1) * columns <= 64
+                && connect >= 1 && (connect - 1) * (rows + 2) < 64;
+    }
+
+    /**
+     * Builds a connect-4 board from the legacy char[][] layout, where row 0
+     * is the bottom row and empty cells hold a space. The board takes the size
+     * of the array. The side to move is derived from the token count, since
+     * P1 always moves first.
+     *
+     * @param gameBoard the legacy board
+     * @return the equivalent bitboard
+     */
+    public static Connect4Board fromCharArray(char[][] gameBoard) {
+        Connect4Board board = new Connect4Board(gameBoard.length,
+                gameBoard[0].length, 4);
+        long p1 = 0;
+        for (int c = 0; c < board.columns; c++) {
+            for (int r = 0; r < board.rows; r++) {
+                char icon = gameBoard[r][c];
+                if (icon != P1 && icon != P2) {
+                    break;
+                }
+                long bit = board.bit(r, c);
+                board.mask |= bit;
+                if (icon == P1) {
+                    p1 |= bit;
+                }
+                board.height[c] += 1;
+                board.moves += 1;
+            }
+        }
+        if ((board.moves & 1) == 0) {
+            board.current = p1;
+        } else {
+            board.current = p1 ^ board.mask;
+        }
+        return board;
+    }
+
+    /**
+     * Builds a standard board by playing a sequence of moves from the empty
+     * board. Each character is a column from 1 to 7, e.g. "4453".
+     *
+     * @param moves the columns played, in order
+     * @return the resulting board
+     * @throws IllegalArgumentException a move is not a digit, its column is
+     * full or the game was already won
+     */
+    public static Connect4Board fromMoves(String moves) {
+        Connect4Board board = new Connect4Board();
+        for (int i = 0; i < moves.length(); i++) {
+            int column = moves.charAt(i) - '1';
+            if (!board.canPlay(column) || board.isWin()) {
+                throw new IllegalArgumentException("Invalid move " + (i + 1)
+                        + " in " + moves);
+            }
+            board.play(column);
+        }
+        return board;
+    }
+
+    /**
+     * Rebuilds a standard board from its key.
+     *
+     * @param key a key returned by key() on a standard board
+     * @return the position with that key
+     */
+    public static Connect4Board fromKey(long key) {
+        Connect4Board board = new Connect4Board();
+        long column = (1L << board.columnBits) - 1;
+        for (int c = 0; c < board.columns; c++) {
+            long v = (key >>> (c * board.columnBits)) & column;
+            int h = 63 - Long.numberOfLeadingZeros(v + 1);
+            long m = (1L << h) - 1;
+            board.mask |= m << (c * board.columnBits);
+            board.current |= (v - m) << (c * board.columnBits);
+            board.height[c] = h;
+            board.moves += h;
+        }
+        return board;
+    }
+
+    /**
+     * Checks whether this is the standard board: ROWS by COLUMNS, connect
+     * four. The opening book and the solver only handle this board.
+     *
+     * @return true for the standard geometry
+     */
+    public boolean isStandard() {
+        return rows == ROWS && columns == COLUMNS && connect == 4;
+    }
+
+    /**
+     * Bit of the cell at the given row and column, both zero based.
+     *
+     * @param row the row, 0 being the bottom
+     * @param column the column, 0 being the leftmost
+     * @return the single bit mask of that cell
+     */
+    public long bit(int row, int column) {
+        return 1L << (column * columnBits + row);
+    }
+
+    /**
+     * Mask with every playable cell of one column set.
+     *
+     * @param column zero based column
+     * @return the column mask
+     */
+    public long columnMask(int column) {
+        return ((1L << rows) - 1) << (column * columnBits);
+    }
+
+    /**
+     * Checks whether a set of tokens contains a winning line in any direction.
+     * Each direction is tested by ANDing the tokens with shifted copies of
+     * themselves; connect four, the usual case, takes two steps per direction.
+     *
+     * @param pos the tokens of a single player
+     * @return true if pos contains a line of connect tokens
+     */
+    public boolean alignment(long pos) {
+        if (connect == 4) {
+            long m = pos & (pos >>> columnBits);
+            if ((m & (m >>> (2 * columnBits))) != 0) {
+                return true;
+            }
+            m = pos & (pos >>> (columnBits - 1));
+            if ((m & (m >>> (2 * (columnBits - 1)))) != 0) {
+                return true;
+            }
+            m = pos & (pos >>> (columnBits + 1));
+            if ((m & (m >>> (2 * (columnBits + 1)))) != 0) {
+                return true;
+            }
+            m = pos & (pos >>> 1);
+            return (m & (m >>> 2)) != 0;
+        }
+        return line(pos, 1) || line(pos, columnBits - 1)
+                || line(pos, columnBits) || line(pos, columnBits + 1);
+    }
+
+    /**
+     * Finds every empty cell that would complete a winning line for a player,
+     * whether or not the cell can be played yet.
+     *
+     * @param position the tokens of a single player
+     * @param mask the tokens of both players
+     * @return mask of the empty cells that would win for that player
+     */
+    public long winningPositions(long position, long mask) {
+        long r;
+        if (connect == 4) {
+            // vertical
+            r = (position << 1) & (position << 2) & (position << 3);
+
+            // horizontal and the two diagonals
+            for (int shift = columnBits - 1; shift <= columnBits + 1; shift++) {
+                long p = (position << shift) & (position << (2 * shift));
+                r |= p & (position << (3 * shift));
+                r |= p & (position >>> shift);
+                p = (position >>> shift) & (position >>> (2 * shift));
+                r |= p & (position << shift);
+                r |= p & (position >>> (3 * shift));
+            }
+        } else {
+            // vertical: the empty cell can only be on top
+            r = ~0L;
+            for (int j = 1; j < connect; j++) {
+                r &= position << j;
+            }
+            for (int shift = columnBits - 1; shift <= columnBits + 1; shift++) {
+                r |= completions(position, shift);
+            }
+        }
+        return r & (boardMask ^ mask);
+    }
+
+    /**
+     * Mask of the cells where the next token of each column would land.
+     *
+     * @return one bit for every playable column
+     */
+    public long possible() {
+        return (mask + bottomMask) & boardMask;
+    }
+
+    /**
+     * Checks whether the side to move can win with its next token.
+     *
+     * @return true if some playable cell completes a line
+     */
+    public boolean canWinNext() {
+        return (winningPositions(current, mask) & possible()) != 0;
+    }
+
+    /**
+     * Finds the moves that do not hand the opponent an immediate win. If the
+     * opponent threatens to win somewhere, only that cell is returned, and if
+     * it threatens twice there is no such move.
+     *
+     * Only meaningful when the side to move cannot win right away.
+     *
+     * @return mask of the landing cells of the safe moves
+     */
+    public long possibleNonLosingMoves() {
+        long possible = possible();
+        long opponentWin = winningPositions(current ^ mask, mask);
+        long forced = possible & opponentWin;
+        if (forced != 0) {
+            if ((forced & (forced - 1)) != 0) {
+                return 0;
+            }
+            possible = forced;
+        }
+        return possible & ~(opponentWin >>> 1);
+    }
+
+    /**
+     * Counts the winning cells the side to move would have after playing a
+     * move. Used to search threatening moves first.
+     *
+     * @param move the landing cell of the move
+     * @return the number of winning cells after the move
+     */
+    public int moveScore(long move) {
+        return Long.bitCount(winningPositions(current | move, mask));
+    }
+
+    @Override
+    public Connect4Board copy() {
+        return new Connect4Board(this);
+    }
+
+    @Override
+    public boolean canPlay(int column) {
+        return column >= 0 && column < columns && height[column] < rows;
+    }
+
+    @Override
+    public void play(int column) {
+        current ^= mask;
+        mask |= bit(height[column], column);
+        height[column] += 1;
+        moves += 1;
+    }
+
+    @Override
+    public void undo(int column) {
+        moves -= 1;
+        height[column] -= 1;
+        mask ^= bit(height[column], column);
+        current ^= mask;
+    }
+
+    @Override
+    public boolean isWinningMove(int column) {
+        return alignment(current | bit(height[column], column));
+    }
+
+    @Override
+    public boolean isWin() {
+        return alignment(current ^ mask);
+    }
+
+    @Override
+    public boolean isFull() {
+        return moves == rows * columns;
+    }
+
+    @Override
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public int getColumns() {
+        return columns;
+    }
+
+    @Override
+    public int getConnect() {
+        return connect;
+    }
+
+    @Override
+    public int getHeight(int column) {
+        return height[column];
+    }
+
+    @Override
+    public int getMoves() {
+        return moves;
+    }
+
+    @Override
+    public char getTurn() {
+        if ((moves & 1) == 0) {
+            return P1;
+        }
+        return P2;
+    }
+
+    /**
+     * Gets the tokens of the player whose turn it is.
+     *
+     * @return mask of the current player's tokens
+     */
+    public long getCurrent() {
+        return current;
+    }
+
+    /**
+     * Gets the tokens of both players.
+     *
+     * @return mask of every occupied cell
+     */
+    public long getMask() {
+        return mask;
+    }
+
+    /**
+     * Unique key of the position, built from the two masks. Within each
+     * column, the mask plus the current player's tokens falls in a range that
+     * only that column height can produce, so no two positions of the same
+     * geometry share a key and the position can be rebuilt from it with
+     * fromKey.
+     *
+     * @return the position key
+     */
+    public long key() {
+        return current + mask;
+    }
+
+    /**
+     * Mirrors a mask or a key left to right.
+     *
+     * @param bits a mask or key in this board's layout
+     * @return the same bits with column c moved to column columns - 1 - c
+     */
+    public long mirror(long bits) {
+        long column = (1L << columnBits) - 1;
+        long res = 0;
+        for (int c = 0; c < columns; c++) {
+            long v = (bits >>> (c * columnBits)) & column;
+            res |= v << ((columns - 1 - c) * columnBits);
+        }
+        return res;
+    }
+
+    @Override
+    public char[][] toCharArray() {
+        long p1 = current;
+        if ((moves & 1) == 1) {
+            p1 = current ^ mask;
+        }
+        char[][] gameBoard = new char[rows][columns];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                long b = bit(r, c);
+                if ((mask & b) == 0) {
+                    gameBoard[r][c] = ' ';
+                } else if ((p1 & b) != 0) {
+                    gameBoard[r][c] = P1;
+                } else {
+                    gameBoard[r][c] = P2;
+                }
+            }
+        }
+        return gameBoard;
+    }
+
+    /**
+     * Checks for a line of connect tokens along one direction, doubling the
+     * length of the runs found with every step.
+     *
+     * @param pos the tokens of a single player
+     * @param shift distance between neighbouring cells of the direction
+     * @return true if pos contains such a line
+     */
+    private boolean line(long pos, int shift) {
+        long m = pos;
+        int length = 1;
+        while (length * 2 <= connect) {
+            m &= m >>> (length * shift);
+            length *= 2;
+        }
+        if (length < connect) {
+            m &= m >>> ((connect - length) * shift);
+        }
+        return m != 0;
+    }
+
+    /**
+     * Finds the cells that would complete a line of connect tokens along one
+     * direction, by trying the missing cell at every place of the line.
+     *
+     * @param position the tokens of a single player
+     * @param shift distance between neighbouring cells of the direction
+     * @return mask of the completing cells, occupied or not
+     */
+    private long completions(long position, int shift) {
+        long r = 0;
+        for (int k = 0; k < connect; k++) {
+            long p = ~0L;
+            for (int j = 0; j < connect; j++) {
+                int d = (k - j) * shift;
+                if (d > 0) {
+                    p &= position << d;
+                } else if (d < 0) {
+                    p &= position >>> -d;
+                }
+            }
+            r |= p;
+        }
+        return r;
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ *
+ * Connect4BookGenerator
+ *
+ * Offline builder for the computer player's opening book.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line tool that writes an opening book file for Connect4OpeningBook.
+ * Every position up to the given number of plies is enumerated, one per
+ * mirror pair, and searched with Connect4Search. Positions are spread over
+ * worker threads that share one transposition table.
+ *
+ * A depth of 0 solves every position exactly with Connect4Solver instead and
+ * marks the book as exact, which lets the solver use it too. Solving is far
+ * slower than searching and only practical for shallow books.
+ *
+ * Usage: java core.Connect4BookGenerator file [plies] [depth] [threads]
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4BookGenerator extends Connect4Constants {
+
+    /**
+     * Records written per write call.
+     */
+    private static final int WRITE_BATCH = 4096;
+
+    /**
+     * Builds a book and writes it to a file.
+     *
+     * @param args output file, plies to cover (default 8), search depth
+     * (default 14, 0 to solve exactly) and worker threads (default one per
+     * core)
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java core.Connect4BookGenerator file "
+                    + "[plies] [depth] [threads]");
+            return;
+        }
+        Path path = Paths.get(args[0]);
+        int plies = 8;
+        int depth = 14;
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 1) {
+            plies = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            depth = Integer.parseInt(args[2]);
+        }
+        if (args.length > 3) {
+            threads = Integer.parseInt(args[3]);
+        }
+
+        long start = System.nanoTime();
+        long[] keys = enumerate(plies);
+        System.out.println("Positions: " + keys.length);
+        int[] moves = new int[keys.length];
+        int[] scores = new int[keys.length];
+        search(keys, depth, threads, moves, scores);
+        int flags = 0;
+        if (depth == 0) {
+            flags = Connect4OpeningBook.FLAG_EXACT;
+        }
+        try {
+            write(path, plies, flags, keys, moves, scores);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        System.out.println("Wrote " + path + " in "
+                + (System.nanoTime() - start) / 1000000000 + " s");
+    }
+
+    /**
+     * Lists the canonical keys of every position up to the given ply that is
+     * still being played, level by level. Each level is sorted and stripped of
+     * duplicates before it is expanded, so transpositions are only expanded
+     * once.
+     *
+     * @param plies deepest level to list
+     * @return sorted canonical keys
+     */
+    static long[] enumerate(int plies) {
+        long[] level = {0};
+        long[] all = new long[0];
+        for (int ply = 0; ply <= plies; ply++) {
+            long[] playable = new long[level.length];
+            int n = 0;
+            for (long key : level) {
+                Connect4Board board = Connect4Board.fromKey(key);
+                if (!board.isWin() && !board.isFull()) {
+                    playable[n++] = key;
+                }
+            }
+            all = Arrays.copyOf(all, all.length + n);
+            System.arraycopy(playable, 0, all, all.length - n, n);
+            if (ply == plies) {
+                break;
+            }
+
+            long[] next = new long[n * COLUMNS];
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                Connect4Board board = Connect4Board.fromKey(playable[i]);
+                for (int c = 0; c < COLUMNS; c++) {
+                    if (board.canPlay(c)) {
+                        board.play(c);
+                        next[m++] = Connect4OpeningBook.canonicalKey(board.key());
+                        board.undo(c);
+                    }
+                }
+            }
+            level = unique(next, m);
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    /**
+     * Searches every position, spreading them over worker threads.
+     *
+     * @param keys the positions
+     * @param depth search depth, or 0 to solve
+     * @param threads number of workers
+     * @param moves receives the best move of each position
+     * @param scores receives the score of each position
+     */
+    private static void search(long[] keys, int depth, int threads,
+            int[] moves, int[] scores) {
+        Connect4TranspositionTable table = new Connect4TranspositionTable(
+                Connect4ComputerPlayer.DEFAULT_TABLE_MEGABYTES);
+        AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                /**
+                 * Solver and search scores are not comparable, so only one of
+                 * them ever uses the table.
+                 */
+                Connect4Search search = null;
+                Connect4Solver solver = null;
+                if (depth == 0) {
+                    solver = new Connect4Solver(table, null);
+                } else {
+                    search = new Connect4Search(table);
+                }
+                int i;
+                while ((i = next.getAndIncrement()) < keys.length) {
+                    Connect4Board board = Connect4Board.fromKey(keys[i]);
+                    if (depth == 0) {
+                        moves[i] = solver.bestMove(board);
+                        scores[i] = solver.solve(board);
+                    } else {
+                        moves[i] = search.bestMove(board, depth, 0);
+                        scores[i] = search.getScore();
+                    }
+                    if (i % 100000 == 0) {
+                        System.out.println("Searched " + i);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a book file.
+     *
+     * @param path the file to write
+     * @param plies deepest position in the book
+     * @param flags header flags
+     * @param keys sorted canonical keys
+     * @param moves best move of each position
+     * @param scores score of each position
+     * @throws IOException the file cannot be written
+     */
+    static void write(Path path, int plies, int flags, long[] keys, int[] moves,
+            int[] scores) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer out = ByteBuffer.allocate(Math.max(
+                    Connect4OpeningBook.HEADER_BYTES,
+                    WRITE_BATCH * Connect4OpeningBook.RECORD_BYTES));
+            Connect4OpeningBook.writeHeader(out, plies, flags, keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                if (out.remaining() < Connect4OpeningBook.RECORD_BYTES) {
+                    drain(channel, out);
+                }
+                out.putLong(keys[i] << 8 | ((moves[i] + 1) & 0xFF));
+                out.putInt(scores[i]);
+            }
+            drain(channel, out);
+        }
+    }
+
+    /**
+     * Writes out everything in a buffer and empties it.
+     *
+     * @param channel the file
+     * @param out the buffer, in write mode
+     * @throws IOException the file cannot be written
+     */
+    private static void drain(FileChannel channel, ByteBuffer out)
+            throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Sorts the first n values of an array and removes duplicates.
+     *
+     * @param values the values, reordered in place
+     * @param n how many values to use
+     * @return a new array of the distinct values, sorted
+     */
+    private static long[] unique(long[] values, int n) {
+        Arrays.sort(values, 0, n);
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (m == 0 || values[i] != values[m - 1]) {
+                values[m++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, m);
+    }
+}
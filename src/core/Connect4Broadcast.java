@@ -0,0 +1,197 @@
+/**
+ *
+ * Connect4Broadcast
+ *
+ * Fans the moves of one game out to its spectators.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The spectators of a game of the NIO server. Every move and status of the
+ * game is encoded once into a read-only Connect4Protocol frame, and each
+ * event loop with spectators on it gets one task that queues that frame, as a
+ * duplicate sharing its bytes, to all of them. Nothing is serialized per
+ * spectator and nothing the game does waits on their sockets.
+ *
+ * Each spectator may have up to WATCHER_QUEUE frames waiting to be written.
+ * One that falls further behind has its waiting frames dropped and gets the
+ * latest snapshot of the board and status in their place, so a slow
+ * spectator costs a bounded amount of memory and never holds up the players.
+ *
+ * The game calls add, move, status and close while holding its own lock, so
+ * every spectator sees the events in order. The lists of spectators are each
+ * only touched on their own loop.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4Broadcast {
+
+    /**
+     * Frames a spectator may have waiting before it is skipped ahead to a
+     * snapshot.
+     */
+    public static final int WATCHER_QUEUE = 32;
+
+    /**
+     * Spectators watching, and how often one was skipped ahead.
+     */
+    private static final LongAdder WATCHERS = Connect4Metrics.counter("spectators");
+    private static final LongAdder SKIPS = Connect4Metrics.counter("spectator_skips");
+
+    /**
+     * The spectators, by the loop doing their I/O.
+     */
+    private final Map<Connect4EventLoop, List<Connect4Connection>> watchers =
+            new ConcurrentHashMap<>();
+
+    /**
+     * What a spectator joining or catching up is sent: the latest snapshot of
+     * the board followed by the latest status. Replaced as a whole.
+     */
+    private volatile ByteBuffer[] latest;
+
+    /**
+     * Set once the game has ended.
+     */
+    private boolean closed;
+
+    /**
+     * Creates the broadcast of a game.
+     *
+     * @param board the board as it is now
+     * @param status the status the players were sent last
+     */
+    public Connect4Broadcast(Connect4State board, String status) {
+        latest = new ByteBuffer[] {frame(Connect4Protocol.snapshot(board)),
+                frame(Connect4Protocol.status(status))};
+    }
+
+    /**
+     * Wraps an encoded frame to be shared by every spectator.
+     *
+     * @param frame the frame
+     * @return a read-only buffer of it
+     */
+    private static ByteBuffer frame(byte[] frame) {
+        return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+    }
+
+    /**
+     * Adds a spectator, who is sent the board and the current status before
+     * anything that happens later. A spectator of a game that has ended is
+     * just closed.
+     *
+     * @param watcher the spectator's connection, which must speak version 5
+     */
+    public void add(Connect4Connection watcher) {
+        if (closed) {
+            watcher.close();
+            return;
+        }
+        ByteBuffer[] start = latest;
+        Connect4EventLoop loop = watcher.getLoop();
+
+        /**
+         * The loop's list is created here so that the next fan out already
+         * queues a task behind this one.
+         */
+        List<Connect4Connection> list = watchers.computeIfAbsent(loop,
+                l -> new ArrayList<>());
+        loop.execute(() -> {
+            if (!watcher.isOpen()) {
+                return;
+            }
+            list.add(watcher);
+            WATCHERS.increment();
+            for (ByteBuffer frame : start) {
+                watcher.sendShared(frame);
+            }
+        });
+    }
+
+    /**
+     * Removes a spectator whose connection has closed. Must run on the
+     * spectator's loop.
+     *
+     * @param watcher the spectator
+     */
+    public void remove(Connect4Connection watcher) {
+        List<Connect4Connection> list = watchers.get(watcher.getLoop());
+        if (list != null && list.remove(watcher)) {
+            WATCHERS.decrement();
+        }
+    }
+
+    /**
+     * Sends a move to every spectator.
+     *
+     * @param board the board after the move
+     * @param column zero based column of the move
+     * @param row zero based row of the move
+     * @param token token of the player who moved
+     */
+    public void move(Connect4State board, int column, int row, char token) {
+        latest = new ByteBuffer[] {frame(Connect4Protocol.snapshot(board)),
+                latest[1]};
+        fanOut(frame(Connect4Protocol.move(column, row, token, board.getMoves())));
+    }
+
+    /**
+     * Sends a status to every spectator.
+     *
+     * @param status one of the turn, result or quit constants
+     */
+    public void status(String status) {
+        ByteBuffer frame = frame(Connect4Protocol.status(status));
+        latest = new ByteBuffer[] {latest[0], frame};
+        fanOut(frame);
+    }
+
+    /**
+     * Closes every spectator once what it has been sent has gone out.
+     */
+    public void close() {
+        closed = true;
+        watchers.forEach((loop, list) -> loop.execute(() -> {
+            for (Connect4Connection watcher : new ArrayList<>(list)) {
+                watcher.close();
+            }
+        }));
+    }
+
+    /**
+     * Queues a frame to every spectator, with one task per loop. A spectator
+     * that is too far behind is skipped ahead to what was latest when the
+     * frame went out, which already includes the frame.
+     *
+     * @param frame the frame
+     */
+    private void fanOut(ByteBuffer frame) {
+        ByteBuffer[] resync = latest;
+        watchers.forEach((loop, list) -> loop.execute(() -> {
+            for (Connect4Connection watcher : list) {
+                if (watcher.getQueued() < WATCHER_QUEUE) {
+                    watcher.sendShared(frame);
+                } else {
+                    SKIPS.increment();
+                    watcher.dropOutput();
+                    for (ByteBuffer latestFrame : resync) {
+                        watcher.sendShared(latestFrame);
+                    }
+                }
+            }
+        }));
+    }
+}
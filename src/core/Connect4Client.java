@@ -16,9 +16,13 @@
 package core;
 
 import java.net.Socket;
-import java.net.ServerSocket;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Scanner;
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -26,30 +30,71 @@ import ui.Connect4GUI;
 import ui.Connect4TextConsole;
 
 /**
- * Communicates with the player to send and receieve I/O updates.
+ * Communicates with the player to send and receieve I/O updates. Speaks the
+ * binary Connect4Protocol with the server and keeps its own copy of the board,
+ * updated from the moves the server announces. In GUI mode the GUI runs in the
+ * same process and the decoded frames are handed to it over a
+ * Connect4EventBus.
+ *
+ * If the connection drops during a game the client reconnects and resumes
+ * its seat with the game id and key the server gave it, then carries on from
+ * the snapshot the server sends back. When the server is one of several
+ * nodes, the client follows it to whichever node it redirects to.
+ *
+ * The connect4.rows, connect4.columns and connect4.connect system properties
+ * ask for a board other than the standard one, and connect4.rating tells the
+ * matchmaker the player's rating so they are paired with players of a
+ * similar one.
  *
  * @author James Kendall Bruce
  */
 public class Connect4Client extends Connect4Constants {
 
     /**
-     * All the I/O and Sockets between the Client, Server and GUI.
+     * All the I/O and Sockets between the Client and Server.
      */
+    private String host = "localhost";
+
     private int port = 8000;
 
-    private ObjectOutputStream output;
+    private DataOutputStream output;
 
-    private ObjectOutputStream outputGUI;
+    private DataInputStream input;
 
-    private ObjectInputStream input;
+    private Socket socket;
 
-    private ObjectInputStream inputGUI;
+    /**
+     * Link to the GUI in GUI mode.
+     */
+    private Connect4EventBus bus = new Connect4EventBus();
 
-    private Socket socket;
+    /**
+     * Attempts at resuming a dropped game, and the wait before each. They add
+     * up to less than the server's grace window.
+     */
+    private static final int RESUME_ATTEMPTS = 10;
+    private static final long RESUME_DELAY_MILLIS = 2000;
 
-    private Socket socketGUI;
+    /**
+     * Most redirects to other server nodes followed for one request.
+     */
+    static final int MAX_REDIRECTS = 3;
 
-    private ServerSocket serverGUI;
+    /**
+     * The board to ask for, and the player's rating, 0 if they have none.
+     */
+    private static final int ROWS_WANTED = Integer.getInteger("connect4.rows", ROWS);
+    private static final int COLUMNS_WANTED =
+            Integer.getInteger("connect4.columns", COLUMNS);
+    private static final int CONNECT_WANTED = Integer.getInteger("connect4.connect", 4);
+    private static final int RATING = Integer.getInteger("connect4.rating", 0);
+
+    /**
+     * The game and seat key from the server's SESSION frame, if it sent one.
+     */
+    private boolean resumable;
+    private int gameId;
+    private long sessionKey;
 
     /**
      * Runs tbe user's gameplay experience by connection with the server.
@@ -106,48 +151,47 @@ public class Connect4Client extends Connect4Constants {
         }
 
         /**
-         * Establishes Socket, input and output instances.
-         */
-        try {
-            client.socket = new Socket("localhost", client.port);
-            client.output = new ObjectOutputStream(client.socket.getOutputStream());
-            client.input = new ObjectInputStream(client.socket.getInputStream());
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            return;
-        }
-        /**
-         * Starts on P1's turn.
+         * Establishes Socket, input and output instances, then opens the
+         * binary protocol and picks the game mode.
          */
-        char currentPlayer = P1;
-        Object obj = null;
-        int portGUI = 0;
+        char currentPlayer;
+        char[][] gameBoard;
         try {
-            client.output.writeObject(mode);
-            currentPlayer = (char) client.input.readObject();
-            portGUI = (int) client.input.readObject();
+            client.connect();
 
+            /**
+             * The server answers once an opponent has been found, so the
+             * console says what is going on in the meantime.
+             */
+            if (displayFormat == TEXT_CONSOLE) {
+                display.displayStart(mode);
+            }
+            Connect4Protocol.Message join = client.request(
+                    Connect4Protocol.mode(mode, false, ROWS_WANTED, COLUMNS_WANTED,
+                            CONNECT_WANTED, RATING),
+                    Connect4Protocol.mode(mode, true, ROWS_WANTED, COLUMNS_WANTED,
+                            CONNECT_WANTED, RATING));
+            currentPlayer = join.getToken();
+
+            /**
+             * Establishes the board for gameplay.
+             */
+            gameBoard = new char[join.getRows()][join.getColumns()];
         } catch (Exception ex) {
             ex.printStackTrace();
             return;
         }
-
-        /**
-         * Establishes the board for gameplay.
-         */
-        char[][] gameBoard = new char[ROWS][COLUMNS];
-        for (int r = 0; r < ROWS; r++) {
-            for (int c = 0; c < COLUMNS; c++) {
-                gameBoard[r][c] = ' ';
-            }
+        for (char[] row : gameBoard) {
+            Arrays.fill(row, ' ');
         }
 
         String playerString = Character.toString(currentPlayer);
-        String portGUIString = Integer.toString(portGUI);
+        String rowsString = Integer.toString(gameBoard.length);
+        String columnsString = Integer.toString(gameBoard[0].length);
         Runnable runnable = () -> {
             try {
-                Application.launch(Connect4GUI.class, portGUIString,
-                        playerString);
+                Application.launch(Connect4GUI.class, playerString,
+                        rowsString, columnsString);
                 Platform.setImplicitExit(true);
             } catch (Exception ex) {
                 ex.printStackTrace();
@@ -155,195 +199,284 @@ public class Connect4Client extends Connect4Constants {
         };
         Thread thread = null;
         /**
-         * Runs the GUI side of things.
+         * Runs the GUI side of things. Messages sent before the GUI is up wait
+         * on the bus.
          */
         if (displayFormat == GUI) {
+            Connect4GUI.setEventBus(client.bus);
             thread = new Thread(runnable);
             thread.start();
-            try {
-                client.serverGUI = new ServerSocket(portGUI);
-                client.socketGUI = client.serverGUI.accept();
-                client.outputGUI = new ObjectOutputStream(
-                        client.socketGUI.getOutputStream());
-                client.inputGUI = new ObjectInputStream(
-                        client.socketGUI.getInputStream());
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                return;
-            }
-        }
-        if (displayFormat == TEXT_CONSOLE) {
-            display.displayBoard(gameBoard);
-            display.displayStart(mode);
         }
-        String text = null;
-        while (true) {
+
+        /**
+         * Sequence number of the last move applied, and whether a snapshot
+         * has been asked for after a gap.
+         */
+        int seq = 0;
+        boolean syncing = false;
+        boolean playing = true;
+        while (playing) {
+            Connect4Protocol.Message msg;
             try {
-                obj = client.input.readObject();
+                msg = Connect4Protocol.read(client.input);
             } catch (Exception ex) {
+                if (client.resume(currentPlayer)) {
+                    continue;
+                }
                 ex.printStackTrace();
                 break;
             }
 
             /**
-             * Series of if/else blocks to check for possible gameplay
-             * scenarios, wins, quits, invalid moves and eventually player
-             * turns.
+             * Dispatches on the opcode: moves, snapshots, turns, invalid
+             * moves, results and quits. Everything is passed on to the GUI in
+             * GUI mode. A move that does not follow the last one means one
+             * went missing, so moves are ignored until a snapshot catches the
+             * board up.
              */
-            if (obj instanceof String) {
-                text = (String) obj;
-                if (text.equals(P1_QUIT)) {
-                    try {
-                        client.outputGUI.writeObject(P1_QUIT);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                    }
-                    break;
-                } else if (text.equals(P2_QUIT)) {
-                    try {
-                        client.outputGUI.writeObject(P2_QUIT);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                    }
-                    break;
-                } else if (text.equals(P1_WINS) || text.equals(P2_WINS)
-                        || text.equals(TIE)) {
-                    if (displayFormat == TEXT_CONSOLE) {
-                        if (text.equals(P1_WINS)) {
-                            display.displayWinner(P1_WINNER);
-                        } else if (text.equals(P2_WINS)) {
-                            display.displayWinner(P2_WINNER);
-                        } else {
-                            display.displayWinner(TIE_GAME); // Tie game
-                        }
-                    } else {
-                        try {
-                            client.outputGUI.writeObject(text);
-                        } catch (Exception ex) {
-                            ex.printStackTrace();
-                            break;
-                        }
-                    }
-                    break;
-                } else if (mode == COMPUTER && (text.equals(P2_TURN)
-                        || text.equals(P2_INVALID))) {
-                    if (displayFormat == TEXT_CONSOLE) {
-                        if (text.equals(P2_INVALID)) {
-                            display.invalidMove();
-                        }
-                        display.displayPlayerTurn(P2);
-                    } else {
-                        try {
-                            client.outputGUI.writeObject(text);
-                        } catch (Exception e) {
-                            e.printStackTrace();
+            try {
+                switch (msg.getOpcode()) {
+                    case Connect4Protocol.OP_MOVE:
+                        if (syncing) {
                             break;
                         }
-                    }
-                    continue;
-                } else if ((text.equals(P1_TURN)
-                        || text.equals(P1_INVALID))
-                        && currentPlayer == P1) {
-                    if (displayFormat == TEXT_CONSOLE) {
-                        try {
-                            if (text.equals(P1_INVALID)) {
-                                display.invalidMove();
-                            }
-                            display.displayPlayerTurn(P1);
-                            client.output.writeObject(display.getMove(scan));
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                        if (msg.getSeq() != 0 && msg.getSeq() != seq + 1) {
+                            send(client.output, Connect4Protocol.sync());
+                            syncing = true;
                             break;
                         }
-                    } else {
-                        try {
-                            client.outputGUI.writeObject(text);
-                            Object inData = client.inputGUI.readObject();
-                            if (inData instanceof String) {
-                                client.output.writeObject(inData);
-                                client.outputGUI.writeObject(inData);
-                                break;
-                            }
-                            client.output.writeObject(inData);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            break;
+                        seq++;
+                        gameBoard[msg.getRow()][msg.getColumn()] = msg.getToken();
+                        if (displayFormat == TEXT_CONSOLE) {
+                            display.displayBoard(gameBoard);
+                        } else {
+                            client.bus.publish(msg);
                         }
-                    }
-                } else if ((text.equals(P2_TURN)
-                        || text.equals(P2_INVALID))
-                        && currentPlayer == P2) {
-                    if (displayFormat == TEXT_CONSOLE) {
-                        try {
-                            if (text.equals(P2_INVALID)) {
-                                display.invalidMove();
-                            }
-                            display.displayPlayerTurn(P2);
-                            client.output.writeObject(display.getMove(scan));
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            break;
+                        break;
+                    case Connect4Protocol.OP_SNAPSHOT:
+                        gameBoard = msg.toBoard();
+                        seq = msg.getSeq();
+                        syncing = false;
+                        if (displayFormat == TEXT_CONSOLE) {
+                            display.displayBoard(gameBoard);
+                        } else {
+                            client.bus.publish(msg);
                         }
-                    } else {
-                        try {
-                            client.outputGUI.writeObject(text);
-                            Object inData = client.inputGUI.readObject();
-                            if (inData instanceof String) {
-                                client.output.writeObject(inData);
-                                client.outputGUI.writeObject(inData);
-                                break;
+                        break;
+                    case Connect4Protocol.OP_SESSION:
+                        client.resumable = true;
+                        client.gameId = msg.getGameId();
+                        client.sessionKey = msg.getKey();
+                        break;
+                    case Connect4Protocol.OP_TURN:
+                    case Connect4Protocol.OP_INVALID:
+                        playing = client.takeTurn(msg, currentPlayer, mode,
+                                displayFormat, display, scan);
+                        break;
+                    case Connect4Protocol.OP_WIN:
+                    case Connect4Protocol.OP_TIE:
+                        if (displayFormat == TEXT_CONSOLE) {
+                            if (msg.getOpcode() == Connect4Protocol.OP_TIE) {
+                                display.displayWinner(TIE_GAME);
+                            } else if (msg.getToken() == P1) {
+                                display.displayWinner(P1_WINNER);
+                            } else {
+                                display.displayWinner(P2_WINNER);
                             }
-                            client.output.writeObject(inData);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            break;
-                        }
-                    }
-                } else {
-                    if (displayFormat == TEXT_CONSOLE) {
-                        if (currentPlayer != P1) {
-                            display.displayMessage(WAIT_FOR_P1_TEXT);
                         } else {
-                            display.displayMessage(WAIT_FOR_P2_TEXT);
+                            client.bus.publish(msg);
                         }
-                    } else {
-                        try {
-                            if (currentPlayer != P1) {
-                                client.outputGUI.writeObject(P1_TURN);
+                        playing = false;
+                        break;
+                    case Connect4Protocol.OP_QUIT:
+                        if (displayFormat == TEXT_CONSOLE) {
+                            if (msg.getToken() == P1) {
+                                display.displayMessage(P1_QUIT);
                             } else {
-                                client.outputGUI.writeObject(P2_TURN);
+                                display.displayMessage(P2_QUIT);
                             }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            break;
+                        } else {
+                            client.bus.publish(msg);
                         }
-                    }
-                }
-            } else if (obj instanceof char[][]) {
-                gameBoard = (char[][]) obj;
-                if (displayFormat == TEXT_CONSOLE) {
-                    display.displayBoard(gameBoard);
-                } else {
-                    try {
-                        client.outputGUI.writeObject(gameBoard);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                        playing = false;
                         break;
-                    }
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                if (client.resume(currentPlayer)) {
+                    continue;
                 }
-            } else {
-                System.out.println("Not a String.");
+                e.printStackTrace();
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+                break;
             }
         }
         try {
-            if (displayFormat == GUI) {
-                client.outputGUI.close();
-                client.inputGUI.close();
-            }
             client.output.close();
             client.input.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Connects to the server and opens the binary protocol.
+     *
+     * @throws IOException the server cannot be reached or does not speak the
+     * protocol
+     */
+    private void connect() throws IOException {
+        socket = new Socket(host, port);
+        output = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream()));
+        input = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        hello(output, input);
+    }
+
+    /**
+     * Opens the binary protocol on a new connection: sends the client's hello
+     * and checks the server's answer.
+     *
+     * @param out output to the server
+     * @param in input from the server
+     * @return the protocol version the server agreed to
+     * @throws IOException the server cannot be reached or does not speak the
+     * protocol
+     */
+    static int hello(DataOutputStream out, DataInputStream in) throws IOException {
+        send(out, Connect4Protocol.clientHello());
+        Connect4Protocol.Message hello = Connect4Protocol.read(in);
+        if (hello.getOpcode() != Connect4Protocol.OP_HELLO) {
+            throw new IOException("Server did not answer the protocol");
+        }
+        return hello.getVersion();
+    }
+
+    /**
+     * Sends the opening request of a connection and reads the server's
+     * answer. A server node that redirects the client elsewhere is left for
+     * the node it names, where the request is sent again.
+     *
+     * @param frame the MODE or RESUME frame
+     * @param again the frame to send after a redirect
+     * @return the answer
+     * @throws IOException a server cannot be reached, or redirected too often
+     */
+    private Connect4Protocol.Message request(byte[] frame, byte[] again)
+            throws IOException {
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            send(output, frame);
+            Connect4Protocol.Message answer = Connect4Protocol.read(input);
+            if (answer.getOpcode() != Connect4Protocol.OP_REDIRECT) {
+                return answer;
+            }
+            socket.close();
+            host = answer.getHost();
+            port = answer.getPort();
+            connect();
+            frame = again;
+        }
+        throw new IOException("Too many redirects");
+    }
+
+    /**
+     * Reconnects after the connection dropped and takes this player's seat
+     * back. The server answers with the JOIN, which is read here, then a
+     * snapshot and the current turn, which the caller reads as usual.
+     *
+     * @param currentPlayer this player's token
+     * @return true once resumed, false if the server gave no session or the
+     * seat could not be taken back in time
+     */
+    private boolean resume(char currentPlayer) {
+        if (!resumable) {
+            return false;
+        }
+        for (int attempt = 0; attempt < RESUME_ATTEMPTS; attempt++) {
+            try {
+                socket.close();
+                Thread.sleep(RESUME_DELAY_MILLIS);
+                connect();
+                byte[] resume = Connect4Protocol.resume(currentPlayer, gameId,
+                        sessionKey);
+                if (request(resume, resume).getOpcode() == Connect4Protocol.OP_JOIN) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                return false;
+            } catch (IOException e) {
+                System.out.println("Reconnecting...");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Handles a TURN or INVALID frame. On the player's own turn the move is
+     * read from the console or the GUI and sent to the server; otherwise the
+     * player is told who is up.
+     *
+     * @param msg the frame
+     * @param currentPlayer this player's token
+     * @param mode the game mode
+     * @param displayFormat the interface in use
+     * @param display the text console
+     * @param scan Scanner instance to retrieve the user's input
+     * @return false if the player quit from the GUI
+     * @throws IOException the server cannot be reached
+     * @throws InterruptedException interrupted while waiting on the GUI
+     */
+    private boolean takeTurn(Connect4Protocol.Message msg, char currentPlayer,
+            char mode, char displayFormat, Connect4TextConsole display,
+            Scanner scan) throws IOException, InterruptedException {
+        boolean invalid = msg.getOpcode() == Connect4Protocol.OP_INVALID;
+        if (displayFormat == GUI) {
+            bus.publish(msg);
+            if (msg.getToken() != currentPlayer) {
+                return true;
+            }
+            byte[] frame = bus.nextInput();
+            send(output, frame);
+            Connect4Protocol.Message inData =
+                    Connect4Protocol.decode(ByteBuffer.wrap(frame));
+            if (inData.getOpcode() == Connect4Protocol.OP_QUIT) {
+                bus.publish(inData);
+                return false;
+            }
+            return true;
+        }
+        if (msg.getToken() == currentPlayer) {
+            if (invalid) {
+                display.invalidMove();
+            }
+            display.displayPlayerTurn(currentPlayer);
+            send(output, Connect4Protocol.play(display.getMove(scan)));
+        } else if (mode == COMPUTER) {
+            if (invalid) {
+                display.invalidMove();
+            }
+            display.displayPlayerTurn(P2);
+        } else if (currentPlayer != P1) {
+            display.displayMessage(WAIT_FOR_P1_TEXT);
+        } else {
+            display.displayMessage(WAIT_FOR_P2_TEXT);
+        }
+        return true;
+    }
+
+    /**
+     * Writes and flushes a frame.
+     *
+     * @param out the stream
+     * @param frame the frame
+     * @throws IOException the frame cannot be sent
+     */
+    static void send(DataOutputStream out, byte[] frame) throws IOException {
+        out.write(frame);
+        out.flush();
+    }
 }
@@ -8,20 +8,233 @@
  *
  * @author James Kendall Bruce
  *
- * @version 4.0
+ * @version 5.0
  *
  */
 package core;
 
-import java.util.concurrent.ThreadLocalRandom;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Basic Computer Player class with no real AI.
+ * Computer Player class backed by an alpha-beta search of the game tree.
+ *
+ * A player can search with several threads. The calling thread runs the main
+ * search while helper searches run the same position on a shared helper pool,
+ * all filling the same transposition table. The helper pool is bounded and
+ * never queues work: when every helper thread is busy the move is simply
+ * searched with fewer helpers, so computer games cannot starve the game
+ * threads of the server.
+ *
+ * Early moves are taken from an opening book when one is installed, either
+ * with setOpeningBook or through the connect4.openingBook system property
+ * naming a file written by Connect4BookGenerator.
  *
  * @author James Kendall Bruce
  */
 public class Connect4ComputerPlayer {
 
+    /**
+     * Depth limit used by the default constructor. The whole game, so that
+     * only the time budget bounds the search.
+     */
+    public static final int DEFAULT_DEPTH = Connect4Constants.ROWS
+            * Connect4Constants.COLUMNS;
+
+    /**
+     * Time budget in milliseconds used by the default constructor.
+     */
+    public static final long DEFAULT_TIME_MILLIS = 50;
+
+    /**
+     * Size in megabytes of the shared transposition table, unless overridden
+     * with the connect4.tableMegabytes system property.
+     */
+    public static final int DEFAULT_TABLE_MEGABYTES = 64;
+
+    /**
+     * Threads per search used by the shorter constructors, unless overridden
+     * with the connect4.searchThreads system property.
+     */
+    public static final int DEFAULT_THREADS = 1;
+
+    /**
+     * Transposition table shared by every computer player in the process.
+     * Created on first use.
+     */
+    private static Connect4TranspositionTable sharedTable;
+
+    /**
+     * Opening book consulted before searching, or null for none.
+     */
+    private static Connect4OpeningBook openingBook;
+
+    /**
+     * True once the connect4.openingBook property has been looked at.
+     */
+    private static boolean openingBookLoaded;
+
+    /**
+     * Pool running the helper searches of every computer player. Created on
+     * first use.
+     */
+    private static ThreadPoolExecutor helperPool;
+
+    /**
+     * Most plies the computer looks ahead.
+     */
+    private int depth;
+
+    /**
+     * Time budget per move in milliseconds, or 0 for none.
+     */
+    private long timeMillis;
+
+    /**
+     * Search engine reused for every move of this player.
+     */
+    private Connect4Search search;
+
+    /**
+     * Helper searches run next to the main one, one per extra thread.
+     */
+    private Connect4Search[] helpers;
+
+    /**
+     * Creates a computer player with the default depth and time budget.
+     */
+    public Connect4ComputerPlayer() {
+        this(DEFAULT_DEPTH, DEFAULT_TIME_MILLIS);
+    }
+
+    /**
+     * Creates a computer player with a custom depth and time budget. The
+     * search deepens one ply at a time until it reaches the depth or runs out
+     * of time, and plays the best move of the last depth it finished.
+     *
+     * @param depth most plies to look ahead, at least 1
+     * @param timeMillis time budget per move in milliseconds, or 0 for none
+     */
+    public Connect4ComputerPlayer(int depth, long timeMillis) {
+        this(depth, timeMillis, getSharedTable());
+    }
+
+    /**
+     * Creates a computer player that caches its searches in the given table
+     * instead of the shared one.
+     *
+     * @param depth most plies to look ahead, at least 1
+     * @param timeMillis time budget per move in milliseconds, or 0 for none
+     * @param table the transposition table, or null for none
+     */
+    public Connect4ComputerPlayer(int depth, long timeMillis,
+            Connect4TranspositionTable table) {
+        this(depth, timeMillis, table, Integer.getInteger(
+                "connect4.searchThreads", DEFAULT_THREADS));
+    }
+
+    /**
+     * Creates a computer player that searches each move with several threads
+     * sharing one transposition table.
+     *
+     * @param depth most plies to look ahead, at least 1
+     * @param timeMillis time budget per move in milliseconds, or 0 for none
+     * @param table the transposition table, or null for none
+     * @param threads threads per search, at least 1
+     */
+    public Connect4ComputerPlayer(int depth, long timeMillis,
+            Connect4TranspositionTable table, int threads) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Depth must be at least 1");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.depth = depth;
+        this.timeMillis = timeMillis;
+        this.search = new Connect4Search(table);
+        this.helpers = new Connect4Search[threads - 1];
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = new Connect4Search(table);
+            helpers[i].setStartDepth(2 + i % 3);
+        }
+    }
+
+    /**
+     * Gets the transposition table shared by every computer player, creating
+     * it on first use.
+     *
+     * @return the shared table
+     */
+    public static synchronized Connect4TranspositionTable getSharedTable() {
+        if (sharedTable == null) {
+            sharedTable = new Connect4TranspositionTable(Integer.getInteger(
+                    "connect4.tableMegabytes", DEFAULT_TABLE_MEGABYTES));
+        }
+        return sharedTable;
+    }
+
+    /**
+     * Gets the opening book shared by every computer player. On first use the
+     * book named by the connect4.openingBook system property is loaded, if
+     * any.
+     *
+     * @return the opening book, or null if there is none
+     */
+    public static synchronized Connect4OpeningBook getOpeningBook() {
+        if (!openingBookLoaded) {
+            openingBookLoaded = true;
+            String path = System.getProperty("connect4.openingBook");
+            if (path != null) {
+                try {
+                    openingBook = new Connect4OpeningBook(Paths.get(path));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return openingBook;
+    }
+
+    /**
+     * Installs the opening book shared by every computer player.
+     *
+     * @param book the opening book, or null to always search
+     */
+    public static synchronized void setOpeningBook(Connect4OpeningBook book) {
+        openingBook = book;
+        openingBookLoaded = true;
+    }
+
+    /**
+     * Gets the pool that runs helper searches, creating it on first use. Its
+     * size is taken from the connect4.helperThreads system property and
+     * defaults to one less than the number of cores. Idle helper threads exit
+     * after a minute.
+     *
+     * @return the helper pool
+     */
+    public static synchronized ThreadPoolExecutor getHelperPool() {
+        if (helperPool == null) {
+            int size = Integer.getInteger("connect4.helperThreads",
+                    Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+            helperPool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), r -> {
+                        Thread thread = new Thread(r, "Connect4SearchHelper");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    });
+            helperPool.allowCoreThreadTimeOut(true);
+        }
+        return helperPool;
+    }
+
     /**
      * Makes calculations for the computer player's logic.
      *
@@ -31,7 +244,118 @@ public class Connect4ComputerPlayer {
      * drop the token into
      */
     public int getMove(char[][] gameBoard) {
-        int move = ThreadLocalRandom.current().nextInt(1, 8);
-        return move;
+        return getMove(Connect4Board.fromCharArray(gameBoard));
+    }
+
+    /**
+     * Makes calculations for the computer player's logic on a board of any
+     * size. Boards that fit a single word bitboard get the full search; wider
+     * boards only get a quick look one move ahead: win if possible, otherwise
+     * the most central move that does not hand the opponent a win.
+     *
+     * @param state The game in progress.
+     * @return a value between 1 and the number of columns to decide which
+     * column the computer will drop the token into
+     */
+    public int getMove(Connect4State state) {
+        if (state instanceof Connect4Board) {
+            return getMove((Connect4Board) state);
+        }
+        return getQuickMove(state);
+    }
+
+    /**
+     * Picks a move looking just one move ahead: win if possible, otherwise
+     * the most central move that does not hand the opponent a win. Takes
+     * microseconds on any board, so it is the answer of last resort when
+     * there is no time to search.
+     *
+     * @param state The game in progress.
+     * @return a value between 1 and the number of columns to decide which
+     * column the computer will drop the token into
+     */
+    public static int getQuickMove(Connect4State state) {
+        int columns = state.getColumns();
+        int[] order = Connect4Search.moveOrder(columns);
+        for (int column : order) {
+            if (state.canPlay(column) && state.isWinningMove(column)) {
+                return column + 1;
+            }
+        }
+        int fallback = -1;
+        for (int column : order) {
+            if (!state.canPlay(column)) {
+                continue;
+            }
+            if (fallback < 0) {
+                fallback = column;
+            }
+            state.play(column);
+            boolean losing = false;
+            for (int reply = 0; reply < columns && !losing; reply++) {
+                losing = state.canPlay(reply) && state.isWinningMove(reply);
+            }
+            state.undo(column);
+            if (!losing) {
+                return column + 1;
+            }
+        }
+        return fallback + 1;
+    }
+
+    /**
+     * Makes calculations for the computer player's logic straight from the
+     * bitboard, so the game does not have to build a char[][] view.
+     *
+     * @param board The bitboard of the game in progress.
+     * @return a value between 1 and 7 to decide which column the computer will
+     * drop the token into
+     */
+    public int getMove(Connect4Board board) {
+        Connect4OpeningBook book = getOpeningBook();
+        if (book != null) {
+            int move = book.getMove(board);
+            if (move >= 0) {
+                return move + 1;
+            }
+        }
+        if (helpers.length == 0) {
+            return search.bestMove(board, depth, timeMillis) + 1;
+        }
+
+        /**
+         * Starts as many helpers as the pool has idle threads for.
+         */
+        CountDownLatch done = new CountDownLatch(helpers.length);
+        for (int i = 0; i < helpers.length; i++) {
+            Connect4Search helper = helpers[i];
+            helper.clearStop();
+            try {
+                getHelperPool().execute(() -> {
+                    try {
+                        helper.bestMove(board, depth, timeMillis);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Only the main search picks the move. The helpers are stopped and
+         * waited for so that they are free for the next move.
+         */
+        int move = search.bestMove(board, depth, timeMillis);
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i].stop();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return move + 1;
     }
 }
@@ -0,0 +1,677 @@
+/**
+ *
+ * Connect4Connection
+ *
+ * One client connection of the NIO game server.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A non-blocking client connection. Incoming bytes are decoded into the
+ * objects the client sent and handed to the server; outgoing messages are
+ * encoded into a buffer queue that the event loop writes out whenever the
+ * socket can take more. Nothing here ever blocks, so a slow or idle client
+ * only costs its buffers.
+ *
+ * The client's first bytes pick the protocol: Connect4Protocol frames for
+ * binary clients, Java serialization for old ones. Frames from a binary client
+ * are turned into the same objects an old client sends, so the server handles
+ * both alike.
+ *
+ * The send methods may be called from any thread. What they encode is added
+ * to a pending queue under the connection's lock, in the order they were
+ * called, and moved to the output by the event loop, so frames from the
+ * opponent's loop, the computer player and the connection's own loop reach
+ * the client in the order the game sent them. Everything else runs on the
+ * connection's event loop.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4Connection implements Connect4Peer, Connect4EventLoop.Handler {
+
+    /**
+     * Largest message a client may send.
+     */
+    private static final int READ_BYTES = 4096;
+
+    /**
+     * Bytes queued for every client, and per player of a game, counted when
+     * their connection closes.
+     */
+    private static final LongAdder BYTES_SENT = Connect4Metrics.counter("bytes_sent");
+    private static final Connect4Histogram GAME_BYTES =
+            Connect4Metrics.histogram("game_bytes_sent");
+
+    /**
+     * Where the connection is in its life: waiting for the game mode, waiting
+     * for an opponent, in a game, watching one, or closed.
+     */
+    public enum State {
+        HANDSHAKE, WAITING, PLAYING, WATCHING, CLOSED
+    }
+
+    /**
+     * The server the connection belongs to.
+     */
+    private final Connect4NioServer server;
+
+    /**
+     * The loop doing this connection's I/O.
+     */
+    private final Connect4EventLoop loop;
+
+    /**
+     * The client socket.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Bytes read but not yet decoded.
+     */
+    private final ByteBuffer input = ByteBuffer.allocate(READ_BYTES);
+
+    /**
+     * Decoder for the client's object stream.
+     */
+    private final Connect4ObjectDecoder decoder = new Connect4ObjectDecoder();
+
+    /**
+     * Serializer for outgoing objects to an old client, writing into bytes.
+     */
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private ObjectOutputStream encoder;
+
+    /**
+     * Set once the client's protocol is known.
+     */
+    private boolean negotiated;
+
+    /**
+     * Whether the client speaks Connect4Protocol rather than serialization.
+     */
+    private volatile boolean binary;
+
+    /**
+     * Protocol version agreed with a binary client.
+     */
+    private volatile int version;
+
+    /**
+     * Encoded messages waiting to be written, oldest first.
+     */
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+
+    /**
+     * Encoded messages sent from any thread and not yet moved to the output,
+     * oldest first. Guarded by itself, as is flushScheduled.
+     */
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+    /**
+     * Set while a flush of the pending messages is due on the loop.
+     */
+    private boolean flushScheduled;
+
+    /**
+     * Selection key of the channel, set once registered.
+     */
+    private SelectionKey key;
+
+    /**
+     * Current state.
+     */
+    private volatile State state = State.HANDSHAKE;
+
+    /**
+     * Set once the connection should close after its output has gone out.
+     */
+    private boolean closing;
+
+    /**
+     * The connection's matchmaking ticket while it waits for an opponent.
+     */
+    private Connect4Matchmaker.Ticket ticket;
+
+    /**
+     * The game the connection is playing, its token in it and its seat.
+     */
+    private Connect4 game;
+    private char player;
+    private Connect4SessionRegistry.Session session;
+
+    /**
+     * The broadcast of the game the connection is watching.
+     */
+    private Connect4Broadcast broadcast;
+
+    /**
+     * When the connection was accepted, from System.nanoTime.
+     */
+    private final long accepted = System.nanoTime();
+
+    /**
+     * Bytes queued for the client so far.
+     */
+    private long sent;
+
+    /**
+     * Creates the connection.
+     *
+     * @param server the server
+     * @param loop the loop that will do the connection's I/O
+     * @param channel the accepted client socket, non-blocking
+     */
+    public Connect4Connection(Connect4NioServer server, Connect4EventLoop loop,
+            SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+    }
+
+    /**
+     * Registers the channel with the loop's selector. Must run on the loop.
+     *
+     * @throws IOException the channel cannot be registered
+     */
+    public void register() throws IOException {
+        key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Gets the current state.
+     *
+     * @return the state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Gets the loop doing the connection's I/O.
+     *
+     * @return the loop
+     */
+    public Connect4EventLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Gets when the connection was accepted.
+     *
+     * @return the System.nanoTime of the accept
+     */
+    public long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Marks the connection as waiting for an opponent. Must run on the loop.
+     *
+     * @param ticket its matchmaking ticket
+     */
+    public void waitForOpponent(Connect4Matchmaker.Ticket ticket) {
+        this.ticket = ticket;
+        state = State.WAITING;
+    }
+
+    /**
+     * Marks the connection as a spectator. Must run on the loop.
+     *
+     * @param broadcast the broadcast of the game it watches
+     */
+    public void watch(Connect4Broadcast broadcast) {
+        this.broadcast = broadcast;
+        state = State.WATCHING;
+    }
+
+    /**
+     * Queues a frame shared with other connections. Must run on the loop.
+     *
+     * @param frame the frame, which is not modified
+     */
+    void sendShared(ByteBuffer frame) {
+        queue(frame.duplicate());
+    }
+
+    /**
+     * Gets the number of buffers waiting to be written. Must run on the loop.
+     *
+     * @return the output queue length
+     */
+    int getQueued() {
+        flush();
+        return output.size();
+    }
+
+    /**
+     * Drops the output waiting to be written, except a buffer already partly
+     * written, e.g. to skip a spectator that has fallen behind ahead. Must
+     * run on the loop.
+     */
+    void dropOutput() {
+        flush();
+        ByteBuffer head = output.peek();
+        output.clear();
+        if (head != null && head.position() > 0) {
+            output.add(head);
+        }
+    }
+
+    /**
+     * Gets the matchmaking ticket. Must run on the loop.
+     *
+     * @return the ticket, or null if the connection never waited
+     */
+    public Connect4Matchmaker.Ticket getTicket() {
+        return ticket;
+    }
+
+    /**
+     * Starts playing a game, or resumes one. A player who dropped out in the
+     * meantime is handled as if they dropped out of the game.
+     *
+     * @param session the connection's seat in the game
+     */
+    public void play(Connect4SessionRegistry.Session session) {
+        loop.execute(() -> {
+            this.session = session;
+            this.game = session.getGame();
+            this.player = session.getPlayer();
+            if (state == State.CLOSED) {
+                server.disconnected(this);
+            } else {
+                state = State.PLAYING;
+            }
+        });
+    }
+
+    /**
+     * Gets the connection's seat. Must run on the loop.
+     *
+     * @return the session, or null if not in a game
+     */
+    public Connect4SessionRegistry.Session getSession() {
+        return session;
+    }
+
+    /**
+     * Gets the game the connection plays in. Must run on the loop.
+     *
+     * @return the game, or null if not in one
+     */
+    public Connect4 getGame() {
+        return game;
+    }
+
+    /**
+     * Gets the connection's token. Must run on the loop.
+     *
+     * @return P1 or P2
+     */
+    public char getPlayer() {
+        return player;
+    }
+
+    @Override
+    public void sendJoin(char token, int port, int rows, int columns)
+            throws IOException {
+        if (binary) {
+            queue(ByteBuffer.wrap(Connect4Protocol.join(token, port, rows, columns)));
+        } else {
+            queueObject(token);
+            queueObject(port);
+        }
+    }
+
+    /**
+     * Closed connections are noticed by the event loop as they happen, so
+     * this never has to touch the socket.
+     */
+    @Override
+    public boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    /**
+     * Tells whether the client can watch games: binary clients from protocol
+     * version 5 can.
+     *
+     * @return true if the client may be made a spectator
+     */
+    public boolean canWatch() {
+        return binary && version >= 5;
+    }
+
+    /**
+     * Tells whether the client follows redirects to other server nodes:
+     * binary clients from protocol version 6 do.
+     *
+     * @return true if the client may be redirected
+     */
+    public boolean canRedirect() {
+        return binary && version >= 6;
+    }
+
+    /**
+     * Sends the client to another server node.
+     *
+     * @param host the node's host name
+     * @param port the node's port
+     */
+    public void sendRedirect(String host, int port) {
+        queue(ByteBuffer.wrap(Connect4Protocol.redirect(host, port)));
+    }
+
+    @Override
+    public boolean canResume() {
+        return binary && version >= 4;
+    }
+
+    @Override
+    public void sendSession(char token, int gameId, long key) throws IOException {
+        if (canResume()) {
+            queue(ByteBuffer.wrap(Connect4Protocol.session(token, gameId, key)));
+        }
+    }
+
+    @Override
+    public boolean needsPortGUI() {
+        return !binary || version < 3;
+    }
+
+    @Override
+    public void sendStatus(String status) throws IOException {
+        if (binary) {
+            queue(ByteBuffer.wrap(Connect4Protocol.status(status)));
+        } else {
+            queueObject(status);
+        }
+    }
+
+    @Override
+    public void sendMove(Connect4State board, int column, int row, char token)
+            throws IOException {
+        if (!binary) {
+            queueObject(board.toCharArray());
+        } else if (version < 2) {
+            queue(ByteBuffer.wrap(Connect4Protocol.move(column, row, token)));
+        } else {
+            queue(ByteBuffer.wrap(Connect4Protocol.move(column, row, token,
+                    board.getMoves())));
+        }
+    }
+
+    /**
+     * Sends the board. Old clients only get it once there is something on it,
+     * since they start from an empty board anyway, and version 1 clients
+     * cannot take snapshots at all.
+     */
+    @Override
+    public void sendSnapshot(Connect4State board) throws IOException {
+        if (!binary) {
+            if (board.getMoves() > 0) {
+                queueObject(board.toCharArray());
+            }
+        } else if (version >= 2) {
+            queue(ByteBuffer.wrap(Connect4Protocol.snapshot(board)));
+        }
+    }
+
+    /**
+     * Serializes an object for an old client and queues it. The stream is
+     * reset before each board so that the new array is written out instead
+     * of a reference to the last one. The object is queued under the same
+     * lock it is serialized under, since a later object may refer back to
+     * an earlier one and must not reach the client first.
+     *
+     * @param message the object to send
+     * @throws IOException the object cannot be serialized
+     */
+    private void queueObject(Object message) throws IOException {
+        synchronized (bytes) {
+            if (message instanceof char[][]) {
+                encoder.reset();
+            }
+            encoder.writeObject(message);
+            encoder.flush();
+            queue(ByteBuffer.wrap(bytes.toByteArray()));
+            bytes.reset();
+        }
+    }
+
+    /**
+     * Queues encoded bytes for writing. May be called from any thread. The
+     * bytes go after everything queued before them, whatever the thread; the
+     * loop is only asked to flush if it has not been already.
+     *
+     * @param buffer the bytes to send
+     */
+    private void queue(ByteBuffer buffer) {
+        synchronized (pending) {
+            pending.add(buffer);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        loop.execute(this::flush);
+    }
+
+    /**
+     * Moves the pending messages to the output, oldest first. Must run on
+     * the loop.
+     */
+    private void flush() {
+        while (true) {
+            ByteBuffer buffer;
+            synchronized (pending) {
+                buffer = pending.poll();
+                if (buffer == null) {
+                    flushScheduled = false;
+                    return;
+                }
+            }
+            enqueue(buffer);
+        }
+    }
+
+    /**
+     * Adds encoded bytes to the output. Must run on the loop.
+     *
+     * @param buffer the bytes to send
+     */
+    private void enqueue(ByteBuffer buffer) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        sent += buffer.remaining();
+        BYTES_SENT.add(buffer.remaining());
+        output.add(buffer);
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Closes the connection once the output queued before the call has been
+     * written.
+     */
+    @Override
+    public void close() {
+        loop.execute(() -> {
+            flush();
+            closing = true;
+            if (output.isEmpty()) {
+                closeNow();
+            }
+        });
+    }
+
+    /**
+     * Reads or writes as the selector reports the channel ready.
+     *
+     * @param key the selected key
+     */
+    @Override
+    public void ready(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Reads what has arrived and hands every complete object to the server.
+     *
+     * @throws IOException the client is gone or sent something not understood
+     */
+    private void read() throws IOException {
+        if (channel.read(input) < 0) {
+            closeNow();
+            return;
+        }
+        input.flip();
+        if (!negotiated && !negotiate()) {
+            input.compact();
+            return;
+        }
+        while (state != State.CLOSED && input.hasRemaining()) {
+            Object obj;
+            if (binary) {
+                Connect4Protocol.Message message = Connect4Protocol.decode(input);
+                if (message == null) {
+                    break;
+                }
+                obj = message.toInput();
+                if (obj == null) {
+                    continue;
+                }
+            } else {
+                obj = decoder.decode(input);
+                if (obj == null) {
+                    break;
+                }
+            }
+            if (state == State.HANDSHAKE) {
+                server.handshake(this, obj);
+            } else if (state == State.PLAYING) {
+                server.play(game, player, obj);
+            } else if (obj instanceof String) {
+                closeNow();
+            }
+        }
+        if (!input.hasRemaining()) {
+            input.clear();
+        } else if (input.position() == 0 && input.limit() == input.capacity()) {
+            throw new IOException("Message too long");
+        } else {
+            input.compact();
+        }
+    }
+
+    /**
+     * Picks the protocol from the client's opening bytes and answers it: the
+     * serialization stream header for an old client, a HELLO frame for a
+     * binary one.
+     *
+     * @return true once negotiated, false if more bytes are needed
+     * @throws IOException the client speaks neither protocol
+     */
+    private boolean negotiate() throws IOException {
+        if (input.remaining() < Connect4Protocol.LENGTH_BYTES) {
+            return false;
+        }
+        short magic = input.getShort(input.position());
+        if (magic == Connect4Protocol.SERIALIZATION_MAGIC) {
+            encoder = new ObjectOutputStream(bytes);
+            encoder.flush();
+            queue(ByteBuffer.wrap(bytes.toByteArray()));
+            bytes.reset();
+        } else if (magic == Connect4Protocol.MAGIC) {
+            if (input.remaining() < Connect4Protocol.HELLO_BYTES) {
+                return false;
+            }
+            input.getShort();
+            int offered = input.get() & 0xFF;
+            if (offered < 1) {
+                throw new IOException("Bad protocol version " + offered);
+            }
+            version = Math.min(offered, Connect4Protocol.VERSION);
+            binary = true;
+            queue(ByteBuffer.wrap(Connect4Protocol.hello(version)));
+        } else {
+            throw new IOException("Unknown protocol");
+        }
+        negotiated = true;
+        return true;
+    }
+
+    /**
+     * Writes queued output until the socket is full or the queue is empty.
+     *
+     * @throws IOException the client is gone
+     */
+    private void write() throws IOException {
+        while (!output.isEmpty()) {
+            ByteBuffer buffer = output.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            output.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if (closing) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Closes the channel right away. The server decides what becomes of the
+     * game of a player who drops out of one.
+     */
+    private void closeNow() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        State last = state;
+        state = State.CLOSED;
+        output.clear();
+        synchronized (pending) {
+            pending.clear();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (game != null) {
+            GAME_BYTES.record(sent);
+        }
+        if (broadcast != null) {
+            broadcast.remove(this);
+        }
+        if (last == State.PLAYING) {
+            server.disconnected(this);
+        }
+        server.closed(this, last);
+    }
+}
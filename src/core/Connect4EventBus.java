@@ -0,0 +1,87 @@
+/**
+ *
+ * Connect4EventBus
+ *
+ * In-process link between the client's network reader and its GUI.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands messages between Connect4Client and Connect4GUI running in the same
+ * process, replacing the loopback socket they used to talk over. Frames from
+ * the server go to the GUI already decoded, and the GUI's moves come back as
+ * frames ready to send on, so nothing is encoded twice and no port is needed.
+ *
+ * Both directions are bounded queues; a side that gets far ahead of the other
+ * blocks rather than piling up messages.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4EventBus {
+
+    /**
+     * Messages each direction holds before the sender blocks. A game never
+     * has more than a board's worth of moves in flight.
+     */
+    private static final int CAPACITY = 64;
+
+    /**
+     * Messages from the server on their way to the GUI.
+     */
+    private final BlockingQueue<Connect4Protocol.Message> toView =
+            new ArrayBlockingQueue<>(CAPACITY);
+
+    /**
+     * Frames from the GUI on their way to the server.
+     */
+    private final BlockingQueue<byte[]> fromView =
+            new ArrayBlockingQueue<>(CAPACITY);
+
+    /**
+     * Passes a message from the server on to the GUI.
+     *
+     * @param msg the message
+     * @throws InterruptedException interrupted while the queue was full
+     */
+    public void publish(Connect4Protocol.Message msg) throws InterruptedException {
+        toView.put(msg);
+    }
+
+    /**
+     * Blocks until there is a message for the GUI.
+     *
+     * @return the next message from the server
+     * @throws InterruptedException interrupted while waiting
+     */
+    public Connect4Protocol.Message nextMessage() throws InterruptedException {
+        return toView.take();
+    }
+
+    /**
+     * Passes a frame from the GUI on to the client.
+     *
+     * @param frame a PLAY or QUIT frame
+     * @throws InterruptedException interrupted while the queue was full
+     */
+    public void submit(byte[] frame) throws InterruptedException {
+        fromView.put(frame);
+    }
+
+    /**
+     * Blocks until the GUI sends something.
+     *
+     * @return the next frame from the GUI
+     * @throws InterruptedException interrupted while waiting
+     */
+    public byte[] nextInput() throws InterruptedException {
+        return fromView.take();
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ *
+ * Connect4EventLoop
+ *
+ * Selector thread of the NIO game server.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs one selector on its own thread. Every connection belongs to exactly one
+ * loop, which does all of its reads and writes. Other threads hand work to the
+ * loop with execute, which wakes the selector up.
+ *
+ * The loop ends once it has been shut down and its last connection has
+ * closed, so games in progress are played out.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4EventLoop implements Runnable {
+
+    /**
+     * How long select may block before the loop checks for shutdown.
+     */
+    private static final long SELECT_MILLIS = 1000;
+
+    /**
+     * The selector of this loop.
+     */
+    private final Selector selector;
+
+    /**
+     * Work handed over by other threads.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The thread running the loop.
+     */
+    private final Thread thread;
+
+    /**
+     * Set when the loop should stop once its connections are gone.
+     */
+    private volatile boolean shutdown;
+
+    /**
+     * Opens the selector and creates the loop thread, which still has to be
+     * started.
+     *
+     * @param name name of the loop thread
+     * @throws IOException the selector cannot be opened
+     */
+    public Connect4EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+    }
+
+    /**
+     * Starts the loop thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Gets the selector, for registering channels from the loop thread.
+     *
+     * @return the selector
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Checks whether the caller is the loop thread.
+     *
+     * @return true on the loop thread
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs a task on the loop thread, right away if already on it.
+     *
+     * @param task the work to do
+     */
+    public void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Lets the loop end once all of its connections have closed.
+     */
+    public void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Closes every client connection of the loop once its output has gone
+     * out.
+     */
+    public void closeConnections() {
+        execute(() -> {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connect4Connection) {
+                    ((Connect4Connection) key.attachment()).close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the loop to end after a shutdown.
+     *
+     * @param millis longest time to wait
+     * @return true if the loop has ended
+     * @throws InterruptedException interrupted while waiting
+     */
+    public boolean awaitTermination(long millis) throws InterruptedException {
+        thread.join(millis);
+        return !thread.isAlive();
+    }
+
+    /**
+     * Selects and dispatches ready keys to their handlers until shut down.
+     */
+    @Override
+    public void run() {
+        while (!shutdown || !selector.keys().isEmpty() || !tasks.isEmpty()) {
+            try {
+                selector.select(SELECT_MILLIS);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    ((Handler) key.attachment()).ready(key);
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Something registered with the selector, attached to its key.
+     */
+    public interface Handler {
+
+        /**
+         * Handles a key selected as ready.
+         *
+         * @param key the selected key
+         */
+        void ready(SelectionKey key);
+    }
+}
@@ -0,0 +1,718 @@
+/**
+ *
+ * Connect4GameArchive
+ *
+ * Memory-mapped archive of finished games, indexed for replay.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Finished games, compacted from the Connect4MoveJournal into a directory of
+ * immutable segment files. Each segment is memory-mapped and carries two
+ * sorted indexes, one by game id and one by player id, so a lookup is a
+ * binary search per segment and only the records asked for are decoded.
+ * Moves are packed two to a byte, so a full game on the standard board takes
+ * 21 bytes of moves.
+ *
+ * Segment file layout, big endian:
+ *
+ * <pre>
+ * header, 24 bytes:
+ *   int  magic        "C4GA"
+ *   byte version
+ *   3 bytes reserved
+ *   int  count        number of games
+ *   int  gameIndex    offset of the game index
+ *   int  playerIndex  offset of the player index
+ *   4 bytes reserved
+ * games, GAME_HEADER_BYTES each plus their moves:
+ *   int   id
+ *   byte  rows
+ *   byte  columns
+ *   byte  connect
+ *   byte  outcome     winning state, ONGOING if a player left
+ *   long  p1          player ids
+ *   long  p2
+ *   long  started     milliseconds since the epoch
+ *   long  ended
+ *   short moves       number of moves
+ *   moves, zero based columns, high nibble first, or one per byte on boards
+ *   wider than 16 columns
+ * game index, 8 bytes per game, sorted by id:
+ *   int  id
+ *   int  offset       of the game
+ * player index, 16 bytes per player of each game, sorted by player then id:
+ *   long player
+ *   int  id
+ *   int  offset
+ * </pre>
+ *
+ * Segments are written whole to a temporary file and renamed into place, so
+ * a crash never leaves half a segment behind. Lookups may run on any number
+ * of threads while segments are being added.
+ *
+ * Usage: java core.Connect4GameArchive directory [gameId | -p playerId]
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4GameArchive extends Connect4Constants {
+
+    /**
+     * File format constants.
+     */
+    public static final int MAGIC = 0x43344741;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 24;
+    public static final int GAME_HEADER_BYTES = 42;
+    public static final int GAME_INDEX_BYTES = 8;
+    public static final int PLAYER_INDEX_BYTES = 16;
+
+    /**
+     * Player id of a player who did not identify themselves.
+     */
+    public static final long ANONYMOUS = 0;
+
+    /**
+     * Player id of the computer.
+     */
+    public static final long COMPUTER = -1;
+
+    /**
+     * File name of segments, by segment number.
+     */
+    private static final String SEGMENT_FORMAT = "games-%08d.archive";
+
+    /**
+     * A finished game.
+     */
+    public static class Game {
+
+        /**
+         * The game id.
+         */
+        private final int id;
+
+        /**
+         * Player ids of P1 and P2.
+         */
+        private final long p1;
+        private final long p2;
+
+        /**
+         * Board geometry.
+         */
+        private final int rows;
+        private final int columns;
+        private final int connect;
+
+        /**
+         * Winning state, ONGOING if a player left.
+         */
+        private final int outcome;
+
+        /**
+         * When the game started and ended, in milliseconds since the epoch.
+         */
+        private final long started;
+        private final long ended;
+
+        /**
+         * Zero based columns of the moves, in order.
+         */
+        private final byte[] moves;
+
+        /**
+         * Creates a game.
+         *
+         * @param id the game id
+         * @param p1 P1's player id
+         * @param p2 P2's player id
+         * @param rows number of rows
+         * @param columns number of columns
+         * @param connect tokens in a row needed to win
+         * @param outcome winning state, ONGOING if a player left
+         * @param started when the game started
+         * @param ended when the game ended
+         * @param moves zero based columns of the moves, in order
+         */
+        public Game(int id, long p1, long p2, int rows, int columns, int connect,
+                int outcome, long started, long ended, byte[] moves) {
+            this.id = id;
+            this.p1 = p1;
+            this.p2 = p2;
+            this.rows = rows;
+            this.columns = columns;
+            this.connect = connect;
+            this.outcome = outcome;
+            this.started = started;
+            this.ended = ended;
+            this.moves = moves;
+        }
+
+        /**
+         * Gets the game id.
+         *
+         * @return the id
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Gets a player's id.
+         *
+         * @param player P1 or P2
+         * @return the player id, ANONYMOUS or COMPUTER
+         */
+        public long getPlayerId(char player) {
+            return player == P1 ? p1 : p2;
+        }
+
+        /**
+         * Gets the number of rows of the board.
+         *
+         * @return the rows
+         */
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * Gets the number of columns of the board.
+         *
+         * @return the columns
+         */
+        public int getColumns() {
+            return columns;
+        }
+
+        /**
+         * Gets the number of tokens in a row needed to win.
+         *
+         * @return the connect length
+         */
+        public int getConnect() {
+            return connect;
+        }
+
+        /**
+         * Gets the winning state of the game.
+         *
+         * @return P1_WINNER, P2_WINNER, TIE_GAME, or ONGOING if a player left
+         */
+        public int getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * Gets when the game started.
+         *
+         * @return milliseconds since the epoch
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * Gets when the game ended.
+         *
+         * @return milliseconds since the epoch
+         */
+        public long getEnded() {
+            return ended;
+        }
+
+        /**
+         * Gets the moves.
+         *
+         * @return zero based columns, in the order played
+         */
+        public byte[] getMoves() {
+            return moves.clone();
+        }
+
+        /**
+         * Replays the game as game states.
+         *
+         * @return the state before the first move, then after every move
+         */
+        public Connect4State[] replay() {
+            Connect4State[] states = new Connect4State[moves.length + 1];
+            Connect4State state = Connect4State.create(rows, columns, connect);
+            states[0] = state.copy();
+            for (int i = 0; i < moves.length; i++) {
+                state.play(moves[i]);
+                states[i + 1] = state.copy();
+            }
+            return states;
+        }
+
+        /**
+         * Replays the game as the boards the players saw.
+         *
+         * @return the board before the first move, then after every move
+         */
+        public List<char[][]> replayBoards() {
+            List<char[][]> boards = new ArrayList<>(moves.length + 1);
+            Connect4State state = Connect4State.create(rows, columns, connect);
+            boards.add(state.toCharArray());
+            for (byte move : moves) {
+                state.play(move);
+                boards.add(state.toCharArray());
+            }
+            return boards;
+        }
+
+        /**
+         * Gets the size of the game's record.
+         *
+         * @return bytes taken in a segment
+         */
+        private int recordBytes() {
+            if (columns > 16) {
+                return GAME_HEADER_BYTES + moves.length;
+            }
+            return GAME_HEADER_BYTES + (moves.length + 1) / 2;
+        }
+
+        /**
+         * Writes the game's record.
+         *
+         * @param out the buffer, written at its position
+         */
+        private void write(ByteBuffer out) {
+            out.putInt(id).put((byte) rows).put((byte) columns)
+                    .put((byte) connect).put((byte) outcome).putLong(p1)
+                    .putLong(p2).putLong(started).putLong(ended)
+                    .putShort((short) moves.length);
+            if (columns > 16) {
+                out.put(moves);
+                return;
+            }
+            for (int i = 0; i < moves.length; i += 2) {
+                int low = i + 1 < moves.length ? moves[i + 1] : 0;
+                out.put((byte) (moves[i] << 4 | low));
+            }
+        }
+
+        /**
+         * Decodes a game's record.
+         *
+         * @param buffer the segment
+         * @param offset offset of the record
+         * @return the game
+         */
+        private static Game read(ByteBuffer buffer, int offset) {
+            int columns = buffer.get(offset + 5);
+            byte[] moves = new byte[buffer.getShort(offset + 40) & 0xFFFF];
+            int at = offset + GAME_HEADER_BYTES;
+            if (columns > 16) {
+                for (int i = 0; i < moves.length; i++) {
+                    moves[i] = buffer.get(at + i);
+                }
+            } else {
+                for (int i = 0; i < moves.length; i++) {
+                    int packed = buffer.get(at + i / 2);
+                    moves[i] = (byte) ((i & 1) == 0 ? packed >> 4 & 0xF : packed & 0xF);
+                }
+            }
+            return new Game(buffer.getInt(offset), buffer.getLong(offset + 8),
+                    buffer.getLong(offset + 16), buffer.get(offset + 4), columns,
+                    buffer.get(offset + 6), buffer.get(offset + 7),
+                    buffer.getLong(offset + 24), buffer.getLong(offset + 32), moves);
+        }
+    }
+
+    /**
+     * A mapped segment.
+     */
+    private static class Segment {
+
+        /**
+         * The mapped file.
+         */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Number of games, and where the indexes start.
+         */
+        private final int count;
+        private final int gameIndex;
+        private final int playerIndex;
+
+        /**
+         * Maps a segment file.
+         *
+         * @param path the segment
+         * @throws IOException the file cannot be read or is not a segment
+         */
+        private Segment(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                    throw new IOException("Not a game archive: " + path);
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            if (buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+                throw new IOException("Not a game archive: " + path);
+            }
+            count = buffer.getInt(8);
+            gameIndex = buffer.getInt(12);
+            playerIndex = buffer.getInt(16);
+            if (playerIndex + 2L * count * PLAYER_INDEX_BYTES != buffer.capacity()) {
+                throw new IOException("Truncated game archive: " + path);
+            }
+        }
+
+        /**
+         * Binary search of the game index.
+         *
+         * @param id the game id
+         * @return offset of the game, or -1 if it is not here
+         */
+        private int find(int id) {
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int k = buffer.getInt(gameIndex + mid * GAME_INDEX_BYTES);
+                if (k < id) {
+                    lo = mid + 1;
+                } else if (k > id) {
+                    hi = mid - 1;
+                } else {
+                    return buffer.getInt(gameIndex + mid * GAME_INDEX_BYTES + 4);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Collects the games of a player, by a binary search for the first
+         * entry of the player index and a walk from there.
+         *
+         * @param player the player id
+         * @param games where the games go
+         */
+        private void findPlayer(long player, List<Game> games) {
+            int lo = 0;
+            int hi = 2 * count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (buffer.getLong(playerIndex + mid * PLAYER_INDEX_BYTES) < player) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            for (int i = lo; i < 2 * count; i++) {
+                int at = playerIndex + i * PLAYER_INDEX_BYTES;
+                if (buffer.getLong(at) != player) {
+                    break;
+                }
+                games.add(Game.read(buffer, buffer.getInt(at + 12)));
+            }
+        }
+    }
+
+    /**
+     * The archive directory.
+     */
+    private final Path directory;
+
+    /**
+     * The segments, oldest first.
+     */
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    /**
+     * Number of the newest segment.
+     */
+    private long last;
+
+    /**
+     * Opens an archive, mapping every segment in it.
+     *
+     * @param directory the archive directory, created if missing
+     * @throws IOException a segment cannot be read
+     */
+    public Connect4GameArchive(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> list = Files.newDirectoryStream(directory,
+                "games-*.archive")) {
+            for (Path file : list) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(6,
+                            name.length() - 8)), file);
+                } catch (NumberFormatException e) {
+                    /**
+                     * Not one of ours.
+                     */
+                }
+            }
+        }
+        for (Path file : files.values()) {
+            segments.add(new Segment(file));
+        }
+        if (!files.isEmpty()) {
+            last = files.lastKey();
+        }
+    }
+
+    /**
+     * Adds games to the archive as a new segment. Returns once the segment
+     * is on disk.
+     *
+     * @param games the games, which must not be in the archive already
+     * @throws IOException the segment cannot be written
+     */
+    public synchronized void write(List<Game> games) throws IOException {
+        if (games.isEmpty()) {
+            return;
+        }
+        int count = games.size();
+        long dataBytes = 0;
+        for (Game game : games) {
+            dataBytes += game.recordBytes();
+        }
+        long size = HEADER_BYTES + dataBytes + (long) count * GAME_INDEX_BYTES
+                + 2L * count * PLAYER_INDEX_BYTES;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too many games for one segment: " + count);
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        int gameIndex = (int) (HEADER_BYTES + dataBytes);
+        int playerIndex = gameIndex + count * GAME_INDEX_BYTES;
+        out.putInt(MAGIC).put((byte) VERSION).put((byte) 0).put((byte) 0)
+                .put((byte) 0).putInt(count).putInt(gameIndex).putInt(playerIndex)
+                .putInt(0);
+
+        /**
+         * Games in the order given, remembering where each went.
+         */
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = out.position();
+            games.get(i).write(out);
+        }
+
+        /**
+         * Game index, sorted by id.
+         */
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> games.get(i).id));
+        for (int i : order) {
+            out.putInt(games.get(i).id).putInt(offsets[i]);
+        }
+
+        /**
+         * Player index, one entry for each side of each game, sorted by
+         * player then by id.
+         */
+        Integer[] sides = new Integer[2 * count];
+        for (int i = 0; i < sides.length; i++) {
+            sides[i] = i;
+        }
+        Arrays.sort(sides, Comparator.comparingLong((Integer s) -> player(games, s))
+                .thenComparingInt(s -> games.get(s / 2).id));
+        for (int s : sides) {
+            out.putLong(player(games, s)).putInt(games.get(s / 2).id)
+                    .putInt(offsets[s / 2]);
+        }
+
+        /**
+         * Written under a temporary name and renamed, so the segment appears
+         * whole or not at all.
+         */
+        out.flip();
+        Path file = directory.resolve(String.format(SEGMENT_FORMAT, last + 1));
+        Path temp = directory.resolve(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        last++;
+        segments.add(new Segment(file));
+    }
+
+    /**
+     * Gets the player on one side of a game.
+     *
+     * @param games the games
+     * @param side twice the game's index, plus 1 for P2
+     * @return the player id
+     */
+    private static long player(List<Game> games, int side) {
+        Game game = games.get(side / 2);
+        return (side & 1) == 0 ? game.p1 : game.p2;
+    }
+
+    /**
+     * Looks up a game.
+     *
+     * @param id the game id
+     * @return the game, or null if it is not archived
+     */
+    public Game find(int id) {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            int offset = segment.find(id);
+            if (offset >= 0) {
+                return Game.read(segment.buffer, offset);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a game is archived, without decoding it.
+     *
+     * @param id the game id
+     * @return true if it is
+     */
+    public boolean contains(int id) {
+        for (Segment segment : segments) {
+            if (segment.find(id) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks up the games of a player.
+     *
+     * @param player the player id, COMPUTER for every game against the
+     * computer
+     * @return the player's games, oldest segment first and by id within one
+     */
+    public List<Game> findByPlayer(long player) {
+        List<Game> games = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.findPlayer(player, games);
+        }
+        return games;
+    }
+
+    /**
+     * Decodes every game in the archive in turn, e.g. for analysis. Only one
+     * game is held at a time.
+     *
+     * @param action called with each game
+     */
+    public void scan(Consumer<Game> action) {
+        for (Segment segment : segments) {
+            for (int i = 0; i < segment.count; i++) {
+                action.accept(Game.read(segment.buffer, segment.buffer.getInt(
+                        segment.gameIndex + i * GAME_INDEX_BYTES + 4)));
+            }
+        }
+    }
+
+    /**
+     * Gets the highest archived game id.
+     *
+     * @return the id, or 0 if the archive is empty
+     */
+    public int getMaxGameId() {
+        int max = 0;
+        for (Segment segment : segments) {
+            if (segment.count > 0) {
+                max = Math.max(max, segment.buffer.getInt(segment.gameIndex
+                        + (segment.count - 1) * GAME_INDEX_BYTES));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Gets the number of archived games.
+     *
+     * @return the game count
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    /**
+     * Prints an archived game move by move, or lists a player's games.
+     *
+     * @param args archive directory, then a game id or -p and a player id;
+     * with neither, the number of games is printed
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java core.Connect4GameArchive directory "
+                    + "[gameId | -p playerId]");
+            return;
+        }
+        try {
+            Connect4GameArchive archive = new Connect4GameArchive(Paths.get(args[0]));
+            if (args.length == 1) {
+                System.out.println("Games: " + archive.size());
+            } else if (args[1].equals("-p")) {
+                for (Game game : archive.findByPlayer(Long.parseLong(args[2]))) {
+                    System.out.println("Game " + game.getId() + ": "
+                            + game.moves.length + " moves, outcome "
+                            + game.getOutcome());
+                }
+            } else {
+                Game game = archive.find(Integer.parseInt(args[1]));
+                if (game == null) {
+                    System.out.println("No such game");
+                    return;
+                }
+                List<char[][]> boards = game.replayBoards();
+                for (int i = 1; i < boards.size(); i++) {
+                    System.out.println("Move " + i + ": column "
+                            + (game.moves[i - 1] + 1));
+                    char[][] board = boards.get(i);
+                    for (int r = board.length - 1; r >= 0; r--) {
+                        System.out.println("|" + new String(board[r]) + "|");
+                    }
+                }
+                System.out.println("Outcome " + game.getOutcome());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,568 @@
+/**
+ *
+ * Connect4GameDirectory
+ *
+ * Shared directory of the server nodes and the games each one runs.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Lets several Connect4NioServer nodes, on one host or many, act as one
+ * server. Every node publishes a record to a shared Store once per heartbeat:
+ * its address, its load (open connections) and the ids of the games it is
+ * running. Every node reads all the records back at the same time, so it
+ * knows which node owns any game and how busy each node is, at most a
+ * heartbeat or so out of date. A node that stops publishing drops out after
+ * EXPIRY_MILLIS. That is measured on this node's clock, from when its record
+ * was last seen to change, so the nodes' clocks need not agree.
+ *
+ * With that a node can send clients elsewhere: one resuming or watching a
+ * game another node owns goes to that node, and a new player goes to the
+ * least loaded node when this one is busier by more than REDIRECT_MARGIN.
+ * Players redirected since the last heartbeat are added to the target's load,
+ * so a busy node does not send everyone to the same place before the
+ * target's next record comes in.
+ *
+ * Game ids must be unique across nodes, see Connect4.partitionIds. Nodes in
+ * separate processes share a FileStore in a directory they can all reach;
+ * nodes in one process, e.g. in tests, can share a MemoryStore, and get unique
+ * ids from the process wide counter anyway.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4GameDirectory {
+
+    /**
+     * Largest number of nodes, and so the stride of partitioned game ids.
+     */
+    public static final int MAX_NODES = 64;
+
+    /**
+     * How often a node publishes its record and reads the others'.
+     */
+    public static final long HEARTBEAT_MILLIS = 1000;
+
+    /**
+     * Time after which a node whose record has not changed is ignored.
+     */
+    public static final long EXPIRY_MILLIS = 5000;
+
+    /**
+     * How many more connections this node must have than another before new
+     * players are sent there.
+     */
+    public static final int REDIRECT_MARGIN = 50;
+
+    /**
+     * What one node publishes about itself.
+     */
+    public static class Node {
+
+        /**
+         * Number of the node, below MAX_NODES.
+         */
+        private final int id;
+
+        /**
+         * Where clients reach it.
+         */
+        private final String host;
+        private final int port;
+
+        /**
+         * Its open connections when published.
+         */
+        private final int load;
+
+        /**
+         * When it was published, in milliseconds since the epoch on the
+         * node's own clock.
+         */
+        private final long time;
+
+        /**
+         * Ids of the games it runs.
+         */
+        private final int[] games;
+
+        /**
+         * Creates a record.
+         *
+         * @param id number of the node
+         * @param host host name clients connect to
+         * @param port port clients connect to
+         * @param load open connections
+         * @param time when published
+         * @param games ids of its games
+         */
+        public Node(int id, String host, int port, int load, long time, int[] games) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+            this.load = load;
+            this.time = time;
+            this.games = games;
+        }
+
+        /**
+         * Gets the number of the node.
+         *
+         * @return the node id
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Gets the host name clients connect to.
+         *
+         * @return the host
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * Gets the port clients connect to.
+         *
+         * @return the port
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * Gets the open connections of the node when published.
+         *
+         * @return the load
+         */
+        public int getLoad() {
+            return load;
+        }
+
+        /**
+         * Gets when the record was published.
+         *
+         * @return milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Gets the ids of the node's games.
+         *
+         * @return the game ids, which must not be modified
+         */
+        public int[] getGames() {
+            return games;
+        }
+
+        @Override
+        public String toString() {
+            return "node " + id + " at " + host + ":" + port + ", load " + load
+                    + ", " + games.length + " games";
+        }
+    }
+
+    /**
+     * Where the records are kept.
+     */
+    public interface Store {
+
+        /**
+         * Publishes a node's record, replacing its last one.
+         *
+         * @param node the record
+         * @throws IOException the record cannot be written
+         */
+        void publish(Node node) throws IOException;
+
+        /**
+         * Reads every node's latest record.
+         *
+         * @return the records
+         * @throws IOException the records cannot be read
+         */
+        List<Node> read() throws IOException;
+
+        /**
+         * Takes a node's record away, e.g. when it shuts down.
+         *
+         * @param id the node
+         * @throws IOException the record cannot be removed
+         */
+        void remove(int id) throws IOException;
+    }
+
+    /**
+     * Store for nodes running in one process.
+     */
+    public static class MemoryStore implements Store {
+
+        /**
+         * The records, by node.
+         */
+        private final Map<Integer, Node> nodes = new ConcurrentHashMap<>();
+
+        @Override
+        public void publish(Node node) {
+            nodes.put(node.getId(), node);
+        }
+
+        @Override
+        public List<Node> read() {
+            return new ArrayList<>(nodes.values());
+        }
+
+        @Override
+        public void remove(int id) {
+            nodes.remove(id);
+        }
+    }
+
+    /**
+     * Store in a directory shared by the nodes, one small file per node. A
+     * record is written under a temporary name and renamed over the old one,
+     * so readers never see half of it.
+     */
+    public static class FileStore implements Store {
+
+        /**
+         * Name of a node's file, from its number.
+         */
+        private static final String FILE_FORMAT = "node-%02d.dir";
+
+        /**
+         * The shared directory.
+         */
+        private final Path directory;
+
+        /**
+         * Opens a store, creating the directory if needed.
+         *
+         * @param directory the shared directory
+         * @throws IOException the directory cannot be created
+         */
+        public FileStore(Path directory) throws IOException {
+            this.directory = directory;
+            Files.createDirectories(directory);
+        }
+
+        @Override
+        public void publish(Node node) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    32 + 4 * node.getGames().length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(node.getId());
+            out.writeUTF(node.getHost());
+            out.writeShort(node.getPort());
+            out.writeInt(node.getLoad());
+            out.writeLong(node.getTime());
+            out.writeInt(node.getGames().length);
+            for (int game : node.getGames()) {
+                out.writeInt(game);
+            }
+            Path file = directory.resolve(String.format(FILE_FORMAT, node.getId()));
+            Path temp = directory.resolve(file.getFileName() + ".tmp");
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        public List<Node> read() throws IOException {
+            List<Node> nodes = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                    "node-*.dir")) {
+                for (Path file : files) {
+                    try {
+                        nodes.add(read(Files.readAllBytes(file)));
+                    } catch (IOException e) {
+                        /**
+                         * A node that has just shut down takes its file
+                         * away; it is simply left out.
+                         */
+                    }
+                }
+            }
+            return nodes;
+        }
+
+        /**
+         * Decodes one record.
+         *
+         * @param bytes the file's contents
+         * @return the record
+         * @throws IOException the record is cut short
+         */
+        private static Node read(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int id = in.readInt();
+            String host = in.readUTF();
+            int port = in.readUnsignedShort();
+            int load = in.readInt();
+            long time = in.readLong();
+            int[] games = new int[in.readInt()];
+            for (int i = 0; i < games.length; i++) {
+                games[i] = in.readInt();
+            }
+            return new Node(id, host, port, load, time, games);
+        }
+
+        @Override
+        public void remove(int id) throws IOException {
+            Files.deleteIfExists(directory.resolve(String.format(FILE_FORMAT, id)));
+        }
+    }
+
+    /**
+     * Where the records are kept.
+     */
+    private final Store store;
+
+    /**
+     * This node's number and address.
+     */
+    private final int id;
+    private final String host;
+    private final int port;
+
+    /**
+     * This node's open connections and game ids, set by start.
+     */
+    private IntSupplier load;
+    private Supplier<int[]> games;
+
+    /**
+     * The other live nodes, and which of them owns each of their games, as
+     * of the last heartbeat.
+     */
+    private volatile List<Node> others = new ArrayList<>();
+    private volatile Map<Integer, Node> owners = new HashMap<>();
+
+    /**
+     * Players redirected to each node since the last heartbeat.
+     */
+    private final Map<Integer, Integer> redirected = new HashMap<>();
+
+    /**
+     * The publishing time of each node's last record, and when, in
+     * nanoseconds on this node's clock, it was first seen. Only used by
+     * heartbeat.
+     */
+    private Map<Integer, Long> published = new HashMap<>();
+    private Map<Integer, Long> changed = new HashMap<>();
+
+    /**
+     * This node's clock for expiring records, in nanoseconds.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Runs the heartbeats.
+     */
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Connect4Directory");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Creates this node's view of the directory.
+     *
+     * @param store where the records are kept
+     * @param id number of this node, below MAX_NODES
+     * @param host host name clients reach this node at
+     * @param port port clients reach this node at
+     * @throws IllegalArgumentException the node number is out of range
+     */
+    public Connect4GameDirectory(Store store, int id, String host, int port) {
+        this(store, id, host, port, System::nanoTime);
+    }
+
+    /**
+     * Creates this node's view of the directory, expiring records by the
+     * given clock, e.g. one a test moves on by hand.
+     *
+     * @param store where the records are kept
+     * @param id number of this node, below MAX_NODES
+     * @param host host name clients reach this node at
+     * @param port port clients reach this node at
+     * @param clock reads the time in nanoseconds
+     * @throws IllegalArgumentException the node number is out of range
+     */
+    Connect4GameDirectory(Store store, int id, String host, int port,
+            LongSupplier clock) {
+        if (id < 0 || id >= MAX_NODES) {
+            throw new IllegalArgumentException("Node must be below " + MAX_NODES);
+        }
+        this.store = store;
+        this.id = id;
+        this.host = host;
+        this.port = port;
+        this.clock = clock;
+    }
+
+    /**
+     * Starts publishing this node's record every heartbeat, the first one
+     * straight away.
+     *
+     * @param load reads this node's open connections
+     * @param games reads the ids of this node's games
+     */
+    public void start(IntSupplier load, Supplier<int[]> games) {
+        track(load, games);
+        scheduler.scheduleWithFixedDelay(this::heartbeat, 0, HEARTBEAT_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets where this node's record comes from, without starting the
+     * heartbeats, e.g. for a test to run them by hand.
+     *
+     * @param load reads this node's open connections
+     * @param games reads the ids of this node's games
+     */
+    void track(IntSupplier load, Supplier<int[]> games) {
+        this.load = load;
+        this.games = games;
+    }
+
+    /**
+     * Stops the heartbeats and takes this node's record away, so no more
+     * clients are sent here.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            store.remove(id);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Publishes this node's record and reads the others'. The publishing
+     * time in a record comes from another host's clock, so it is only
+     * compared with the node's last one, to tell whether the node is still
+     * publishing; how long ago it last changed is measured here.
+     */
+    synchronized void heartbeat() {
+        try {
+            store.publish(new Node(id, host, port, load.getAsInt(),
+                    System.currentTimeMillis(), games.get()));
+            long now = clock.getAsLong();
+            List<Node> live = new ArrayList<>();
+            Map<Integer, Node> games = new HashMap<>();
+            Map<Integer, Long> times = new HashMap<>();
+            Map<Integer, Long> seen = new HashMap<>();
+            for (Node node : store.read()) {
+                if (node.getId() == id) {
+                    continue;
+                }
+                Long last = published.get(node.getId());
+                long since = last != null && last == node.getTime()
+                        ? changed.get(node.getId()) : now;
+                times.put(node.getId(), node.getTime());
+                seen.put(node.getId(), since);
+                if (now - since > TimeUnit.MILLISECONDS.toNanos(EXPIRY_MILLIS)) {
+                    continue;
+                }
+                live.add(node);
+                for (int game : node.getGames()) {
+                    games.put(game, node);
+                }
+            }
+            published = times;
+            changed = seen;
+            synchronized (redirected) {
+                others = live;
+                owners = games;
+                redirected.clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Finds the node running a game, if it is another one.
+     *
+     * @param gameId the game
+     * @return the node, or null if no other live node has the game
+     */
+    public Node locate(int gameId) {
+        return owners.get(gameId);
+    }
+
+    /**
+     * Picks a node to send a new player to: the least loaded other node, if
+     * this one is busier by more than REDIRECT_MARGIN.
+     *
+     * @return the node, or null to keep the player here
+     */
+    public Node pickNode() {
+        int own = load.getAsInt();
+        synchronized (redirected) {
+            Node best = null;
+            int bestLoad = own - REDIRECT_MARGIN;
+            for (Node node : others) {
+                int nodeLoad = node.getLoad() + redirected.getOrDefault(node.getId(), 0);
+                if (nodeLoad < bestLoad) {
+                    best = node;
+                    bestLoad = nodeLoad;
+                }
+            }
+            if (best != null) {
+                redirected.merge(best.getId(), 1, Integer::sum);
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Gets the number of this node.
+     *
+     * @return the node id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets the other live nodes as of the last heartbeat.
+     *
+     * @return the nodes
+     */
+    public List<Node> getNodes() {
+        return others;
+    }
+}
@@ -0,0 +1,423 @@
+/**
+ *
+ * Connect4LoadGenerator
+ *
+ * Headless bot clients for load testing the server.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Command line load generator. Starts a number of bot players, each of which
+ * connects to the server, plays a game with the binary Connect4Protocol
+ * through Connect4Client's protocol handling, and reconnects for the next
+ * game until the run is over. Bots play against the computer, against each other through the
+ * matchmaker, or half and half, and pick random legal moves or search them
+ * with Connect4ComputerPlayer, after a configurable think time. Bots follow
+ * the redirects of a server that is one of several nodes. All bots ask for
+ * the same board, the standard one unless given, and each has a fixed rating
+ * drawn around Connect4Matchmaker.INITIAL_RATING, so the matchmaker's rating
+ * windows are exercised.
+ *
+ * Every second the rates of connections, games and moves are printed; at the
+ * end come the totals and histograms, in microseconds, of the time to connect
+ * and of the round trip from sending a move to seeing the server play it.
+ *
+ * Bots run on virtual threads where the runtime has them, so thousands of
+ * bots need no more than a few platform threads.
+ *
+ * Usage: java core.Connect4LoadGenerator [-host name] [-port n] [-players n]
+ * [-seconds n] [-ramp seconds] [-mode C|P|M] [-think millis] [-depth n]
+ * [-board rowsxcolumnsxconnect] [-spread rating]
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4LoadGenerator extends Connect4Constants {
+
+    /**
+     * Mode of bots that alternate between computer and player games.
+     */
+    public static final char MIXED = 'M';
+
+    /**
+     * How long a bot waits on the server before giving up on a game.
+     */
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    /**
+     * How long games still going at the end of the run are given to finish
+     * before their connections are closed.
+     */
+    private static final int DRAIN_SECONDS = 5;
+
+    /**
+     * Where to connect.
+     */
+    private String host = "localhost";
+    private int port = 8000;
+
+    /**
+     * Number of bots, how long they play, and over how long they start up.
+     */
+    private int players = 100;
+    private int seconds = 30;
+    private int rampSeconds;
+
+    /**
+     * Game mode of the bots: COMPUTER, PLAYER or MIXED.
+     */
+    private char mode = COMPUTER;
+
+    /**
+     * Mean time a bot thinks before each move; the actual time varies by half
+     * either way.
+     */
+    private long thinkMillis;
+
+    /**
+     * Search depth of the bots' moves, 0 for random moves.
+     */
+    private int depth;
+
+    /**
+     * The board the bots ask for.
+     */
+    private int rows = ROWS;
+    private int columns = COLUMNS;
+    private int connect = 4;
+
+    /**
+     * Standard deviation of the bots' ratings.
+     */
+    private int spread = 200;
+
+    /**
+     * When the run ends, from System.nanoTime.
+     */
+    private long deadline;
+
+    /**
+     * Counts of what the bots did.
+     */
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder games = new LongAdder();
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+
+    /**
+     * Bots still running, and their open connections.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Time to connect and say hello, and the round trip of a move, in
+     * microseconds.
+     */
+    private final Connect4Histogram connectLatency = new Connect4Histogram();
+    private final Connect4Histogram moveLatency = new Connect4Histogram();
+
+    /**
+     * Parses the options and runs the bots.
+     *
+     * @param args options, see the class description
+     */
+    public static void main(String[] args) {
+        Connect4LoadGenerator generator = new Connect4LoadGenerator();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-host":
+                    generator.host = value;
+                    break;
+                case "-port":
+                    generator.port = Integer.parseInt(value);
+                    break;
+                case "-players":
+                    generator.players = Integer.parseInt(value);
+                    break;
+                case "-seconds":
+                    generator.seconds = Integer.parseInt(value);
+                    break;
+                case "-ramp":
+                    generator.rampSeconds = Integer.parseInt(value);
+                    break;
+                case "-mode":
+                    generator.mode = Character.toUpperCase(value.charAt(0));
+                    break;
+                case "-think":
+                    generator.thinkMillis = Long.parseLong(value);
+                    break;
+                case "-depth":
+                    generator.depth = Integer.parseInt(value);
+                    break;
+                case "-board":
+                    String[] board = value.split("x");
+                    generator.rows = Integer.parseInt(board[0]);
+                    generator.columns = Integer.parseInt(board[1]);
+                    generator.connect = Integer.parseInt(board[2]);
+                    break;
+                case "-spread":
+                    generator.spread = Integer.parseInt(value);
+                    break;
+                default:
+                    System.out.println("Usage: java core.Connect4LoadGenerator"
+                            + " [-host name] [-port n] [-players n] [-seconds n]"
+                            + " [-ramp seconds] [-mode C|P|M] [-think millis]"
+                            + " [-depth n] [-board rowsxcolumnsxconnect]"
+                            + " [-spread rating]");
+                    return;
+            }
+        }
+        generator.run();
+    }
+
+    /**
+     * Starts the bots, reports every second until they have all stopped,
+     * then prints the totals.
+     */
+    private void run() {
+        System.out.println("Starting " + players + " bots against " + host + ":"
+                + port + " for " + seconds + "s");
+        long start = System.nanoTime();
+        deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Connect4Server.newVirtualThreadExecutor();
+        active.set(players);
+        for (int i = 0; i < players; i++) {
+            int bot = i;
+            executor.execute(() -> bot(bot));
+        }
+        executor.shutdown();
+
+        long lastConnections = 0;
+        long lastGames = 0;
+        long lastMoves = 0;
+        int elapsed = 0;
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                elapsed++;
+                long c = connections.sum();
+                long g = games.sum();
+                long m = moves.sum();
+                System.out.printf("%4ds  conns/s %6d  games/s %6d  moves/s %7d"
+                        + "  active %5d  errors %d%n", elapsed, c - lastConnections,
+                        g - lastGames, m - lastMoves, active.get(), errors.sum());
+                lastConnections = c;
+                lastGames = g;
+                lastMoves = m;
+                if (elapsed == seconds + DRAIN_SECONDS) {
+                    for (Socket socket : sockets) {
+                        socket.close();
+                    }
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+        }
+
+        double total = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Done in %.1fs: %d connections (%.1f/s), %d games"
+                + " (%.1f/s), %d moves (%.1f/s), %d redirects, %d errors%n", total,
+                connections.sum(), connections.sum() / total, games.sum(),
+                games.sum() / total, moves.sum(), moves.sum() / total,
+                redirects.sum(), errors.sum());
+        System.out.println("Connect (us): " + connectLatency);
+        System.out.println("Move round trip (us): " + moveLatency);
+    }
+
+    /**
+     * One bot: waits for its turn to start up, then plays games until the run
+     * is over. A failed game is counted and followed by a short pause.
+     *
+     * @param bot number of the bot
+     */
+    private void bot(int bot) {
+        Random random = new Random(bot);
+        Connect4ComputerPlayer computer = null;
+        if (depth > 0) {
+            computer = new Connect4ComputerPlayer(depth, 0);
+        }
+        char botMode = mode;
+        if (mode == MIXED) {
+            botMode = bot % 2 == 0 ? COMPUTER : PLAYER;
+        }
+        int rating = (int) Math.max(1, Math.min(0xFFFF,
+                Connect4Matchmaker.INITIAL_RATING + random.nextGaussian() * spread));
+        try {
+            if (rampSeconds > 0) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(rampSeconds) * bot / players);
+            }
+            while (System.nanoTime() < deadline) {
+                try {
+                    play(botMode, rating, random, computer, host, port, 0);
+                } catch (IOException e) {
+                    /**
+                     * A bot left waiting for an opponent when the others
+                     * stopped times out, which is not the server's fault.
+                     */
+                    if (System.nanoTime() < deadline) {
+                        errors.increment();
+                        Thread.sleep(100);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Plays one game on a new connection. The board is followed from the
+     * server's moves and snapshots; on the bot's turn it thinks, picks a
+     * column and times the round trip until the server plays it. A server
+     * node that redirects the bot is left for the node it names.
+     *
+     * @param botMode COMPUTER or PLAYER
+     * @param rating the bot's rating
+     * @param random the bot's random numbers
+     * @param computer searches the bot's moves, or null for random moves
+     * @param toHost the server's host
+     * @param toPort the server's port
+     * @param hops redirects followed so far
+     * @throws IOException the server failed or timed out
+     * @throws InterruptedException interrupted while thinking
+     */
+    private void play(char botMode, int rating, Random random,
+            Connect4ComputerPlayer computer, String toHost, int toPort, int hops)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Socket socket = new Socket(toHost, toPort);
+        sockets.add(socket);
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+            Connect4Client.hello(out, in);
+            connectLatency.record(TimeUnit.NANOSECONDS.toMicros(
+                    System.nanoTime() - start));
+            connections.increment();
+
+            Connect4Client.send(out, Connect4Protocol.mode(botMode, hops > 0, rows,
+                    columns, connect, rating));
+            Connect4Protocol.Message join = Connect4Protocol.read(in);
+            if (join.getOpcode() == Connect4Protocol.OP_REDIRECT) {
+                if (hops == Connect4Client.MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects");
+                }
+                redirects.increment();
+                socket.close();
+                play(botMode, rating, random, computer, join.getHost(), join.getPort(),
+                        hops + 1);
+                return;
+            }
+            char me = join.getToken();
+            int rows = join.getRows();
+            int columns = join.getColumns();
+            Connect4State board = Connect4State.create(rows, columns, connect);
+            long sent = 0;
+            while (true) {
+                Connect4Protocol.Message msg = Connect4Protocol.read(in);
+                switch (msg.getOpcode()) {
+                    case Connect4Protocol.OP_MOVE:
+                        board.play(msg.getColumn());
+                        if (msg.getToken() == me && sent != 0) {
+                            moveLatency.record(TimeUnit.NANOSECONDS.toMicros(
+                                    System.nanoTime() - sent));
+                            moves.increment();
+                            sent = 0;
+                        }
+                        break;
+                    case Connect4Protocol.OP_SNAPSHOT:
+                        if (msg.getSeq() == 0) {
+                            board = Connect4State.create(rows, columns, connect);
+                        } else {
+                            board = Connect4Board.fromCharArray(msg.toBoard());
+                        }
+                        break;
+                    case Connect4Protocol.OP_TURN:
+                    case Connect4Protocol.OP_INVALID:
+                        if (msg.getToken() != me) {
+                            break;
+                        }
+                        think(random);
+                        int column = choose(board, random, computer);
+                        sent = System.nanoTime();
+                        Connect4Client.send(out, Connect4Protocol.play(column));
+                        break;
+                    case Connect4Protocol.OP_WIN:
+                    case Connect4Protocol.OP_TIE:
+                    case Connect4Protocol.OP_QUIT:
+                        /**
+                         * Every game has a P1, so counting only theirs counts
+                         * each game once.
+                         */
+                        if (me == P1) {
+                            games.increment();
+                        }
+                        return;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            sockets.remove(socket);
+            socket.close();
+        }
+    }
+
+    /**
+     * Waits the think time, varied by up to half either way.
+     *
+     * @param random the bot's random numbers
+     * @throws InterruptedException interrupted while waiting
+     */
+    private void think(Random random) throws InterruptedException {
+        if (thinkMillis > 0) {
+            Thread.sleep(thinkMillis / 2 + (long) (random.nextDouble() * thinkMillis));
+        }
+    }
+
+    /**
+     * Picks the bot's move.
+     *
+     * @param board the board
+     * @param random the bot's random numbers
+     * @param computer searches the move, or null for a random legal one
+     * @return a column between 1 and the number of columns
+     */
+    private static int choose(Connect4State board, Random random,
+            Connect4ComputerPlayer computer) {
+        if (computer != null) {
+            return computer.getMove(board.copy());
+        }
+        int column;
+        do {
+            column = random.nextInt(board.getColumns());
+        } while (!board.canPlay(column));
+        return column + 1;
+    }
+}
@@ -0,0 +1,392 @@
+/**
+ *
+ * Connect4Matchmaker
+ *
+ * Pairs players waiting for a human opponent.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Matchmaking for player versus player games. Servers hand each waiting
+ * player over as a Ticket from any thread without locking; a single scheduler
+ * thread then makes all the pairing decisions in batches, once per tick.
+ *
+ * Tickets are queued by game mode and board variant, so only players wanting
+ * the same game meet. Within a queue players are sorted by rating and
+ * neighbours are paired when their ratings are close enough for both. How
+ * close that is starts at BASE_WINDOW and widens the longer a player waits, so
+ * nobody waits forever for a perfect match; after TIMEOUT_MILLIS they are
+ * given up on. A player's connection is checked just before pairing, so one
+ * who has gone away never takes an opponent down with them.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4Matchmaker extends Connect4Constants {
+
+    /**
+     * Rating of a player with no games on record.
+     */
+    public static final int INITIAL_RATING = 1500;
+
+    /**
+     * Time between pairing rounds.
+     */
+    public static final long TICK_MILLIS = 50;
+
+    /**
+     * How long a player may wait before being given up on.
+     */
+    public static final long TIMEOUT_MILLIS = 300000;
+
+    /**
+     * How long paired players waited, from handing in their ticket, in
+     * microseconds, and how many gave up waiting.
+     */
+    private static final Connect4Histogram PAIR_WAIT =
+            Connect4Metrics.histogram("matchmaker_wait_us");
+    private static final LongAdder EXPIRED = Connect4Metrics.counter("matchmaker_expired");
+
+    /**
+     * Rating difference accepted straight away, and how much it grows for
+     * every second of waiting.
+     */
+    public static final int BASE_WINDOW = 100;
+    public static final int WIDEN_PER_SECOND = 50;
+
+    /**
+     * Gets told the outcome of each ticket. Called on the scheduler thread, so
+     * it should hand off anything slow.
+     */
+    public interface Listener {
+
+        /**
+         * Two players have been paired. The one who waited longer goes first.
+         *
+         * @param p1 the first player
+         * @param p2 the second player
+         */
+        void paired(Ticket p1, Ticket p2);
+
+        /**
+         * A player waited too long, or the server is shutting down.
+         *
+         * @param ticket the player's ticket
+         */
+        void expired(Ticket ticket);
+    }
+
+    /**
+     * A player waiting for an opponent.
+     */
+    public static class Ticket {
+
+        /**
+         * The player's connection.
+         */
+        private final Connect4Peer peer;
+
+        /**
+         * The queue the player waits in.
+         */
+        private final String key;
+
+        /**
+         * The board the player wants: rows, columns and tokens in a row.
+         */
+        private final int rows;
+        private final int columns;
+        private final int connect;
+
+        /**
+         * The player's rating.
+         */
+        private final int rating;
+
+        /**
+         * When the player started waiting, from System.nanoTime.
+         */
+        private final long since;
+
+        /**
+         * Set once the player no longer wants a game.
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * Creates a ticket.
+         *
+         * @param peer the player's connection
+         * @param key the queue to wait in
+         * @param rows number of rows of the board
+         * @param columns number of columns of the board
+         * @param connect tokens in a row needed to win
+         * @param rating the player's rating
+         */
+        private Ticket(Connect4Peer peer, String key, int rows, int columns,
+                int connect, int rating) {
+            this.peer = peer;
+            this.key = key;
+            this.rows = rows;
+            this.columns = columns;
+            this.connect = connect;
+            this.rating = rating;
+            this.since = System.nanoTime();
+        }
+
+        /**
+         * Gets the player's connection.
+         *
+         * @return the connection
+         */
+        public Connect4Peer getPeer() {
+            return peer;
+        }
+
+        /**
+         * Gets the number of rows of the board the player wants.
+         *
+         * @return the row count
+         */
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * Gets the number of columns of the board the player wants.
+         *
+         * @return the column count
+         */
+        public int getColumns() {
+            return columns;
+        }
+
+        /**
+         * Gets the tokens in a row needed to win on the board the player
+         * wants.
+         *
+         * @return the win length
+         */
+        public int getConnect() {
+            return connect;
+        }
+
+        /**
+         * Gets the player's rating.
+         *
+         * @return the rating
+         */
+        public int getRating() {
+            return rating;
+        }
+
+        /**
+         * Takes the player out of matchmaking, e.g. once their connection
+         * closes. May be called from any thread.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Gets the rating difference the player accepts by now.
+         *
+         * @param now the current System.nanoTime
+         * @return the widest accepted difference
+         */
+        private long window(long now) {
+            return BASE_WINDOW + WIDEN_PER_SECOND
+                    * TimeUnit.NANOSECONDS.toSeconds(now - since);
+        }
+    }
+
+    /**
+     * Order of each queue when pairing: by rating, then by arrival.
+     */
+    private static final Comparator<Ticket> BY_RATING = Comparator
+            .comparingInt((Ticket t) -> t.rating)
+            .thenComparingLong(t -> t.since);
+
+    /**
+     * Tickets handed over since the last tick.
+     */
+    private final ConcurrentLinkedQueue<Ticket> arrivals =
+            new ConcurrentLinkedQueue<>();
+
+    /**
+     * Waiting tickets by queue. Only touched on the scheduler thread, and by
+     * shutdown once that has stopped.
+     */
+    private final Map<String, List<Ticket>> queues = new HashMap<>();
+
+    /**
+     * Runs the pairing rounds.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Gets told who was paired or dropped.
+     */
+    private final Listener listener;
+
+    /**
+     * Starts matchmaking.
+     *
+     * @param listener gets told who was paired or dropped
+     */
+    public Connect4Matchmaker(Listener listener) {
+        this.listener = listener;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Connect4Matchmaker");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Puts a player in the queue for their game. May be called from any
+     * thread.
+     *
+     * @param peer the player's connection
+     * @param mode the game mode
+     * @param rows number of rows of the board
+     * @param columns number of columns of the board
+     * @param connect tokens in a row needed to win
+     * @param rating the player's rating
+     * @return the player's ticket
+     */
+    public Ticket enqueue(Connect4Peer peer, char mode, int rows, int columns,
+            int connect, int rating) {
+        Ticket ticket = new Ticket(peer,
+                mode + ":" + rows + "x" + columns + ":" + connect, rows, columns,
+                connect, rating);
+        arrivals.add(ticket);
+        return ticket;
+    }
+
+    /**
+     * Stops matchmaking and waits for the last round to finish, so no
+     * pairings are reported after this returns. Players still waiting are
+     * dropped.
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        for (List<Ticket> queue : queues.values()) {
+            arrivals.addAll(queue);
+        }
+        queues.clear();
+        Ticket ticket;
+        while ((ticket = arrivals.poll()) != null) {
+            if (!ticket.cancelled) {
+                ticket.cancel();
+                listener.expired(ticket);
+            }
+        }
+    }
+
+    /**
+     * One pairing round: takes in the new tickets, then pairs what it can in
+     * every queue.
+     */
+    private void tick() {
+        try {
+            Ticket ticket;
+            while ((ticket = arrivals.poll()) != null) {
+                queues.computeIfAbsent(ticket.key, k -> new ArrayList<>())
+                        .add(ticket);
+            }
+            long now = System.nanoTime();
+            queues.values().removeIf(queue -> {
+                match(queue, now);
+                return queue.isEmpty();
+            });
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Pairs the players of one queue. Cancelled tickets are dropped and
+     * expired ones reported. The rest are sorted by rating, and each is paired
+     * with its neighbour if their ratings are within both their windows and
+     * both are still connected.
+     *
+     * @param queue the queue, left holding the players still waiting
+     * @param now the current System.nanoTime
+     */
+    private void match(List<Ticket> queue, long now) {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        queue.removeIf(ticket -> {
+            if (ticket.cancelled) {
+                return true;
+            }
+            if (now - ticket.since > timeout) {
+                ticket.cancel();
+                EXPIRED.increment();
+                listener.expired(ticket);
+                return true;
+            }
+            return false;
+        });
+        if (queue.size() < 2) {
+            return;
+        }
+        queue.sort(BY_RATING);
+        List<Ticket> left = new ArrayList<>();
+        Ticket last = null;
+        for (Ticket ticket : queue) {
+            if (last != null && ticket.rating - last.rating
+                    <= Math.min(last.window(now), ticket.window(now))) {
+                if (!last.peer.isOpen()) {
+                    last.cancel();
+                    last.peer.close();
+                    last = ticket;
+                } else if (!ticket.peer.isOpen()) {
+                    ticket.cancel();
+                    ticket.peer.close();
+                } else {
+                    PAIR_WAIT.record(TimeUnit.NANOSECONDS.toMicros(now - last.since));
+                    PAIR_WAIT.record(TimeUnit.NANOSECONDS.toMicros(now - ticket.since));
+                    if (last.since <= ticket.since) {
+                        listener.paired(last, ticket);
+                    } else {
+                        listener.paired(ticket, last);
+                    }
+                    last = null;
+                }
+                continue;
+            }
+            if (last != null) {
+                left.add(last);
+            }
+            last = ticket;
+        }
+        if (last != null) {
+            left.add(last);
+        }
+        queue.clear();
+        queue.addAll(left);
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ *
+ * Connect4Metrics
+ *
+ * Registry of the server's counters, gauges and latency histograms.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide metrics, by name. Counters are LongAdders, striped across
+ * cells so that threads counting at once do not contend; histograms are
+ * Connect4Histograms; gauges are read from their owner when reported. Callers
+ * look a metric up once, keep it in a static field and update it directly, so
+ * the registry costs nothing on the hot paths.
+ *
+ * The whole registry can be rendered as plain text, one "name value" line
+ * per metric, and served on a local port: set the connect4.metricsPort system
+ * property and fetch it with curl or nc. Histograms are reported as their
+ * count, mean, percentiles and maximum. Names ending in _us are in
+ * microseconds.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4Metrics {
+
+    /**
+     * The metrics, by name.
+     */
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Connect4Histogram> HISTOGRAMS =
+            new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    /**
+     * Gets a counter, creating it on first use. Counters may also go down,
+     * e.g. to count what is currently open.
+     *
+     * @param name the metric name
+     * @return the counter
+     */
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Gets a histogram, creating it on first use.
+     *
+     * @param name the metric name
+     * @return the histogram
+     */
+    public static Connect4Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new Connect4Histogram());
+    }
+
+    /**
+     * Registers a gauge, replacing any of the same name.
+     *
+     * @param name the metric name
+     * @param value reads the current value; must be cheap and thread safe
+     */
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * Converts an interval from System.nanoTime readings to microseconds, the
+     * unit of the latency histograms.
+     *
+     * @param start the earlier reading
+     * @return microseconds since then
+     */
+    public static long micros(long start) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    }
+
+    /**
+     * Renders every metric as text, sorted by name.
+     *
+     * @return one "name value" line per value
+     */
+    public static String render() {
+        Map<String, String> lines = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> lines.put(name,
+                Long.toString(counter.sum())));
+        GAUGES.forEach((name, gauge) -> lines.put(name,
+                Long.toString(gauge.getAsLong())));
+        HISTOGRAMS.forEach((name, histogram) -> {
+            lines.put(name + "_count", Long.toString(histogram.getCount()));
+            lines.put(name + "_mean", String.format(Locale.ROOT, "%.1f",
+                    histogram.getMean()));
+            lines.put(name + "_p50", Long.toString(histogram.getPercentile(50)));
+            lines.put(name + "_p90", Long.toString(histogram.getPercentile(90)));
+            lines.put(name + "_p99", Long.toString(histogram.getPercentile(99)));
+            lines.put(name + "_p999", Long.toString(histogram.getPercentile(99.9)));
+            lines.put(name + "_max", Long.toString(histogram.getMax()));
+        });
+        StringBuilder text = new StringBuilder();
+        lines.forEach((name, value) -> text.append(name).append(' ')
+                .append(value).append('\n'));
+        return text.toString();
+    }
+
+    /**
+     * Serves the metrics on a port of the loopback interface. Every
+     * connection gets the current text, with an HTTP header so browsers and
+     * curl accept it, and is closed. Runs on a daemon thread.
+     *
+     * @param port the port
+     * @throws IOException the port cannot be bound
+     */
+    public static void serve(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try (Socket socket = server.accept()) {
+                    byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n"
+                            + "Content-Length: " + body.length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    out.write(body);
+                    out.flush();
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "Connect4Metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,823 @@
+/**
+ *
+ * Connect4MoveJournal
+ *
+ * Append-only journal of the moves of every game, for crash recovery.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Records every game as a stream of fixed size records in a directory of
+ * segment files, so that the games in progress can be rebuilt after the
+ * server goes down. A game is a START record with its board and number of
+ * players, a SEAT record with each player's session key, a MOVE record per
+ * move and an END record once it is over.
+ *
+ * Each record is RECORD_BYTES long:
+ *
+ *   0 int   game id
+ *   4 short sequence, the number of moves played including this one
+ *   6 byte  type, START, SEAT, MOVE or END
+ *   7 byte  column of a MOVE, token of a SEAT, players of a START, outcome
+ *           of an END
+ *   8 long  time written, in milliseconds since the epoch
+ *  16 long  session key of a SEAT, rows, columns and connect of a START
+ *  24 int   CRC32 of the first 24 bytes
+ *
+ * Appending only copies the record into a buffer, so games never wait on the
+ * disk. A single writer thread swaps the full buffer for an empty one, writes
+ * it and syncs it with one fsync, while the next batch fills up behind it:
+ * however many games are moving, there is one fsync per batch rather than one
+ * per move. If the writer falls a whole buffer behind, appending blocks until
+ * it catches up.
+ *
+ * Segments roll over once they reach their size limit, and segments that hold
+ * nothing of a game still in progress are deleted. Each run writes to new
+ * segments; the ones left by the last run are read back by recover. A journal
+ * holds a lock on its directory until it is closed, so a replacement process
+ * opening the same directory waits for the old one to let go before reading
+ * back what it left.
+ *
+ * With a Connect4GameArchive attached, the writer also follows every game
+ * through the records it has synced, and compacts the finished ones into the
+ * archive in batches of ARCHIVE_BATCH games, and whenever a segment rolls
+ * over, before the segment can be deleted.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4MoveJournal extends Connect4Constants {
+
+    /**
+     * Record types.
+     */
+    public static final byte START = 1;
+    public static final byte SEAT = 2;
+    public static final byte MOVE = 3;
+    public static final byte END = 4;
+
+    /**
+     * Length of a record.
+     */
+    public static final int RECORD_BYTES = 28;
+
+    /**
+     * Size at which a segment is rolled over.
+     */
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+    /**
+     * Size of each of the two batch buffers.
+     */
+    public static final int DEFAULT_BUFFER_BYTES = RECORD_BYTES << 15;
+
+    /**
+     * Finished games compacted into the archive at a time.
+     */
+    public static final int ARCHIVE_BATCH = 1 << 16;
+
+    /**
+     * File name of segments, by segment number.
+     */
+    private static final String SEGMENT_FORMAT = "moves-%08d.journal";
+
+    /**
+     * File locked by the process writing the journal.
+     */
+    private static final String LOCK_FILE = "journal.lock";
+
+    /**
+     * A game read back from the journal that had not ended.
+     */
+    public static class Game {
+
+        /**
+         * The game id.
+         */
+        private final int id;
+
+        /**
+         * Number of players, 1 against the computer.
+         */
+        private int players;
+
+        /**
+         * Board geometry.
+         */
+        private int rows;
+        private int columns;
+        private int connect;
+
+        /**
+         * Set once the START record has been read.
+         */
+        private boolean started;
+
+        /**
+         * When the START record was written.
+         */
+        private long startMillis;
+
+        /**
+         * Zero based columns of the moves played, in order.
+         */
+        private byte[] moves = new byte[16];
+        private int moveCount;
+
+        /**
+         * Session keys of P1 and P2, and whether each was recorded.
+         */
+        private final long[] keys = new long[2];
+        private final boolean[] seated = new boolean[2];
+
+        /**
+         * Segment holding the game's first record.
+         */
+        private final long segment;
+
+        /**
+         * Creates a game.
+         *
+         * @param id the game id
+         * @param segment segment of its first record
+         */
+        private Game(int id, long segment) {
+            this.id = id;
+            this.segment = segment;
+        }
+
+        /**
+         * Gets the game id.
+         *
+         * @return the id
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Gets the number of players.
+         *
+         * @return 1 against the computer, otherwise 2
+         */
+        public int getPlayers() {
+            return players;
+        }
+
+        /**
+         * Gets the number of rows of the board.
+         *
+         * @return the rows
+         */
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * Gets the number of columns of the board.
+         *
+         * @return the columns
+         */
+        public int getColumns() {
+            return columns;
+        }
+
+        /**
+         * Gets the number of tokens in a row needed to win.
+         *
+         * @return the connect length
+         */
+        public int getConnect() {
+            return connect;
+        }
+
+        /**
+         * Gets the moves played so far.
+         *
+         * @return zero based columns, in the order played
+         */
+        public byte[] getMoves() {
+            return Arrays.copyOf(moves, moveCount);
+        }
+
+        /**
+         * Tells whether a player's session key was recorded.
+         *
+         * @param player P1 or P2
+         * @return true if the player has a seat to resume
+         */
+        public boolean isSeated(char player) {
+            return seated[player == P1 ? 0 : 1];
+        }
+
+        /**
+         * Gets a player's session key.
+         *
+         * @param player P1 or P2
+         * @return the key
+         */
+        public long getKey(char player) {
+            return keys[player == P1 ? 0 : 1];
+        }
+
+        /**
+         * Applies a record of the game. Moves out of sequence, e.g. ones
+         * written twice, are skipped.
+         *
+         * @param type the record type
+         * @param seq the sequence
+         * @param arg the type specific byte
+         * @param time when the record was written
+         * @param value the type specific long
+         */
+        private void apply(byte type, int seq, byte arg, long time, long value) {
+            if (type == START) {
+                started = true;
+                startMillis = time;
+                players = arg;
+                rows = (int) (value >>> 16) & 0xFF;
+                columns = (int) (value >>> 8) & 0xFF;
+                connect = (int) value & 0xFF;
+            } else if (type == SEAT) {
+                int seat = arg == P1 ? 0 : 1;
+                keys[seat] = value;
+                seated[seat] = true;
+            } else if (type == MOVE && seq == moveCount + 1) {
+                if (moveCount == moves.length) {
+                    moves = Arrays.copyOf(moves, moveCount * 2);
+                }
+                moves[moveCount++] = arg;
+            }
+        }
+
+        /**
+         * Turns the game into an archive entry once it has ended. There are no
+         * player accounts, so humans are ANONYMOUS.
+         *
+         * @param outcome the winning state, ONGOING if a player left
+         * @param endMillis when the game ended
+         * @return the archive entry
+         */
+        private Connect4GameArchive.Game archived(int outcome, long endMillis) {
+            return new Connect4GameArchive.Game(id, Connect4GameArchive.ANONYMOUS,
+                    players == 1 ? Connect4GameArchive.COMPUTER
+                            : Connect4GameArchive.ANONYMOUS,
+                    rows, columns, connect, outcome, startMillis, endMillis,
+                    getMoves());
+        }
+    }
+
+    /**
+     * The journal directory.
+     */
+    private final Path directory;
+
+    /**
+     * Size at which a segment is rolled over.
+     */
+    private final long segmentBytes;
+
+    /**
+     * First segment written by this run; older ones are left to recover.
+     */
+    private final long firstSegment;
+
+    /**
+     * Number of the segment being written, and its channel. Only touched on
+     * the writer thread once it has started.
+     */
+    private volatile long segment;
+    private FileChannel channel;
+
+    /**
+     * Segment of the START record of every game in progress, so segments
+     * nothing needs any more can be deleted.
+     */
+    private final Map<Integer, Long> live = new ConcurrentHashMap<>();
+
+    /**
+     * Where finished games are compacted to, or null.
+     */
+    private volatile Connect4GameArchive archive;
+
+    /**
+     * Games in progress as seen by the writer, while there is an archive.
+     */
+    private final Map<Integer, Game> tracked = new ConcurrentHashMap<>();
+
+    /**
+     * Finished games waiting to be archived, and the oldest segment they
+     * started in. Only touched on the writer thread, and by recover before
+     * anything is appended.
+     */
+    private final List<Connect4GameArchive.Game> finished = new ArrayList<>();
+    private long finishedSegment = Long.MAX_VALUE;
+
+    /**
+     * Highest game id read back by recover.
+     */
+    private int maxGameId;
+
+    /**
+     * The buffer being filled by appends, and the one being written.
+     * Guarded by this.
+     */
+    private ByteBuffer active;
+    private ByteBuffer spare;
+
+    /**
+     * Checksums records as they are appended. Guarded by this.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Records appended, and records synced to disk. Guarded by this.
+     */
+    private long appended;
+    private long durable;
+
+    /**
+     * Set once the journal is closed, or once writing has failed.
+     */
+    private boolean closed;
+    private boolean failed;
+
+    /**
+     * The writer thread.
+     */
+    private final Thread writer;
+
+    /**
+     * Lock on the directory, held until the journal is closed.
+     */
+    private final FileLock lock;
+
+    /**
+     * Opens a journal with the default segment and buffer sizes.
+     *
+     * @param directory the journal directory, created if missing
+     * @throws IOException the directory or a segment cannot be created
+     */
+    public Connect4MoveJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * Opens a journal. Writing starts in a new segment after any that are
+     * already there. If another process has the directory open, waits until
+     * it closes its journal.
+     *
+     * @param directory the journal directory, created if missing
+     * @param segmentBytes size at which segments are rolled over
+     * @param bufferBytes size of each batch buffer, at least one record
+     * @throws IOException the directory or a segment cannot be created
+     */
+    public Connect4MoveJournal(Path directory, long segmentBytes, int bufferBytes)
+            throws IOException {
+        if (bufferBytes < RECORD_BYTES) {
+            throw new IllegalArgumentException("Buffer must hold a record");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock held = lockChannel.tryLock();
+        if (held == null) {
+            System.out.println("Waiting for the journal in " + directory
+                    + " to be closed");
+            held = lockChannel.lock();
+        }
+        lock = held;
+        long last = 0;
+        for (long number : segments().keySet()) {
+            last = Math.max(last, number);
+        }
+        firstSegment = last + 1;
+        segment = firstSegment;
+        channel = open(segment);
+        active = ByteBuffer.allocate(bufferBytes - bufferBytes % RECORD_BYTES);
+        spare = ByteBuffer.allocate(active.capacity());
+        writer = new Thread(this::write, "Connect4MoveJournal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Compacts finished games into an archive from now on. Must be called
+     * before recover and before anything is appended.
+     *
+     * @param archive the archive
+     */
+    public void setArchive(Connect4GameArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Records the start of a game.
+     *
+     * @param gameId the game
+     * @param players number of players, 1 against the computer
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param connect tokens in a row needed to win
+     */
+    public void start(int gameId, int players, int rows, int columns, int connect) {
+        live.put(gameId, segment);
+        append(gameId, 0, START, (byte) players,
+                (long) rows << 16 | columns << 8 | connect);
+    }
+
+    /**
+     * Records a player's session key.
+     *
+     * @param gameId the game
+     * @param player P1 or P2
+     * @param key the secret key of the player's seat
+     */
+    public void seat(int gameId, char player, long key) {
+        append(gameId, 0, SEAT, (byte) player, key);
+    }
+
+    /**
+     * Records a move.
+     *
+     * @param gameId the game
+     * @param seq number of moves played including this one
+     * @param column zero based column
+     */
+    public void move(int gameId, int seq, int column) {
+        append(gameId, seq, MOVE, (byte) column, 0);
+    }
+
+    /**
+     * Records the end of a game.
+     *
+     * @param gameId the game
+     * @param outcome the winning state, or ONGOING if a player left
+     */
+    public void end(int gameId, int outcome) {
+        append(gameId, 0, END, (byte) outcome, 0);
+        live.remove(gameId);
+    }
+
+    /**
+     * Copies a record into the active buffer, waiting for the writer if the
+     * buffer is full. Records are dropped once the journal is closed or has
+     * failed.
+     *
+     * @param gameId the game
+     * @param seq the sequence
+     * @param type the record type
+     * @param arg the type specific byte
+     * @param value the type specific long
+     */
+    private synchronized void append(int gameId, int seq, byte type, byte arg,
+            long value) {
+        while (active.remaining() < RECORD_BYTES && !closed && !failed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (closed || failed) {
+            return;
+        }
+        int start = active.position();
+        active.putInt(gameId).putShort((short) seq).put(type).put(arg)
+                .putLong(System.currentTimeMillis()).putLong(value);
+        crc.reset();
+        crc.update(active.array(), start, RECORD_BYTES - 4);
+        active.putInt((int) crc.getValue());
+        if (start == 0) {
+            notifyAll();
+        }
+        appended++;
+    }
+
+    /**
+     * Blocks until every record appended so far is on disk.
+     *
+     * @throws IOException the journal failed before they were written
+     */
+    public synchronized void sync() throws IOException {
+        long target = appended;
+        while (durable < target && !failed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (failed) {
+            throw new IOException("Journal write failed");
+        }
+    }
+
+    /**
+     * Writes out what has been appended and closes the journal. Later appends
+     * are dropped.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writer loop: takes the filled buffer, writes it in one go, syncs it and
+     * rolls the segment over if it is full.
+     */
+    private void write() {
+        while (true) {
+            ByteBuffer batch;
+            long upTo;
+            synchronized (this) {
+                while (active.position() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (active.position() == 0) {
+                    break;
+                }
+                batch = active;
+                active = spare;
+                spare = batch;
+                upTo = appended;
+                notifyAll();
+            }
+            batch.flip();
+            try {
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+                if (archive != null) {
+                    track(batch);
+                }
+                if (channel.position() >= segmentBytes) {
+                    roll();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    failed = true;
+                    notifyAll();
+                }
+                break;
+            }
+            batch.clear();
+            synchronized (this) {
+                durable = upTo;
+                notifyAll();
+            }
+        }
+        archiveFinished();
+        try {
+            channel.close();
+            lock.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Follows the games through a batch that has just been synced. Finished
+     * games are set aside for the archive, which gets them once there are
+     * enough.
+     *
+     * @param batch the batch, already written
+     */
+    private void track(ByteBuffer batch) {
+        for (int at = 0; at < batch.limit(); at += RECORD_BYTES) {
+            int gameId = batch.getInt(at);
+            byte type = batch.get(at + 6);
+            byte arg = batch.get(at + 7);
+            long time = batch.getLong(at + 8);
+            if (type == END) {
+                Game game = tracked.remove(gameId);
+                if (game != null) {
+                    finished.add(game.archived(arg, time));
+                    finishedSegment = Math.min(finishedSegment, game.segment);
+                }
+            } else {
+                tracked.computeIfAbsent(gameId, id -> new Game(id, segment))
+                        .apply(type, batch.getShort(at + 4) & 0xFFFF, arg, time,
+                                batch.getLong(at + 16));
+            }
+        }
+        if (finished.size() >= ARCHIVE_BATCH) {
+            archiveFinished();
+        }
+    }
+
+    /**
+     * Writes the finished games to the archive. If that fails they are kept,
+     * along with the segments they are in, to try again later.
+     */
+    private void archiveFinished() {
+        if (archive == null || finished.isEmpty()) {
+            return;
+        }
+        try {
+            archive.write(finished);
+            finished.clear();
+            finishedSegment = Long.MAX_VALUE;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts the next segment, archives the games that have finished, and
+     * deletes the segments before the oldest that a game in progress or not
+     * yet archived started in.
+     *
+     * @throws IOException the new segment cannot be created
+     */
+    private void roll() throws IOException {
+        channel.close();
+        channel = open(segment + 1);
+        segment++;
+        archiveFinished();
+        long keep = Math.min(segment, finishedSegment);
+        for (long start : live.values()) {
+            keep = Math.min(keep, start);
+        }
+        for (Game game : tracked.values()) {
+            keep = Math.min(keep, game.segment);
+        }
+        deleteBefore(keep);
+    }
+
+    /**
+     * Reads back the games the last run left unfinished. Finished games not
+     * yet in the archive, if there is one, are added to it, and segments of
+     * games that all ended are deleted. A record that fails its checksum, e.g.
+     * one torn by a crash, ends the reading of its segment. Must be called
+     * before anything is appended.
+     *
+     * @return the unfinished games, by order of their first record
+     * @throws IOException a segment cannot be read
+     */
+    public List<Game> recover() throws IOException {
+        Map<Integer, Game> games = new LinkedHashMap<>();
+        byte[] record = new byte[RECORD_BYTES];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        CRC32 check = new CRC32();
+        for (Map.Entry<Long, Path> entry : segments().entrySet()) {
+            long number = entry.getKey();
+            if (number >= firstSegment) {
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(entry.getValue()), 1 << 16))) {
+                while (true) {
+                    in.readFully(record);
+                    check.reset();
+                    check.update(record, 0, RECORD_BYTES - 4);
+                    buffer.clear();
+                    if (buffer.getInt(RECORD_BYTES - 4) != (int) check.getValue()) {
+                        break;
+                    }
+                    int gameId = buffer.getInt();
+                    int seq = buffer.getShort() & 0xFFFF;
+                    byte type = buffer.get();
+                    byte arg = buffer.get();
+                    long time = buffer.getLong();
+                    long value = buffer.getLong();
+                    maxGameId = Math.max(maxGameId, gameId);
+                    if (type == END) {
+                        Game game = games.remove(gameId);
+                        if (game != null && game.started && archive != null
+                                && !archive.contains(gameId)) {
+                            finished.add(game.archived(arg, time));
+                            finishedSegment = Math.min(finishedSegment, game.segment);
+                        }
+                    } else {
+                        games.computeIfAbsent(gameId, id -> new Game(id, number))
+                                .apply(type, seq, arg, time, value);
+                    }
+                }
+            } catch (EOFException e) {
+                /**
+                 * End of the segment, or a record cut short by a crash.
+                 */
+            }
+        }
+
+        /**
+         * Games whose START was lost cannot be rebuilt.
+         */
+        List<Game> unfinished = new ArrayList<>();
+        long keep = firstSegment;
+        for (Game game : games.values()) {
+            if (game.started) {
+                unfinished.add(game);
+                live.put(game.id, game.segment);
+                if (archive != null) {
+                    tracked.put(game.id, game);
+                }
+                keep = Math.min(keep, game.segment);
+            }
+        }
+        archiveFinished();
+        deleteBefore(Math.min(keep, finishedSegment));
+        return unfinished;
+    }
+
+    /**
+     * Gets the highest game id recover read back, finished or not, so that
+     * new games can be numbered after it.
+     *
+     * @return the id, or 0 if there was none
+     */
+    public int getMaxGameId() {
+        return maxGameId;
+    }
+
+    /**
+     * Lists the segment files in the directory.
+     *
+     * @return the segments, by number
+     * @throws IOException the directory cannot be read
+     */
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                "moves-*.journal")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(6,
+                            name.length() - 8)), file);
+                } catch (NumberFormatException e) {
+                    /**
+                     * Not one of ours.
+                     */
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Deletes the segments numbered below a limit.
+     *
+     * @param limit the first segment to keep
+     * @throws IOException the directory cannot be read
+     */
+    private void deleteBefore(long limit) throws IOException {
+        for (Map.Entry<Long, Path> entry : segments().headMap(limit).entrySet()) {
+            Files.deleteIfExists(entry.getValue());
+        }
+    }
+
+    /**
+     * Creates a segment.
+     *
+     * @param number the segment number
+     * @return a channel appending to it
+     * @throws IOException the segment cannot be created
+     */
+    private FileChannel open(long number) throws IOException {
+        return FileChannel.open(directory.resolve(String.format(SEGMENT_FORMAT,
+                number)), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+}
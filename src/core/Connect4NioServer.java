@@ -0,0 +1,736 @@
+/**
+ *
+ * Connect4NioServer
+ *
+ * Non-blocking game server multiplexing every connection over a few threads.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.file.Paths;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Selector based replacement for the thread per game loop of Connect4Server.
+ * The listening socket and all client connections are spread over a small,
+ * fixed number of Connect4EventLoop threads, and each Connect4 game is driven
+ * by the objects its players send instead of blocking reads. Idle or slow
+ * clients therefore cost a few buffers rather than a thread each.
+ *
+ * A client sends its game mode, gets its token and GUI port back, then plays,
+ * in Connect4Protocol frames or the original serialized objects. Players who
+ * want a human opponent are paired by a Connect4Matchmaker. Computer moves
+ * are searched on the shared Connect4AIPool so they never hold up an event
+ * loop.
+ *
+ * Every seat in a game is kept in a Connect4SessionRegistry. A client that
+ * can resume keeps its seat for a grace window after its connection drops,
+ * and takes it back by opening a new connection with RESUME instead of MODE.
+ * A client opening with WATCH instead follows a running game as a spectator,
+ * through the game's Connect4Broadcast.
+ *
+ * Every timeout runs on one Connect4TimerWheel: a connection that has not
+ * said what it wants within Connect4Protocol.HANDSHAKE_MILLIS is closed, and
+ * a player who does not move within Connect4.TURN_MILLIS of their turn
+ * forfeits the game, which their opponent hears as them having left.
+ *
+ * Several servers can share the load as nodes of a Connect4GameDirectory.
+ * Clients resuming or watching a game another node runs are redirected there,
+ * and new players are redirected to a less loaded node.
+ *
+ * When the connect4.journal system property names a directory, every game is
+ * recorded in a Connect4MoveJournal there. On start up the games the last run
+ * left unfinished are rebuilt from it, with their seats held for the grace
+ * window, so players can resume them across a restart. When connect4.archive
+ * names a directory too, finished games are compacted from the journal into a
+ * Connect4GameArchive there.
+ *
+ * Connections, games, moves, matchmaking and computer searches are counted
+ * and timed in Connect4Metrics.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4NioServer extends Connect4Constants
+        implements Connect4Matchmaker.Listener, Connect4SessionRegistry.Listener {
+
+    /**
+     * Connections accepted and still open, and how long paired players had
+     * been connected, in microseconds.
+     */
+    private static final LongAdder ACCEPTED = Connect4Metrics.counter("connections_accepted");
+    private static final LongAdder OPEN = Connect4Metrics.counter("connections_open");
+    private static final Connect4Histogram PAIR_WAIT =
+            Connect4Metrics.histogram("accept_to_pair_us");
+
+    /**
+     * Connections the listening socket queues before they are accepted.
+     */
+    private static final int BACKLOG = 1024;
+
+    /**
+     * How often a drain checks whether the games have finished.
+     */
+    private static final long DRAIN_POLL_MILLIS = 100;
+
+    /**
+     * How long a drain waits for the connections to close at the end.
+     */
+    private static final long CLOSE_MILLIS = 5000;
+
+    /**
+     * The event loops; the first one also accepts connections.
+     */
+    private final Connect4EventLoop[] loops;
+
+    /**
+     * The listening socket.
+     */
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * Workers searching computer moves.
+     */
+    private final Connect4AIPool computers = Connect4AIPool.getDefault();
+
+    /**
+     * Loop the next accepted connection goes to.
+     */
+    private int nextLoop;
+
+    /**
+     * Port handed to the next client that still relays to its GUI over a
+     * socket.
+     */
+    private final AtomicInteger portGUI;
+
+    /**
+     * Pairs players waiting for an opponent.
+     */
+    private final Connect4Matchmaker matchmaker;
+
+    /**
+     * Runs the server's timeouts.
+     */
+    private final Connect4TimerWheel timers =
+            new Connect4TimerWheel("Connect4Timers", 100, 512);
+
+    /**
+     * Seats of the games in progress.
+     */
+    private final Connect4SessionRegistry sessions =
+            new Connect4SessionRegistry(timers, this);
+
+    /**
+     * Where the games are recorded, or null if they are not.
+     */
+    private final Connect4MoveJournal journal;
+
+    /**
+     * This server's open connections.
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * Set once the server has started draining.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * The other server nodes and their games, or null if this server runs
+     * alone.
+     */
+    private volatile Connect4GameDirectory directory;
+
+    /**
+     * Opens the journal, if there is one, restores its unfinished games, then
+     * opens the listening socket and starts the event loops.
+     *
+     * @param port port to listen on
+     * @param threads number of event loops
+     * @throws IOException the journal cannot be read or the port cannot be
+     * bound
+     */
+    public Connect4NioServer(int port, int threads) throws IOException {
+        /**
+         * The journal is opened before the port is bound. A replacement
+         * process waits here until the one it replaces has drained and let
+         * go of the journal, and by then that one has stopped listening, so
+         * no connection is ever queued on a port nobody will accept from.
+         */
+        portGUI = new AtomicInteger(port + 1);
+        String path = System.getProperty("connect4.journal");
+        if (path == null) {
+            journal = null;
+        } else {
+            journal = new Connect4MoveJournal(Paths.get(path));
+            String archivePath = System.getProperty("connect4.archive");
+            if (archivePath != null) {
+                Connect4GameArchive archive =
+                        new Connect4GameArchive(Paths.get(archivePath));
+                journal.setArchive(archive);
+                Connect4.reserveIds(archive.getMaxGameId());
+            }
+            List<Connect4MoveJournal.Game> unfinished = journal.recover();
+            Connect4.reserveIds(journal.getMaxGameId());
+            restore(unfinished);
+        }
+        serverChannel = ServerSocketChannel.open();
+        if (Boolean.getBoolean("connect4.reusePort")
+                && serverChannel.supportedOptions()
+                        .contains(StandardSocketOptions.SO_REUSEPORT)) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverChannel.bind(new InetSocketAddress(port), BACKLOG);
+        serverChannel.configureBlocking(false);
+        matchmaker = new Connect4Matchmaker(this);
+        loops = new Connect4EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Connect4EventLoop("Connect4EventLoop-" + i);
+        }
+        serverChannel.register(loops[0].getSelector(), SelectionKey.OP_ACCEPT,
+                (Connect4EventLoop.Handler) key -> accept());
+        for (Connect4EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Gets the listening socket, e.g. to close it.
+     *
+     * @return the listening channel
+     */
+    public ServerSocketChannel getChannel() {
+        return serverChannel;
+    }
+
+    /**
+     * Makes the server one node of several: its connections and games are
+     * published to the directory, and clients are redirected to other nodes
+     * for their games or when this one is busier.
+     *
+     * @param directory the directory, not yet started
+     */
+    public void setDirectory(Connect4GameDirectory directory) {
+        this.directory = directory;
+        directory.start(connections::get, sessions::getGameIds);
+    }
+
+    /**
+     * Stops accepting connections. Games in progress are played out, then the
+     * loops end. The timers keep running, so that seats of players who have
+     * dropped out are still given up in time.
+     */
+    public void shutdown() {
+        if (directory != null) {
+            directory.stop();
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        matchmaker.shutdown();
+        for (Connect4EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        if (journal != null) {
+            try {
+                journal.sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Drains the server so that a replacement process can take over without
+     * dropping games. New connections are refused, players waiting for an
+     * opponent are let go and running games get up to the timeout to finish.
+     * Games still running then are checkpointed: they are frozen as they
+     * stand, the journal is synced and closed, which lets the replacement
+     * open it and restore them, and every connection is closed, so their
+     * players reconnect and resume there. Without a journal, unfinished
+     * games are lost when the connections close.
+     *
+     * A replacement can be started before the drain. It waits for the
+     * journal before it binds the port, so it only starts listening once this
+     * server has stopped, and clients resume there. From the start of the
+     * drain until the replacement is listening, up to the timeout plus the
+     * time to recover the journal, new connections are refused, and any
+     * still in the listening socket's queue when it closes are reset.
+     * Clients that can resume retry on their own; the timeout trades how
+     * long that window lasts against how many games are handed over rather
+     * than finished here.
+     *
+     * With the connect4.reusePort system property the port is bound with
+     * SO_REUSEPORT, so a replacement without a journal can bind it while
+     * this server still listens. The kernel then shares new connections
+     * between both, and those this server has queued when it closes are
+     * reset, so it is off by default.
+     *
+     * @param timeoutMillis how long running games are given to finish
+     * @return number of games left unfinished, or -1 if the server was
+     * already draining
+     */
+    public int drain(long timeoutMillis) {
+        if (!draining.compareAndSet(false, true)) {
+            return -1;
+        }
+        if (directory != null) {
+            directory.stop();
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        matchmaker.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<Connect4> games = sessions.getGames();
+        try {
+            while (!games.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+                games = sessions.getGames();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (journal != null) {
+            for (Connect4 game : games) {
+                game.suspend();
+            }
+            journal.close();
+        }
+        for (Connect4EventLoop loop : loops) {
+            loop.closeConnections();
+            loop.shutdown();
+        }
+        try {
+            for (Connect4EventLoop loop : loops) {
+                loop.awaitTermination(CLOSE_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return games.size();
+    }
+
+    /**
+     * Rebuilds the games the last run left unfinished and holds their seats
+     * for their players. A game against the computer that was waiting on its
+     * move gets it searched again.
+     *
+     * @param games the games read back from the journal
+     */
+    private void restore(List<Connect4MoveJournal.Game> games) {
+        for (Connect4MoveJournal.Game saved : games) {
+            Connect4 game;
+            try {
+                game = Connect4.restore(saved, journal);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                journal.end(saved.getId(), ONGOING);
+                continue;
+            }
+            if (game.isOver()) {
+                continue;
+            }
+            for (char player : new char[]{P1, P2}) {
+                if (saved.isSeated(player)) {
+                    sessions.restore(game, player, saved.getKey(player));
+                }
+            }
+            startClock(game);
+            if (game.isComputerTurn()) {
+                searchMove(game);
+            }
+            System.out.println("Restored game " + game.getId());
+        }
+    }
+
+    /**
+     * Accepts every pending connection and deals them out to the loops.
+     */
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            ACCEPTED.increment();
+            OPEN.increment();
+            connections.incrementAndGet();
+            Connect4EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.execute(() -> {
+                try {
+                    Connect4Connection connection = new Connect4Connection(this, loop,
+                            channel);
+                    connection.register();
+                    timers.schedule(() -> loop.execute(() -> {
+                        if (connection.getState() == Connect4Connection.State.HANDSHAKE) {
+                            connection.close();
+                        }
+                    }), Connect4Protocol.HANDSHAKE_MILLIS);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    try {
+                        channel.close();
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Handles the game mode a new client sends. Against the computer the game
+     * starts right away; otherwise the client goes to the matchmaker, and
+     * hears its token once it has been paired. A RESUME takes the client back
+     * to its game, and a WATCH makes it a spectator of one. A client may be
+     * redirected to a less loaded node, unless it was redirected here.
+     *
+     * @param connection the client
+     * @param obj the object it sent
+     * @throws IOException the client cannot be answered
+     */
+    void handshake(Connect4Connection connection, Object obj) throws IOException {
+        boolean redirected = false;
+        int rows = ROWS;
+        int columns = COLUMNS;
+        int connect = 4;
+        int rating = 0;
+        if (obj instanceof Connect4Protocol.Message) {
+            Connect4Protocol.Message message = (Connect4Protocol.Message) obj;
+            if (message.getOpcode() == Connect4Protocol.OP_WATCH) {
+                watch(connection, message);
+                return;
+            } else if (message.getOpcode() == Connect4Protocol.OP_RESUME) {
+                resume(connection, message);
+                return;
+            }
+            message.checkBoard();
+            obj = message.getMode();
+            redirected = message.isRedirected();
+            rows = message.getRows();
+            columns = message.getColumns();
+            connect = message.getConnect();
+            rating = message.getRating();
+        }
+        if (!(obj instanceof Character)) {
+            throw new IOException("Expected a game mode");
+        }
+        char mode = (Character) obj;
+        if (directory != null && !redirected && connection.canRedirect()
+                && redirect(connection, directory.pickNode())) {
+            return;
+        }
+        if (mode == PLAYER) {
+            connection.waitForOpponent(matchmaker.enqueue(connection, mode, rows,
+                    columns, connect,
+                    rating == 0 ? Connect4Matchmaker.INITIAL_RATING : rating));
+            return;
+        }
+        sendJoin(connection, P1, rows, columns);
+        startGame(connection, null, rows, columns, connect);
+    }
+
+    /**
+     * Gives a reconnecting client its seat back, along with its token, the
+     * board and whose turn it is. A client with no seat to go back to is
+     * disconnected.
+     *
+     * @param connection the client
+     * @param resume its RESUME frame
+     * @throws IOException the client cannot be answered
+     */
+    private void resume(Connect4Connection connection,
+            Connect4Protocol.Message resume) throws IOException {
+        Connect4SessionRegistry.Session session = null;
+        if (connection.canResume()) {
+            session = sessions.resume(resume.getGameId(), resume.getToken(),
+                    resume.getKey(), connection);
+        }
+        if (session == null) {
+            if (directory == null
+                    || !redirect(connection, directory.locate(resume.getGameId()))) {
+                connection.close();
+            }
+            return;
+        }
+        Connect4 game = session.getGame();
+        sendJoin(connection, session.getPlayer(), game.getRows(), game.getColumns());
+        connection.play(session);
+        game.reconnect(session.getPlayer(), connection);
+        System.out.println("Player resumed game " + game.getId());
+    }
+
+    /**
+     * Makes a client that opened with WATCH a spectator of the game it
+     * names. A client too old to watch, or a game that is not being played,
+     * gets the connection closed.
+     *
+     * @param connection the client
+     * @param watch the WATCH it sent
+     * @throws IOException the client cannot be answered
+     */
+    private void watch(Connect4Connection connection, Connect4Protocol.Message watch)
+            throws IOException {
+        Connect4 game = null;
+        if (connection.canWatch()) {
+            game = sessions.getGame(watch.getGameId());
+        }
+        if (game == null) {
+            if (directory == null
+                    || !redirect(connection, directory.locate(watch.getGameId()))) {
+                connection.close();
+            }
+            return;
+        }
+        Connect4Broadcast broadcast = game.watch(connection);
+        if (broadcast != null) {
+            connection.watch(broadcast);
+        }
+    }
+
+    /**
+     * Sends a client to another node, if it can follow a redirect.
+     *
+     * @param connection the client
+     * @param node the node, or null to keep the client here
+     * @return true if the client was redirected and is being closed
+     * @throws IOException the client cannot be answered
+     */
+    private boolean redirect(Connect4Connection connection,
+            Connect4GameDirectory.Node node) throws IOException {
+        if (node == null || !connection.canRedirect()) {
+            return false;
+        }
+        connection.sendRedirect(node.getHost(), node.getPort());
+        connection.close();
+        return true;
+    }
+
+    /**
+     * Tells a player their token and, if their client needs one, a GUI port.
+     *
+     * @param connection the player
+     * @param token P1 or P2
+     * @param rows number of rows of the board
+     * @param columns number of columns of the board
+     * @throws IOException the player cannot be reached
+     */
+    private void sendJoin(Connect4Connection connection, char token, int rows,
+            int columns) throws IOException {
+        int port = 0;
+        if (connection.needsPortGUI()) {
+            port = portGUI.getAndIncrement();
+        }
+        connection.sendJoin(token, port, rows, columns);
+    }
+
+    /**
+     * Starts the game of two paired players.
+     *
+     * @param p1 the first player's ticket
+     * @param p2 the second player's ticket
+     */
+    @Override
+    public void paired(Connect4Matchmaker.Ticket p1, Connect4Matchmaker.Ticket p2) {
+        Connect4Connection first = (Connect4Connection) p1.getPeer();
+        Connect4Connection second = (Connect4Connection) p2.getPeer();
+        PAIR_WAIT.record(Connect4Metrics.micros(first.getAccepted()));
+        PAIR_WAIT.record(Connect4Metrics.micros(second.getAccepted()));
+        try {
+            sendJoin(first, P1, p1.getRows(), p1.getColumns());
+            sendJoin(second, P2, p1.getRows(), p1.getColumns());
+            startGame(first, second, p1.getRows(), p1.getColumns(), p1.getConnect());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Disconnects a player nobody was found for.
+     *
+     * @param ticket the player's ticket
+     */
+    @Override
+    public void expired(Connect4Matchmaker.Ticket ticket) {
+        ticket.getPeer().close();
+    }
+
+    /**
+     * Starts a game.
+     *
+     * @param p1 the first player
+     * @param p2 the second player, or null against the computer
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param connect tokens in a row needed to win
+     * @throws IOException a player cannot be reached
+     */
+    private void startGame(Connect4Connection p1, Connect4Connection p2, int rows,
+            int columns, int connect) throws IOException {
+        Connect4 game;
+        if (p2 == null) {
+            game = new Connect4(p1, null, 1, rows, columns, connect);
+            System.out.println("Launching game against computer opponent.");
+        } else {
+            game = new Connect4(p1, p2, 2, rows, columns, connect);
+            System.out.println("Launching 2 player game.");
+        }
+        if (journal != null) {
+            game.setJournal(journal);
+        }
+        seat(game, P1, p1);
+        if (p2 != null) {
+            seat(game, P2, p2);
+        }
+        startClock(game);
+        game.start();
+    }
+
+    /**
+     * Puts the players of a game on the turn clock. A player who runs out of
+     * time forfeits on one of the event loops, where sending to the players
+     * never blocks, and their seats are given up there too. The loop is only
+     * looked up then, since restored games get their clocks before the loops
+     * exist.
+     *
+     * @param game the game
+     */
+    private void startClock(Connect4 game) {
+        if (Connect4.TURN_MILLIS > 0) {
+            game.setTurnClock(timers, Connect4.TURN_MILLIS,
+                    task -> loops[Math.floorMod(game.getId(), loops.length)].execute(task),
+                    () -> sessions.end(game));
+        }
+    }
+
+    /**
+     * Registers a player's seat in a starting game and tells the player how
+     * to get back to it. The seat's key is journaled with the game.
+     *
+     * @param game the game
+     * @param player P1 or P2
+     * @param connection the player
+     * @throws IOException the player cannot be reached
+     */
+    private void seat(Connect4 game, char player, Connect4Connection connection)
+            throws IOException {
+        Connect4SessionRegistry.Session session =
+                sessions.register(game, player, connection);
+        if (journal != null) {
+            journal.seat(game.getId(), player, session.getKey());
+        }
+        connection.play(session);
+        connection.sendSession(player, game.getId(), session.getKey());
+    }
+
+    /**
+     * Hands an object from a player to their game, then has the computer
+     * search its reply on the AI pool if it is its turn. The reply is played
+     * on the worker that found it.
+     *
+     * @param game the game
+     * @param player the player, P1 or P2
+     * @param obj the object the player sent
+     */
+    void play(Connect4 game, char player, Object obj) {
+        sessions.touch(game, player);
+        try {
+            game.receive(player, obj);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (game.isOver()) {
+            sessions.end(game);
+        } else if (game.isComputerTurn()) {
+            searchMove(game);
+        }
+    }
+
+    /**
+     * Has the computer's move searched on the AI pool and played on the
+     * worker that found it. A search that fails is replaced by a quick move,
+     * since the computer has no turn clock and the game would otherwise wait
+     * on it for ever.
+     *
+     * @param game the game
+     */
+    private void searchMove(Connect4 game) {
+        computers.submit(game.copyState(), Connect4AIPool.PRIORITY_INTERACTIVE,
+                Connect4AIPool.DEFAULT_DEADLINE_MILLIS)
+                .whenComplete((move, failure) -> {
+                    if (failure != null) {
+                        failure.printStackTrace();
+                        move = Connect4ComputerPlayer.getQuickMove(game.copyState());
+                    }
+                    play(game, P2, move);
+                });
+    }
+
+    /**
+     * Handles a player whose connection dropped during a game. A client that
+     * can resume keeps its seat for the grace window; any other counts as
+     * having quit. Must run on the connection's loop.
+     *
+     * @param connection the connection
+     */
+    void disconnected(Connect4Connection connection) {
+        if (connection.canResume()) {
+            sessions.disconnected(connection.getSession(), connection);
+        } else {
+            play(connection.getGame(), connection.getPlayer(), "");
+        }
+    }
+
+    /**
+     * Counts a player who lost their seat as having quit.
+     *
+     * @param game the game
+     * @param player P1 or P2
+     */
+    @Override
+    public void abandoned(Connect4 game, char player) {
+        play(game, player, "");
+    }
+
+    /**
+     * Forgets a closed connection, taking it out of matchmaking if it was
+     * waiting for an opponent.
+     *
+     * @param connection the connection
+     * @param last its state before it closed
+     */
+    void closed(Connect4Connection connection, Connect4Connection.State last) {
+        OPEN.decrement();
+        connections.decrementAndGet();
+        if (last == Connect4Connection.State.WAITING) {
+            connection.getTicket().cancel();
+        }
+    }
+}
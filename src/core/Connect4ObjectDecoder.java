@@ -0,0 +1,269 @@
+/**
+ *
+ * Connect4ObjectDecoder
+ *
+ * Incremental reader for the objects clients write to their
+ * ObjectOutputStream.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes a Java serialization stream from a non-blocking channel, where an
+ * ObjectInputStream cannot be used because it blocks until a whole object has
+ * arrived. Only the part of the stream format that clients actually send is
+ * understood: Strings, boxed Characters and Integers, back references to
+ * earlier objects and resets. Anything else is rejected.
+ *
+ * decode is called each time more bytes have been read. When the buffer ends
+ * in the middle of an object nothing is consumed and null is returned, so the
+ * object is decoded again from its start once the rest has arrived.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4ObjectDecoder {
+
+    /**
+     * Stream format constants, see java.io.ObjectStreamConstants.
+     */
+    private static final short STREAM_MAGIC = (short) 0xACED;
+    private static final short STREAM_VERSION = 5;
+    private static final byte TC_NULL = 0x70;
+    private static final byte TC_REFERENCE = 0x71;
+    private static final byte TC_CLASSDESC = 0x72;
+    private static final byte TC_OBJECT = 0x73;
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_ENDBLOCKDATA = 0x78;
+    private static final byte TC_RESET = 0x79;
+    private static final int BASE_WIRE_HANDLE = 0x7E0000;
+    private static final byte SC_SERIALIZABLE = 0x02;
+
+    /**
+     * Objects and class descriptions in handle order, for back references.
+     */
+    private final List<Object> handles = new ArrayList<>();
+
+    /**
+     * Set once the stream header has been read.
+     */
+    private boolean started;
+
+    /**
+     * Description of a serializable class as read from the stream.
+     */
+    private static class ClassDesc {
+
+        /**
+         * Fully qualified class name.
+         */
+        private String name;
+
+        /**
+         * Type code of each field, in stream order.
+         */
+        private char[] types;
+
+        /**
+         * Description of the serializable superclass, or null.
+         */
+        private ClassDesc parent;
+    }
+
+    /**
+     * Decodes the next object from a buffer.
+     *
+     * @param in the bytes read so far, in read mode
+     * @return the next object, or null if it has not fully arrived yet
+     * @throws IOException the stream holds something that is not understood
+     */
+    public Object decode(ByteBuffer in) throws IOException {
+        int start = in.position();
+        int known = handles.size();
+        try {
+            if (!started) {
+                if (in.getShort() != STREAM_MAGIC || in.getShort() != STREAM_VERSION) {
+                    throw new IOException("Not an object stream");
+                }
+                started = true;
+                start = in.position();
+            }
+            while (true) {
+                byte tc = in.get();
+                if (tc == TC_RESET) {
+                    handles.clear();
+                    start = in.position();
+                    known = 0;
+                    continue;
+                }
+                return readContent(in, tc);
+            }
+        } catch (BufferUnderflowException e) {
+            in.position(start);
+            handles.subList(known, handles.size()).clear();
+            return null;
+        }
+    }
+
+    /**
+     * Reads one object after its type code.
+     *
+     * @param in the stream bytes
+     * @param tc the type code
+     * @return the object
+     * @throws IOException the object is not one of the supported kinds
+     */
+    private Object readContent(ByteBuffer in, byte tc) throws IOException {
+        if (tc == TC_STRING) {
+            String text = readUtf(in);
+            handles.add(text);
+            return text;
+        }
+        if (tc == TC_REFERENCE) {
+            return handle(in.getInt());
+        }
+        if (tc == TC_NULL) {
+            return null;
+        }
+        if (tc != TC_OBJECT) {
+            throw new IOException("Unsupported type code " + tc);
+        }
+        ClassDesc desc = readClassDesc(in);
+        int index = handles.size();
+        handles.add(null);
+
+        /**
+         * Field values come superclass first, so collect the chain top down.
+         */
+        List<ClassDesc> chain = new ArrayList<>();
+        for (ClassDesc d = desc; d != null; d = d.parent) {
+            chain.add(0, d);
+        }
+        long value = 0;
+        for (ClassDesc d : chain) {
+            for (char type : d.types) {
+                value = readPrimitive(in, type);
+            }
+        }
+        Object obj;
+        if (desc.name.equals("java.lang.Integer")) {
+            obj = (int) value;
+        } else if (desc.name.equals("java.lang.Character")) {
+            obj = (char) value;
+        } else {
+            throw new IOException("Unsupported class " + desc.name);
+        }
+        handles.set(index, obj);
+        return obj;
+    }
+
+    /**
+     * Reads a class description, new or referenced.
+     *
+     * @param in the stream bytes
+     * @return the description, or null for TC_NULL
+     * @throws IOException the class is not a plain serializable class
+     */
+    private ClassDesc readClassDesc(ByteBuffer in) throws IOException {
+        byte tc = in.get();
+        if (tc == TC_NULL) {
+            return null;
+        }
+        if (tc == TC_REFERENCE) {
+            Object obj = handle(in.getInt());
+            if (!(obj instanceof ClassDesc)) {
+                throw new IOException("Not a class reference");
+            }
+            return (ClassDesc) obj;
+        }
+        if (tc != TC_CLASSDESC) {
+            throw new IOException("Unsupported class description " + tc);
+        }
+        ClassDesc desc = new ClassDesc();
+        desc.name = readUtf(in);
+        in.getLong();
+        handles.add(desc);
+        if (in.get() != SC_SERIALIZABLE) {
+            throw new IOException("Unsupported class " + desc.name);
+        }
+        desc.types = new char[in.getShort()];
+        for (int i = 0; i < desc.types.length; i++) {
+            desc.types[i] = (char) in.get();
+            readUtf(in);
+            if (desc.types[i] == 'L' || desc.types[i] == '[') {
+                throw new IOException("Unsupported field in " + desc.name);
+            }
+        }
+        if (in.get() != TC_ENDBLOCKDATA) {
+            throw new IOException("Unsupported annotation in " + desc.name);
+        }
+        desc.parent = readClassDesc(in);
+        return desc;
+    }
+
+    /**
+     * Reads a primitive field value.
+     *
+     * @param in the stream bytes
+     * @param type the field type code
+     * @return the value, widened to a long
+     * @throws IOException the type code is not a primitive
+     */
+    private static long readPrimitive(ByteBuffer in, char type) throws IOException {
+        switch (type) {
+            case 'B':
+            case 'Z':
+                return in.get();
+            case 'C':
+                return in.getChar();
+            case 'S':
+                return in.getShort();
+            case 'I':
+            case 'F':
+                return in.getInt();
+            case 'J':
+            case 'D':
+                return in.getLong();
+            default:
+                throw new IOException("Unsupported field type " + type);
+        }
+    }
+
+    /**
+     * Reads a short length prefixed string. Clients only send ASCII, which is
+     * the same in modified UTF-8.
+     *
+     * @param in the stream bytes
+     * @return the string
+     */
+    private static String readUtf(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Looks up a back reference.
+     *
+     * @param handle the wire handle
+     * @return the object or class description it refers to
+     * @throws IOException the handle was never assigned
+     */
+    private Object handle(int handle) throws IOException {
+        int index = handle - BASE_WIRE_HANDLE;
+        if (index < 0 || index >= handles.size()) {
+            throw new IOException("Bad handle " + handle);
+        }
+        return handles.get(index);
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ *
+ * Connect4OpeningBook
+ *
+ * Precomputed moves for the first plies of a game.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read only opening book, memory-mapped from a file written by
+ * Connect4BookGenerator. Every server process that maps the same file shares
+ * one copy of it through the page cache, and a lookup is a binary search over
+ * the mapped records with no allocation.
+ *
+ * File layout, big endian:
+ *
+ * <pre>
+ * header, 16 bytes:
+ *   int  magic     "C4OB"
+ *   byte version
+ *   byte rows
+ *   byte columns
+ *   byte plies     deepest position in the book
+ *   byte flags     FLAG_EXACT if scores are solved, not searched
+ *   3 bytes reserved
+ *   int  count     number of records
+ * records, 12 bytes each, sorted by key:
+ *   long key &lt;&lt; 8 | (move + 1)
+ *   int  score
+ * </pre>
+ *
+ * Positions are stored once for each mirror pair, under the smaller of the
+ * two keys.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4OpeningBook extends Connect4Constants {
+
+    /**
+     * File format constants.
+     */
+    public static final int MAGIC = 0x43344F42;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 16;
+    public static final int RECORD_BYTES = 12;
+
+    /**
+     * Header flag set when the scores are exact game values from
+     * Connect4Solver rather than depth limited search scores.
+     */
+    public static final int FLAG_EXACT = 1;
+
+    /**
+     * The mapped file.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Number of records in the book.
+     */
+    private final int count;
+
+    /**
+     * Deepest position in the book, in plies.
+     */
+    private final int plies;
+
+    /**
+     * Header flags.
+     */
+    private final int flags;
+
+    /**
+     * Memory-maps a book file.
+     *
+     * @param path the book file
+     * @throws IOException the file cannot be read or is not a book for this
+     * board size
+     */
+    public Connect4OpeningBook(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not an opening book: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+            throw new IOException("Not an opening book: " + path);
+        }
+        if (buffer.get(5) != ROWS || buffer.get(6) != COLUMNS) {
+            throw new IOException("Opening book is for a " + buffer.get(5) + "x"
+                    + buffer.get(6) + " board: " + path);
+        }
+        plies = buffer.get(7);
+        flags = buffer.get(8);
+        count = buffer.getInt(12);
+        if (HEADER_BYTES + (long) count * RECORD_BYTES != buffer.capacity()) {
+            throw new IOException("Truncated opening book: " + path);
+        }
+    }
+
+    /**
+     * Empty standard board, only used for its mirror layout.
+     */
+    private static final Connect4Board STANDARD = new Connect4Board();
+
+    /**
+     * Smallest of the key of a position and the key of its mirror image.
+     *
+     * @param key the key of a position on the standard board
+     * @return the key the position is stored under
+     */
+    public static long canonicalKey(long key) {
+        return Math.min(key, STANDARD.mirror(key));
+    }
+
+    /**
+     * Looks up the best move of a position.
+     *
+     * @param board the position
+     * @return zero based column, or -1 if the position is not in the book
+     */
+    public int getMove(Connect4Board board) {
+        int i = find(board);
+        if (i < 0) {
+            return -1;
+        }
+        int move = (int) (buffer.getLong(HEADER_BYTES + i * RECORD_BYTES) & 0xFF) - 1;
+        if (move >= 0 && board.key() != canonicalKey(board.key())) {
+            move = COLUMNS - 1 - move;
+        }
+        return move;
+    }
+
+    /**
+     * Looks up the score of a position, from the point of view of the side to
+     * move.
+     *
+     * @param board the position
+     * @param missing value to return if the position is not in the book
+     * @return the stored score, or missing
+     */
+    public int getScore(Connect4Board board, int missing) {
+        int i = find(board);
+        if (i < 0) {
+            return missing;
+        }
+        return buffer.getInt(HEADER_BYTES + i * RECORD_BYTES + 8);
+    }
+
+    /**
+     * Gets the deepest position in the book.
+     *
+     * @return the number of plies covered
+     */
+    public int getPlies() {
+        return plies;
+    }
+
+    /**
+     * Checks whether the scores are exact game values.
+     *
+     * @return true if the book was built by the solver
+     */
+    public boolean isExact() {
+        return (flags & FLAG_EXACT) != 0;
+    }
+
+    /**
+     * Gets the number of positions in the book.
+     *
+     * @return the record count
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Writes the header of a book file.
+     *
+     * @param out buffer of at least HEADER_BYTES, written at its position
+     * @param plies deepest position in the book
+     * @param flags header flags
+     * @param count number of records that follow
+     */
+    static void writeHeader(ByteBuffer out, int plies, int flags, int count) {
+        out.putInt(MAGIC);
+        out.put((byte) VERSION);
+        out.put((byte) ROWS);
+        out.put((byte) COLUMNS);
+        out.put((byte) plies);
+        out.put((byte) flags);
+        out.put((byte) 0);
+        out.put((byte) 0);
+        out.put((byte) 0);
+        out.putInt(count);
+    }
+
+    /**
+     * Binary search for the record of a position.
+     *
+     * @param board the position
+     * @return index of the record, or -1 if there is none
+     */
+    private int find(Connect4Board board) {
+        if (board.getMoves() > plies || !board.isStandard()) {
+            return -1;
+        }
+        long key = canonicalKey(board.key());
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = buffer.getLong(HEADER_BYTES + mid * RECORD_BYTES) >>> 8;
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
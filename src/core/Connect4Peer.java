@@ -0,0 +1,108 @@
+/**
+ *
+ * Connect4Peer
+ *
+ * Outgoing side of a player's connection.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.IOException;
+
+/**
+ * Where a Connect4 game sends its messages for one player. Each connection
+ * encodes them for the protocol its client speaks: serialized Strings and
+ * char[][] boards for old clients, Connect4Protocol frames for new ones.
+ *
+ * @author James Kendall Bruce
+ */
+public interface Connect4Peer {
+
+    /**
+     * Tells the player their token, the port for their GUI and the board
+     * size.
+     *
+     * @param token P1 or P2
+     * @param port the GUI port, or 0 if the client does not need one
+     * @param rows number of rows
+     * @param columns number of columns
+     * @throws IOException the message cannot be sent
+     */
+    void sendJoin(char token, int port, int rows, int columns) throws IOException;
+
+    /**
+     * Tells whether the client relays to its GUI over a local socket, and so
+     * needs a port for it: old clients and protocol versions before 3 do.
+     * Must only be asked once the client's opening has been read.
+     *
+     * @return true if sendJoin must be given a free port
+     */
+    boolean needsPortGUI();
+
+    /**
+     * Tells whether the client can reconnect to its game after its connection
+     * drops: binary clients from protocol version 4 can.
+     *
+     * @return true if the client's seat should be kept for it
+     */
+    boolean canResume();
+
+    /**
+     * Gives the player what it needs to resume its game. Ignored by clients
+     * that cannot resume.
+     *
+     * @param token P1 or P2
+     * @param gameId the game
+     * @param key the secret key of the player's seat
+     * @throws IOException the message cannot be sent
+     */
+    void sendSession(char token, int gameId, long key) throws IOException;
+
+    /**
+     * Sends a status message to the player.
+     *
+     * @param status one of the turn, invalid move, result or quit constants
+     * @throws IOException the message cannot be sent
+     */
+    void sendStatus(String status) throws IOException;
+
+    /**
+     * Sends a move that has just been played.
+     *
+     * @param board the board after the move
+     * @param column zero based column of the move
+     * @param row zero based row of the move, 0 being the bottom
+     * @param token token of the player who moved
+     * @throws IOException the message cannot be sent
+     */
+    void sendMove(Connect4State board, int column, int row, char token)
+            throws IOException;
+
+    /**
+     * Sends the whole board, so the player can start over from it after
+     * joining, reconnecting or missing a move.
+     *
+     * @param board the board
+     * @throws IOException the message cannot be sent
+     */
+    void sendSnapshot(Connect4State board) throws IOException;
+
+    /**
+     * Checks whether the client is still connected, e.g. before pairing a
+     * waiting player. May take a moment on a blocking connection, which has
+     * to try a read to find out, so it must not be asked while a game is
+     * reading from the client.
+     *
+     * @return false if the client has gone away
+     */
+    boolean isOpen();
+
+    /**
+     * Closes the connection once everything sent so far has gone out.
+     */
+    void close();
+}
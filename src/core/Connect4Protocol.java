@@ -0,0 +1,780 @@
+/**
+ *
+ * Connect4Protocol
+ *
+ * Compact binary wire protocol between the server and its clients.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary replacement for the serialized Strings and char[][] boards of the
+ * original protocol. A client opens with the two MAGIC bytes and the highest
+ * version it speaks; the server answers with a HELLO frame holding the version
+ * both will use. Old clients open with the Java serialization header instead,
+ * which the server recognizes and answers in kind.
+ *
+ * After that every message is a frame: a two byte length, then a one byte
+ * opcode and its payload, the length counting both. Instead of the whole board
+ * the server sends the (column, row, token) of each move, so clients keep
+ * their own copy of the board. Tokens travel as their P1 or P2 character.
+ *
+ * From version 2 each MOVE also carries the move's sequence number, the number
+ * of tokens on the board after it. The whole board only goes out as a
+ * SNAPSHOT when a client joins or reconnects, or when it finds a gap in the
+ * sequence and asks for one with SYNC.
+ *
+ * From version 3 the client runs its GUI in process instead of relaying to it
+ * over a local socket, so the GUI port of a JOIN is 0.
+ *
+ * From version 4 the server follows each JOIN of the NIO server with a
+ * SESSION frame naming the game and a secret key. A client whose connection
+ * drops can reconnect within the grace window and open with RESUME, carrying
+ * the same three values, instead of MODE; it gets its JOIN again, a SNAPSHOT
+ * and the current turn, and plays on.
+ *
+ * From version 5 a client may open with WATCH and a game id instead of MODE
+ * to follow a game of the NIO server as a spectator. It gets a JOIN with
+ * token 0, a SNAPSHOT and the current turn, then every MOVE and status of the
+ * game until it ends. A spectator that falls behind gets a fresh SNAPSHOT in
+ * place of the moves it missed. A WATCH for a game that is not running is
+ * answered by closing the connection.
+ *
+ * From version 6 a server that is one of several Connect4GameDirectory nodes
+ * may answer MODE, RESUME or WATCH with a REDIRECT naming the host and port
+ * of another node, and close the connection. The client opens the protocol
+ * again there and repeats what it sent, a MODE with a second byte of 1 to
+ * say it has been redirected already and must not be sent on again.
+ *
+ * From version 7 a MODE may go on to name the board the client wants to play
+ * on, as rows, columns and tokens in a row, and the client's rating as two
+ * bytes, 0 if it has none. Players are only paired with others wanting the
+ * same board, preferring those of a similar rating. A MODE without them asks
+ * for the standard board.
+ *
+ * The frames for the status messages never change, so they are encoded once
+ * and shared.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4Protocol extends Connect4Constants {
+
+    /**
+     * First bytes sent by a binary client, "C4".
+     */
+    public static final short MAGIC = 0x4334;
+
+    /**
+     * Highest protocol version this build speaks.
+     */
+    public static final int VERSION = 7;
+
+    /**
+     * How long a new connection has to say what it wants, a game mode, a
+     * resume or a watch, before it is closed, from the
+     * connect4.handshakeSeconds system property.
+     */
+    public static final long HANDSHAKE_MILLIS = TimeUnit.SECONDS.toMillis(
+            Long.getLong("connect4.handshakeSeconds", 30));
+
+    /**
+     * Bytes of the client's opening: MAGIC and its version.
+     */
+    public static final int HELLO_BYTES = 3;
+
+    /**
+     * First two bytes of a Java serialization stream, sent by old clients.
+     */
+    public static final short SERIALIZATION_MAGIC = (short) 0xACED;
+
+    /**
+     * Bytes of the length in front of every frame.
+     */
+    public static final int LENGTH_BYTES = 2;
+
+    /**
+     * Opcodes. MODE, SYNC, RESUME and WATCH from the client, the rest from the
+     * server, except QUIT and MOVE which go both ways.
+     */
+    public static final int OP_HELLO = 0;
+    public static final int OP_MODE = 1;
+    public static final int OP_JOIN = 2;
+    public static final int OP_TURN = 3;
+    public static final int OP_INVALID = 4;
+    public static final int OP_MOVE = 5;
+    public static final int OP_WIN = 6;
+    public static final int OP_TIE = 7;
+    public static final int OP_QUIT = 8;
+    public static final int OP_SNAPSHOT = 9;
+    public static final int OP_SYNC = 10;
+    public static final int OP_RESUME = 11;
+    public static final int OP_SESSION = 12;
+    public static final int OP_WATCH = 13;
+    public static final int OP_REDIRECT = 14;
+
+    /**
+     * What a SYNC frame turns into on the server, see Message.toInput.
+     */
+    public static final Object SYNC = new Object();
+
+    /**
+     * Pre-encoded status frames.
+     */
+    private static final byte[] P1_TURN_FRAME = frame(OP_TURN, P1);
+    private static final byte[] P2_TURN_FRAME = frame(OP_TURN, P2);
+    private static final byte[] P1_INVALID_FRAME = frame(OP_INVALID, P1);
+    private static final byte[] P2_INVALID_FRAME = frame(OP_INVALID, P2);
+    private static final byte[] P1_WINS_FRAME = frame(OP_WIN, P1);
+    private static final byte[] P2_WINS_FRAME = frame(OP_WIN, P2);
+    private static final byte[] TIE_FRAME = frame(OP_TIE);
+    private static final byte[] P1_QUIT_FRAME = frame(OP_QUIT, P1);
+    private static final byte[] P2_QUIT_FRAME = frame(OP_QUIT, P2);
+    private static final byte[] SYNC_FRAME = frame(OP_SYNC);
+
+    /**
+     * Encodes a frame.
+     *
+     * @param opcode the opcode
+     * @param payload the payload, one byte each
+     * @return the frame
+     */
+    public static byte[] frame(int opcode, int... payload) {
+        int length = 1 + payload.length;
+        byte[] frame = new byte[LENGTH_BYTES + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        frame[2] = (byte) opcode;
+        for (int i = 0; i < payload.length; i++) {
+            frame[3 + i] = (byte) payload[i];
+        }
+        return frame;
+    }
+
+    /**
+     * Builds a binary client's opening bytes.
+     *
+     * @return MAGIC followed by VERSION
+     */
+    public static byte[] clientHello() {
+        return new byte[] {(byte) (MAGIC >>> 8), (byte) MAGIC, VERSION};
+    }
+
+    /**
+     * Builds the server's answer to a client's opening.
+     *
+     * @param version the version both sides will use
+     * @return the HELLO frame
+     */
+    public static byte[] hello(int version) {
+        return frame(OP_HELLO, version);
+    }
+
+    /**
+     * Builds the frame a client sends to pick its game mode.
+     *
+     * @param mode COMPUTER or PLAYER
+     * @return the MODE frame
+     */
+    public static byte[] mode(char mode) {
+        return frame(OP_MODE, mode);
+    }
+
+    /**
+     * Builds the frame a client sends to pick its game mode at the node it
+     * was redirected to.
+     *
+     * @param mode COMPUTER or PLAYER
+     * @return the MODE frame, marked as redirected
+     */
+    public static byte[] redirectedMode(char mode) {
+        return frame(OP_MODE, mode, 1);
+    }
+
+    /**
+     * Builds the frame a client sends to pick its game mode and board.
+     *
+     * @param mode COMPUTER or PLAYER
+     * @param redirected true if sent to the node the client was redirected to
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param connect tokens in a row needed to win
+     * @param rating the client's rating, or 0 if it has none
+     * @return the MODE frame
+     */
+    public static byte[] mode(char mode, boolean redirected, int rows, int columns,
+            int connect, int rating) {
+        return frame(OP_MODE, mode, redirected ? 1 : 0, rows, columns, connect,
+                rating >>> 8, rating);
+    }
+
+    /**
+     * Builds the frame telling a client its token, the port for its GUI and
+     * the size of the board.
+     *
+     * @param token P1 or P2
+     * @param port the GUI port, 0 from version 3
+     * @param rows number of rows
+     * @param columns number of columns
+     * @return the JOIN frame
+     */
+    public static byte[] join(char token, int port, int rows, int columns) {
+        return frame(OP_JOIN, token, port >>> 8, port, rows, columns);
+    }
+
+    /**
+     * Builds the frame giving a client what it needs to resume its game.
+     *
+     * @param token P1 or P2
+     * @param gameId the game
+     * @param key the secret key of the client's seat
+     * @return the SESSION frame
+     */
+    public static byte[] session(char token, int gameId, long key) {
+        return frame(OP_SESSION, sessionPayload(token, gameId, key));
+    }
+
+    /**
+     * Builds the frame a client opens with to take its seat again after its
+     * connection dropped.
+     *
+     * @param token P1 or P2
+     * @param gameId the game
+     * @param key the secret key of the client's seat
+     * @return the RESUME frame
+     */
+    public static byte[] resume(char token, int gameId, long key) {
+        return frame(OP_RESUME, sessionPayload(token, gameId, key));
+    }
+
+    /**
+     * Builds the frame a client opens with to watch a game.
+     *
+     * @param gameId the game
+     * @return the WATCH frame
+     */
+    public static byte[] watch(int gameId) {
+        return frame(OP_WATCH, gameId >>> 24, gameId >>> 16, gameId >>> 8, gameId);
+    }
+
+    /**
+     * Builds the frame sending a client to another server node: the two byte
+     * port, then the host name in ASCII.
+     *
+     * @param host the node's host name
+     * @param port the node's port
+     * @return the REDIRECT frame
+     */
+    public static byte[] redirect(String host, int port) {
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        int[] payload = new int[2 + name.length];
+        payload[0] = port >>> 8;
+        payload[1] = port;
+        for (int i = 0; i < name.length; i++) {
+            payload[2 + i] = name[i];
+        }
+        return frame(OP_REDIRECT, payload);
+    }
+
+    /**
+     * Lays out the payload shared by SESSION and RESUME: the token, the four
+     * byte game id and the eight byte key.
+     *
+     * @param token P1 or P2
+     * @param gameId the game
+     * @param key the key
+     * @return the payload
+     */
+    private static int[] sessionPayload(char token, int gameId, long key) {
+        int[] payload = new int[13];
+        payload[0] = token;
+        for (int i = 0; i < 4; i++) {
+            payload[1 + i] = gameId >>> (24 - 8 * i);
+        }
+        for (int i = 0; i < 8; i++) {
+            payload[5 + i] = (int) (key >>> (56 - 8 * i));
+        }
+        return payload;
+    }
+
+    /**
+     * Gets the frame for one of the status String constants.
+     *
+     * @param status a turn, invalid move, result or quit constant
+     * @return the shared frame, which must not be modified
+     * @throws IllegalArgumentException the String is not a status constant
+     */
+    public static byte[] status(String status) {
+        switch (status) {
+            case P1_TURN:
+                return P1_TURN_FRAME;
+            case P2_TURN:
+                return P2_TURN_FRAME;
+            case P1_INVALID:
+                return P1_INVALID_FRAME;
+            case P2_INVALID:
+                return P2_INVALID_FRAME;
+            case P1_WINS:
+                return P1_WINS_FRAME;
+            case P2_WINS:
+                return P2_WINS_FRAME;
+            case TIE:
+                return TIE_FRAME;
+            case P1_QUIT:
+                return P1_QUIT_FRAME;
+            case P2_QUIT:
+                return P2_QUIT_FRAME;
+            default:
+                throw new IllegalArgumentException("Not a status: " + status);
+        }
+    }
+
+    /**
+     * Builds the frame announcing a move.
+     *
+     * @param column zero based column
+     * @param row zero based row, 0 being the bottom
+     * @param token token of the player who moved
+     * @return the MOVE frame
+     */
+    public static byte[] move(int column, int row, char token) {
+        return frame(OP_MOVE, column, row, token);
+    }
+
+    /**
+     * Builds the version 2 frame announcing a move.
+     *
+     * @param column zero based column
+     * @param row zero based row, 0 being the bottom
+     * @param token token of the player who moved
+     * @param seq number of tokens on the board after the move
+     * @return the MOVE frame
+     */
+    public static byte[] move(int column, int row, char token, int seq) {
+        return frame(OP_MOVE, column, row, token, seq >>> 8, seq);
+    }
+
+    /**
+     * Builds a SNAPSHOT of a whole board: the sequence number, the size, then
+     * two bits per cell, row by row from the bottom, 0 for an empty cell, 1
+     * for P1 and 2 for P2.
+     *
+     * @param board the board
+     * @return the SNAPSHOT frame
+     */
+    public static byte[] snapshot(Connect4State board) {
+        char[][] gameBoard = board.toCharArray();
+        int rows = board.getRows();
+        int columns = board.getColumns();
+        int[] payload = new int[4 + (rows * columns + 3) / 4];
+        payload[0] = board.getMoves() >>> 8;
+        payload[1] = board.getMoves();
+        payload[2] = rows;
+        payload[3] = columns;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                int cell = r * columns + c;
+                int value = 0;
+                if (gameBoard[r][c] == P1) {
+                    value = 1;
+                } else if (gameBoard[r][c] == P2) {
+                    value = 2;
+                }
+                payload[4 + cell / 4] |= value << (cell % 4 * 2);
+            }
+        }
+        return frame(OP_SNAPSHOT, payload);
+    }
+
+    /**
+     * Gets the frame a client sends to ask for a snapshot.
+     *
+     * @return the shared SYNC frame
+     */
+    public static byte[] sync() {
+        return SYNC_FRAME;
+    }
+
+    /**
+     * Builds the frame a client sends to drop a token. Columns that do not fit
+     * in a byte are sent as 0, which the server rejects like any other bad
+     * column.
+     *
+     * @param column the column, from 1
+     * @return the MOVE frame
+     */
+    public static byte[] play(int column) {
+        if (column < 0 || column > 0xFF) {
+            column = 0;
+        }
+        return frame(OP_MOVE, column);
+    }
+
+    /**
+     * Builds the frame announcing that a player has quit.
+     *
+     * @param token the player
+     * @return the QUIT frame
+     */
+    public static byte[] quit(char token) {
+        if (token == P1) {
+            return P1_QUIT_FRAME;
+        }
+        return P2_QUIT_FRAME;
+    }
+
+    /**
+     * Decodes the next frame from a buffer without blocking.
+     *
+     * @param in the bytes read so far, in read mode
+     * @return the message, or null if the frame has not fully arrived, in
+     * which case nothing is consumed
+     * @throws IOException the frame is empty
+     */
+    public static Message decode(ByteBuffer in) throws IOException {
+        if (in.remaining() < LENGTH_BYTES) {
+            return null;
+        }
+        int length = in.getShort(in.position()) & 0xFFFF;
+        if (length == 0) {
+            throw new IOException("Empty frame");
+        }
+        if (in.remaining() < LENGTH_BYTES + length) {
+            return null;
+        }
+        in.position(in.position() + LENGTH_BYTES);
+        byte[] body = new byte[length];
+        in.get(body);
+        return new Message(body);
+    }
+
+    /**
+     * Reads the next frame from a stream, blocking until it has arrived.
+     *
+     * @param in the stream
+     * @return the message
+     * @throws IOException the stream ended or the frame is empty
+     */
+    public static Message read(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        if (length == 0) {
+            throw new IOException("Empty frame");
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new Message(body);
+    }
+
+    /**
+     * One decoded frame. Only the fields that belong to its opcode are set;
+     * unknown opcodes from newer versions decode without error and are meant
+     * to be ignored.
+     */
+    public static class Message {
+
+        /**
+         * The opcode and raw payload.
+         */
+        private final int opcode;
+        private final byte[] body;
+
+        /**
+         * Wraps a frame body.
+         *
+         * @param body the opcode and payload
+         */
+        Message(byte[] body) {
+            this.opcode = body[0] & 0xFF;
+            this.body = body;
+        }
+
+        /**
+         * Encodes the message again, e.g. to pass it on.
+         *
+         * @return the frame
+         */
+        public byte[] toFrame() {
+            byte[] frame = new byte[LENGTH_BYTES + body.length];
+            frame[0] = (byte) (body.length >>> 8);
+            frame[1] = (byte) body.length;
+            System.arraycopy(body, 0, frame, LENGTH_BYTES, body.length);
+            return frame;
+        }
+
+        /**
+         * Gets the opcode.
+         *
+         * @return one of the OP_ constants, or an unknown value
+         */
+        public int getOpcode() {
+            return opcode;
+        }
+
+        /**
+         * Gets an unsigned payload byte, or 0 past the end of a short frame.
+         *
+         * @param index index in the payload
+         * @return the byte value
+         */
+        private int payload(int index) {
+            if (index + 1 >= body.length) {
+                return 0;
+            }
+            return body[index + 1] & 0xFF;
+        }
+
+        /**
+         * Gets a two byte payload value.
+         *
+         * @param index index of the high byte in the payload
+         * @return the value
+         */
+        private int payloadShort(int index) {
+            return payload(index) << 8 | payload(index + 1);
+        }
+
+        /**
+         * Gets the game id of a SESSION, RESUME or WATCH.
+         *
+         * @return the game id
+         */
+        public int getGameId() {
+            if (opcode == OP_WATCH) {
+                return payloadShort(0) << 16 | payloadShort(2);
+            }
+            return payloadShort(1) << 16 | payloadShort(3);
+        }
+
+        /**
+         * Gets the key of a SESSION or RESUME.
+         *
+         * @return the key
+         */
+        public long getKey() {
+            return (long) (payloadShort(5) << 16 | payloadShort(7)) << 32
+                    | (payloadShort(9) << 16 | payloadShort(11)) & 0xFFFFFFFFL;
+        }
+
+        /**
+         * Gets the token of a JOIN, TURN, INVALID, MOVE, WIN, QUIT, SESSION
+         * or RESUME.
+         *
+         * @return P1 or P2
+         */
+        public char getToken() {
+            if (opcode == OP_MOVE) {
+                return (char) payload(2);
+            }
+            return (char) payload(0);
+        }
+
+        /**
+         * Gets the column of a MOVE: zero based from the server, from 1 from a
+         * client.
+         *
+         * @return the column
+         */
+        public int getColumn() {
+            return payload(0);
+        }
+
+        /**
+         * Gets the zero based row of a MOVE from the server.
+         *
+         * @return the row, 0 being the bottom
+         */
+        public int getRow() {
+            return payload(1);
+        }
+
+        /**
+         * Gets the version of a HELLO.
+         *
+         * @return the version
+         */
+        public int getVersion() {
+            return payload(0);
+        }
+
+        /**
+         * Gets the mode of a MODE.
+         *
+         * @return COMPUTER or PLAYER
+         */
+        public char getMode() {
+            return (char) payload(0);
+        }
+
+        /**
+         * Checks whether a MODE was sent after a redirect.
+         *
+         * @return true if the client must not be redirected again
+         */
+        public boolean isRedirected() {
+            return payload(1) != 0;
+        }
+
+        /**
+         * Checks whether a MODE names a board and a rating.
+         *
+         * @return true if it does
+         */
+        public boolean hasVariant() {
+            return body.length >= 8;
+        }
+
+        /**
+         * Checks that a MODE names a board that can be played on.
+         *
+         * @throws IOException the board is not playable
+         */
+        public void checkBoard() throws IOException {
+            try {
+                Connect4State.create(getRows(), getColumns(), getConnect());
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        /**
+         * Gets the tokens in a row needed to win of a MODE.
+         *
+         * @return the win length, 4 if the MODE names no board
+         */
+        public int getConnect() {
+            return hasVariant() ? payload(4) : 4;
+        }
+
+        /**
+         * Gets the rating of a MODE.
+         *
+         * @return the client's rating, or 0 if it has none
+         */
+        public int getRating() {
+            return hasVariant() ? payloadShort(5) : 0;
+        }
+
+        /**
+         * Gets the GUI port of a JOIN, or the port of a REDIRECT.
+         *
+         * @return the port
+         */
+        public int getPort() {
+            if (opcode == OP_REDIRECT) {
+                return payloadShort(0);
+            }
+            return payload(1) << 8 | payload(2);
+        }
+
+        /**
+         * Gets the host name of a REDIRECT.
+         *
+         * @return the host
+         */
+        public String getHost() {
+            if (body.length < 3) {
+                return "";
+            }
+            return new String(body, 3, body.length - 3, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Gets the sequence number of a version 2 MOVE or a SNAPSHOT.
+         *
+         * @return tokens on the board, or 0 for a version 1 MOVE
+         */
+        public int getSeq() {
+            if (opcode == OP_SNAPSHOT) {
+                return payloadShort(0);
+            }
+            return payloadShort(3);
+        }
+
+        /**
+         * Gets the number of rows of a JOIN, SNAPSHOT or MODE.
+         *
+         * @return the row count, ROWS for a MODE that names no board
+         */
+        public int getRows() {
+            if (opcode == OP_SNAPSHOT) {
+                return payload(2);
+            } else if (opcode == OP_MODE) {
+                return hasVariant() ? payload(2) : ROWS;
+            }
+            return payload(3);
+        }
+
+        /**
+         * Gets the number of columns of a JOIN, SNAPSHOT or MODE.
+         *
+         * @return the column count, COLUMNS for a MODE that names no board
+         */
+        public int getColumns() {
+            if (opcode == OP_SNAPSHOT) {
+                return payload(3);
+            } else if (opcode == OP_MODE) {
+                return hasVariant() ? payload(3) : COLUMNS;
+            }
+            return payload(4);
+        }
+
+        /**
+         * Unpacks the board of a SNAPSHOT.
+         *
+         * @return a new char[rows][columns] array, row 0 being the bottom and
+         * empty cells holding a space
+         */
+        public char[][] toBoard() {
+            int rows = getRows();
+            int columns = getColumns();
+            char[][] gameBoard = new char[rows][columns];
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columns; c++) {
+                    int cell = r * columns + c;
+                    int value = payload(4 + cell / 4) >>> (cell % 4 * 2) & 3;
+                    if (value == 1) {
+                        gameBoard[r][c] = P1;
+                    } else if (value == 2) {
+                        gameBoard[r][c] = P2;
+                    } else {
+                        gameBoard[r][c] = ' ';
+                    }
+                }
+            }
+            return gameBoard;
+        }
+
+        /**
+         * Converts a client's frame into the object an old client would have
+         * serialized for it, so the server handles both protocols alike.
+         *
+         * @return a Character mode, an Integer column, a quit String, SYNC for
+         * a snapshot request, the Message itself for a RESUME, a WATCH or a
+         * MODE that is redirected or names a board, or null for anything else
+         */
+        public Object toInput() {
+            if (opcode == OP_SYNC) {
+                return SYNC;
+            } else if (opcode == OP_RESUME || opcode == OP_WATCH
+                    || opcode == OP_MODE && (isRedirected() || hasVariant())) {
+                return this;
+            } else if (opcode == OP_MODE) {
+                return getMode();
+            } else if (opcode == OP_MOVE) {
+                return getColumn();
+            } else if (opcode == OP_QUIT) {
+                return P1_QUIT;
+            }
+            return null;
+        }
+    }
+}
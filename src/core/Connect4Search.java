@@ -0,0 +1,477 @@
+/**
+ *
+ * Connect4Search
+ *
+ * Game tree search used by the computer player.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+/**
+ * Negamax search with alpha-beta pruning over a Connect4Board of any
+ * geometry. Columns are tried center first, which is where most cutoffs come
+ * from in Connect4.
+ *
+ * The search deepens iteratively, one ply at a time, until it reaches its
+ * depth limit or its deadline. Each iteration tries the principal variation
+ * of the previous one first, and an iteration cut short by the deadline is
+ * thrown away in favour of the last one that completed.
+ *
+ * Several searches can run the same position at once on different threads
+ * and share one table (Lazy SMP). Helpers start at a different depth so they
+ * fill the table with results the main search will need next, and are
+ * stopped with stop once the main search is done.
+ *
+ * The search works on its own copy of the board and only ever plays and
+ * undoes moves on it, so the recursion does not allocate. Results are cached
+ * in a Connect4TranspositionTable, which may be shared with other searches.
+ * An instance itself is not thread safe; every computer player keeps its own.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4Search extends Connect4Constants {
+
+    /**
+     * Score of a win on the next move. Wins further away score one point less
+     * per ply so the search prefers the quickest win and the slowest loss.
+     */
+    public static final int WIN_SCORE = 100000;
+
+    /**
+     * Longest possible line of play on a board that fits in 64 bits.
+     */
+    private static final int MAX_PLY = 64;
+
+    /**
+     * Scores above this value (or below its negation) are forced results.
+     */
+    public static final int WIN_THRESHOLD = WIN_SCORE - MAX_PLY - 1;
+
+    /**
+     * Number of nodes between two checks of the clock.
+     */
+    private static final int CLOCK_INTERVAL = 1023;
+
+
+    /**
+     * Cache of searched positions, or null to search without one.
+     */
+    private final Connect4TranspositionTable table;
+
+    /**
+     * The board being searched.
+     */
+    private Connect4Board board;
+
+    /**
+     * Number of columns of the board, and the order they are searched in,
+     * center first. Only rebuilt when the board size changes.
+     */
+    private int columns;
+    private int[] moveOrder = new int[0];
+
+    /**
+     * Mixed into table keys so that positions of different board geometries
+     * sharing one table do not collide. 0 for the standard board.
+     */
+    private long salt;
+
+    /**
+     * System.nanoTime value at which the search gives up, or 0 if it has no
+     * time limit.
+     */
+    private long deadline;
+
+    /**
+     * True once the deadline has passed. Every score computed afterwards is
+     * discarded.
+     */
+    private boolean aborted;
+
+    /**
+     * Set from another thread to end the search at the next clock check.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Depth of the first iteration.
+     */
+    private int startDepth = 1;
+
+    /**
+     * Nodes visited by the last search.
+     */
+    private long nodes;
+
+    /**
+     * Deepest iteration the last search completed, and its score.
+     */
+    private int completedDepth;
+    private int bestScore;
+
+    /**
+     * Triangular table of principal variations. Row p holds the best line
+     * found from ply p, in entries p to pvLength[p] - 1.
+     */
+    private final int[][] pvTable = new int[MAX_PLY + 1][MAX_PLY + 1];
+    private final int[] pvLength = new int[MAX_PLY + 1];
+
+    /**
+     * Principal variation of the last completed iteration.
+     */
+    private final int[] pv = new int[MAX_PLY + 1];
+    private int pvSize;
+
+    /**
+     * True while the search is still walking down the previous principal
+     * variation.
+     */
+    private boolean followPv;
+
+    /**
+     * Creates a search without a transposition table.
+     */
+    public Connect4Search() {
+        this(null);
+    }
+
+    /**
+     * Creates a search that caches its results in the given table.
+     *
+     * @param table the transposition table, or null for none
+     */
+    public Connect4Search(Connect4TranspositionTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Searches the position by iterative deepening and returns the best column
+     * of the deepest iteration that finished in time. The first iteration
+     * always runs to completion so that there is a move to return.
+     *
+     * @param position the position to search, left untouched
+     * @param maxDepth number of plies to look ahead at most, at least 1
+     * @param timeMillis time budget in milliseconds, or 0 for none
+     * @return the best zero based column, or -1 if the board is full
+     */
+    public int bestMove(Connect4Board position, int maxDepth, long timeMillis) {
+        board = new Connect4Board(position);
+        columns = board.getColumns();
+        if (moveOrder.length != columns) {
+            moveOrder = moveOrder(columns);
+        }
+        salt = 0;
+        if (!board.isStandard()) {
+            salt = ((long) board.getRows() << 16 | columns << 8
+                    | board.getConnect()) * 0xC2B2AE3D27D4EB4FL;
+        }
+        nodes = 0;
+        aborted = false;
+        completedDepth = 0;
+        bestScore = 0;
+        pvSize = 0;
+        if (timeMillis > 0) {
+            deadline = System.nanoTime() + timeMillis * 1000000L;
+        } else {
+            deadline = 0;
+        }
+
+        int best = -1;
+        for (int i = 0; i < columns; i++) {
+            int column = moveOrder[i];
+            if (!board.canPlay(column)) {
+                continue;
+            }
+            if (best == -1) {
+                best = column;
+            }
+            if (board.isWinningMove(column)) {
+                bestScore = WIN_SCORE - 1;
+                return column;
+            }
+        }
+
+        int maxPly = board.getRows() * columns - board.getMoves();
+        int firstDepth = Math.min(startDepth, Math.min(maxDepth, maxPly));
+        for (int depth = firstDepth; depth <= Math.min(maxDepth, maxPly); depth++) {
+            followPv = true;
+            int result = negamax(depth, -WIN_SCORE, WIN_SCORE, 0);
+            if (aborted) {
+                break;
+            }
+            completedDepth = depth;
+            bestScore = result;
+            pvSize = pvLength[0];
+            System.arraycopy(pvTable[0], 0, pv, 0, pvSize);
+            if (pvSize > 0) {
+                best = pv[0];
+            }
+
+            /**
+             * A forced result will not change with more depth.
+             */
+            if (result > WIN_THRESHOLD || result < -WIN_THRESHOLD) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Asks a search running on another thread to give up. The search keeps
+     * answering with the last depth it completed, and stays stopped until
+     * clearStop is called.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Allows the search to run again after stop.
+     */
+    public void clearStop() {
+        stopped = false;
+    }
+
+    /**
+     * Sets the depth of the first iteration. Helper searches start deeper
+     * than the main one so that the threads do not all repeat the same work.
+     *
+     * @param startDepth depth of the first iteration, at least 1
+     */
+    public void setStartDepth(int startDepth) {
+        this.startDepth = Math.max(1, startDepth);
+    }
+
+    /**
+     * Gets the deepest iteration completed by the last search.
+     *
+     * @return the completed depth, 0 if the move was found without searching
+     */
+    public int getCompletedDepth() {
+        return completedDepth;
+    }
+
+    /**
+     * Gets the score of the last completed iteration, from the point of view
+     * of the side to move.
+     *
+     * @return the score
+     */
+    public int getScore() {
+        return bestScore;
+    }
+
+    /**
+     * Gets the number of nodes visited by the last search.
+     *
+     * @return the node count
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Checks whether the last search ran out of time.
+     *
+     * @return true if the search was cut short
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Negamax with alpha-beta pruning. Scores are from the point of view of
+     * the side to move.
+     *
+     * @param depth remaining plies to search
+     * @param alpha lower bound of the window
+     * @param beta upper bound of the window
+     * @param ply distance from the root
+     * @return the score of the position
+     */
+    private int negamax(int depth, int alpha, int beta, int ply) {
+        nodes++;
+        pvLength[ply] = ply;
+        if ((nodes & CLOCK_INTERVAL) == 0 && (stopped || (deadline != 0
+                && completedDepth > 0 && System.nanoTime() - deadline > 0))) {
+            aborted = true;
+        }
+        if (aborted) {
+            return 0;
+        }
+        if (board.isFull()) {
+            return 0;
+        }
+        for (int column = 0; column < columns; column++) {
+            if (board.canPlay(column) && board.isWinningMove(column)) {
+                return WIN_SCORE - ply;
+            }
+        }
+        if (depth <= 0) {
+            return evaluate();
+        }
+
+        /**
+         * A stored result deep enough for this node can narrow the window or
+         * settle the node outright. Shallower results still give the best
+         * move to try first. The root always searches so that it has a
+         * principal variation to report.
+         */
+        long key = board.key() ^ salt;
+        int hashMove = -1;
+        if (table != null) {
+            long entry = table.probe(key);
+            if (entry != Connect4TranspositionTable.MISS) {
+                hashMove = Connect4TranspositionTable.move(entry);
+                if (ply > 0 && Connect4TranspositionTable.depth(entry) >= depth) {
+                    int score = fromTable(Connect4TranspositionTable.score(entry), ply);
+                    int bound = Connect4TranspositionTable.bound(entry);
+                    if (bound == Connect4TranspositionTable.BOUND_EXACT) {
+                        return score;
+                    } else if (bound == Connect4TranspositionTable.BOUND_LOWER) {
+                        alpha = Math.max(alpha, score);
+                    } else {
+                        beta = Math.min(beta, score);
+                    }
+                    if (alpha >= beta) {
+                        return score;
+                    }
+                }
+            }
+        }
+
+        /**
+         * The previous principal variation goes first while the search is
+         * still on it, then the table's move, then center first.
+         */
+        int firstMove = hashMove;
+        if (followPv) {
+            if (ply < pvSize) {
+                firstMove = pv[ply];
+            } else {
+                followPv = false;
+            }
+        }
+
+        int alphaOrig = alpha;
+        int best = -WIN_SCORE;
+        int bestMove = -1;
+        for (int i = -1; i < columns; i++) {
+            int column;
+            if (i < 0) {
+                column = firstMove;
+            } else {
+                column = moveOrder[i];
+                if (column == firstMove) {
+                    continue;
+                }
+            }
+            if (column < 0 || !board.canPlay(column)) {
+                continue;
+            }
+            board.play(column);
+            int score = -negamax(depth - 1, -beta, -alpha, ply + 1);
+            board.undo(column);
+            followPv = false;
+            if (score > best) {
+                best = score;
+                bestMove = column;
+                if (score > alpha) {
+                    alpha = score;
+                    pvTable[ply][ply] = column;
+                    System.arraycopy(pvTable[ply + 1], ply + 1, pvTable[ply],
+                            ply + 1, pvLength[ply + 1] - ply - 1);
+                    pvLength[ply] = pvLength[ply + 1];
+                    if (alpha >= beta) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (table != null && !aborted) {
+            int bound;
+            if (best <= alphaOrig) {
+                bound = Connect4TranspositionTable.BOUND_UPPER;
+            } else if (best >= beta) {
+                bound = Connect4TranspositionTable.BOUND_LOWER;
+            } else {
+                bound = Connect4TranspositionTable.BOUND_EXACT;
+            }
+            table.store(key, toTable(best, ply), bound, depth, bestMove);
+        }
+        return best;
+    }
+
+    /**
+     * Converts a score to the form kept in the table. Forced wins and losses
+     * are stored relative to the node rather than the root, so that they stay
+     * correct when the position is reached at a different ply.
+     *
+     * @param score score relative to the root
+     * @param ply distance from the root
+     * @return score relative to the node
+     */
+    private static int toTable(int score, int ply) {
+        if (score > WIN_THRESHOLD) {
+            return score + ply;
+        } else if (score < -WIN_THRESHOLD) {
+            return score - ply;
+        }
+        return score;
+    }
+
+    /**
+     * Reverses toTable for a score read back from the table.
+     *
+     * @param score score relative to the node
+     * @param ply distance from the root
+     * @return score relative to the root
+     */
+    private static int fromTable(int score, int ply) {
+        if (score > WIN_THRESHOLD) {
+            return score - ply;
+        } else if (score < -WIN_THRESHOLD) {
+            return score + ply;
+        }
+        return score;
+    }
+
+    /**
+     * Static evaluation of a quiet position from the point of view of the
+     * side to move. Counts the empty cells that would complete a winning line
+     * for each player and adds a small bonus for the center column.
+     *
+     * @return the heuristic score
+     */
+    private int evaluate() {
+        long mine = board.getCurrent();
+        long mask = board.getMask();
+        long theirs = mine ^ mask;
+        int threats = Long.bitCount(board.winningPositions(mine, mask))
+                - Long.bitCount(board.winningPositions(theirs, mask));
+        long center = board.columnMask(columns / 2);
+        int centerTokens = Long.bitCount(mine & center)
+                - Long.bitCount(theirs & center);
+        return 4 * threats + centerTokens;
+    }
+
+    /**
+     * Builds the center first column order, e.g. 3 2 4 1 5 0 6 for 7 columns.
+     *
+     * @param columns number of columns
+     * @return the column order
+     */
+    static int[] moveOrder(int columns) {
+        int[] order = new int[columns];
+        for (int i = 0; i < columns; i++) {
+            order[i] = columns / 2 + (1 - 2 * (i % 2)) * (i + 1) / 2;
+        }
+        return order;
+    }
+}
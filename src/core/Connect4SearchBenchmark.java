@@ -0,0 +1,110 @@
+/**
+ *
+ * Connect4SearchBenchmark
+ *
+ * Measures how the computer player's search scales with threads.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+/**
+ * Command line report of the parallel search speedup. Searches a fixed set of
+ * positions to a fixed depth with 1, 2, 4 and 8 threads, starting from an
+ * empty transposition table for every position, and prints the time taken and
+ * the speedup over a single thread.
+ *
+ * Usage: java core.Connect4SearchBenchmark [depth] [tableMegabytes]
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4SearchBenchmark {
+
+    /**
+     * Benchmark positions, as columns played from the empty board.
+     */
+    private static final String[] POSITIONS = {
+        "", "4", "44", "434", "4453", "3344", "44444", "435", "4433", "5544"
+    };
+
+    /**
+     * Thread counts to compare.
+     */
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    /**
+     * Runs the benchmark and prints the report.
+     *
+     * @param args optional search depth (default 16) and table size in
+     * megabytes (default 64)
+     */
+    public static void main(String[] args) {
+        int depth = 16;
+        int megabytes = Connect4ComputerPlayer.DEFAULT_TABLE_MEGABYTES;
+        if (args.length > 0) {
+            depth = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            megabytes = Integer.parseInt(args[1]);
+        }
+
+        /**
+         * The helper pool must be able to run every helper of the largest
+         * thread count, or the report would understate the speedup.
+         */
+        if (System.getProperty("connect4.helperThreads") == null) {
+            System.setProperty("connect4.helperThreads",
+                    Integer.toString(THREADS[THREADS.length - 1] - 1));
+        }
+
+        Connect4Board[] boards = new Connect4Board[POSITIONS.length];
+        for (int i = 0; i < POSITIONS.length; i++) {
+            boards[i] = Connect4Board.fromMoves(POSITIONS[i]);
+        }
+        Connect4TranspositionTable table = new Connect4TranspositionTable(megabytes);
+
+        /**
+         * One untimed pass so the JIT has compiled the search.
+         */
+        run(boards, Math.min(depth, 10), table, THREADS[THREADS.length - 1]);
+
+        System.out.println("Depth " + depth + ", " + POSITIONS.length
+                + " positions, " + table.getSlots() + " table slots");
+        System.out.println("Threads\tTime (ms)\tSpeedup");
+        long single = 0;
+        for (int threads : THREADS) {
+            long time = run(boards, depth, table, threads);
+            if (threads == 1) {
+                single = time;
+            }
+            System.out.printf("%d\t%d\t\t%.2f%n", threads, time / 1000000,
+                    (double) single / time);
+        }
+    }
+
+    /**
+     * Searches every position once.
+     *
+     * @param boards the positions
+     * @param depth depth to search to
+     * @param table table to share, cleared before each position
+     * @param threads threads per search
+     * @return the total search time in nanoseconds
+     */
+    private static long run(Connect4Board[] boards, int depth,
+            Connect4TranspositionTable table, int threads) {
+        Connect4ComputerPlayer player = new Connect4ComputerPlayer(depth, 0,
+                table, threads);
+        long total = 0;
+        for (Connect4Board board : boards) {
+            table.clear();
+            long start = System.nanoTime();
+            player.getMove(board);
+            total += System.nanoTime() - start;
+        }
+        return total;
+    }
+}
@@ -13,11 +13,16 @@
  */
 package core;
 
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple server for the client to connect to. Runs much of the connections for
@@ -25,7 +30,19 @@ import java.util.Scanner;
  *
  * @author James Kendall Bruce
  */
-public class Connect4Server extends Connect4Constants {
+public class Connect4Server extends Connect4Constants
+        implements Connect4Matchmaker.Listener {
+
+    /**
+     * Port the server listens on, from the connect4.port system property.
+     */
+    private static final int PORT = Integer.getInteger("connect4.port", 8000);
+
+    /**
+     * Seconds a draining server gives running games to finish, from the
+     * connect4.drainSeconds system property.
+     */
+    private static final long DRAIN_SECONDS = Long.getLong("connect4.drainSeconds", 30);
 
     /**
      * Whether the game is currently active
@@ -38,41 +55,37 @@ public class Connect4Server extends Connect4Constants {
     public ServerSocket serverSocket;
 
     /**
-     * Basic constructor. Turns the state of the Server instance to "on" by
-     * default--Cannot be "true" if it doesn't exist.
+     * The non-blocking server, unless running one thread per game.
      */
-    public Connect4Server() {
-        this.active = true;
-    }
+    public Connect4NioServer nio;
 
     /**
-     * Custom thread subclass to run Connct4 gameplay.
+     * Port handed to the next client that still relays to its GUI over a
+     * socket.
      */
-    private static class Game implements Runnable {
+    private int portGUI = 8001;
 
-        /**
-         * Instance variable of the Connect4 class. Initiates to null before
-         * gaemplay starts.
-         */
-        private Connect4 game = null;
+    /**
+     * Runs the connection and game tasks of the blocking server.
+     */
+    private ExecutorService executor;
 
-        /**
-         * Sets the thread's run method to also launch gameplay in the Connect4
-         * class.
-         */
-        @Override
-        public void run() {
-            game.launchGame();
-        }
+    /**
+     * Pairs players waiting for an opponent in the blocking server.
+     */
+    private Connect4Matchmaker matchmaker;
 
-        /**
-         * Constructor method to set Game.game to a specific Connect4 instance.
-         *
-         * @param game The instance that you want to set it to.
-         */
-        public Game(Connect4 game) {
-            this.game = game;
-        }
+    /**
+     * Runs the handshake timeouts and turn clocks of the blocking server.
+     */
+    private Connect4TimerWheel timers;
+
+    /**
+     * Basic constructor. Turns the state of the Server instance to "on" by
+     * default--Cannot be "true" if it doesn't exist.
+     */
+    public Connect4Server() {
+        this.active = true;
     }
 
     /**
@@ -113,13 +126,22 @@ public class Connect4Server extends Connect4Constants {
                     e.printStackTrace();
                     break;
                 }
+                if (text.equals("d") && server.nio != null) {
+                    server.active = false;
+                    server.drain();
+                    continue;
+                }
                 if (!text.equals("q")) {
                     continue;
                 }
                 server.active = false;
                 try {
                     System.out.println("Closing Server");
-                    server.serverSocket.close();
+                    if (server.nio != null) {
+                        server.nio.shutdown();
+                    } else {
+                        server.serverSocket.close();
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -133,154 +155,307 @@ public class Connect4Server extends Connect4Constants {
 
     /**
      * Main method for the Connect4Server class. Launches the server and runs
-     * matchmaking for the player(s).
+     * matchmaking for the player(s). By default every connection is served by
+     * a few NIO event loops. "threads" and "virtual" run one blocking task per
+     * connection and game instead, on platform or virtual threads.
+     *
+     * An NIO server becomes one node of several when the connect4.directory
+     * system property names a directory shared by the nodes. Each node needs
+     * its own connect4.node number and connect4.port, and connect4.host names
+     * the host clients reach it at (default localhost).
+     *
+     * Typing "d", or stopping the process with SIGTERM, drains an NIO server
+     * for a deploy: see Connect4NioServer.drain. Start the replacement first
+     * with the same connect4.port and connect4.journal; it waits for the old
+     * process to finish draining, then binds the port and takes over the
+     * games left in the journal.
      *
-     * @param args default class args -- not used
+     * @param args optional server mode, "nio" (default), "threads" or
+     * "virtual", and for nio the number of event loop threads (default one per
+     * core)
      */
     public static void main(String[] args) {
         /**
-         * Initializes ports, Sockets, inputs and outputs.
-         */
-        int portServer = 8000;
-        int portGUI = portServer + 1;
-        int player = 1;
-        Socket p1 = null;
-        Socket p2;
-        ObjectOutputStream output1 = null;
-        ObjectOutputStream output2;
-        ObjectInputStream input1 = null;
-        ObjectInputStream input2;
-        Connect4 game;
-
-        /**
-         * Thread for gameplay.
+         * Serves the metrics on a local port if one is given.
          */
-        Thread threadGame;
+        Integer metricsPort = Integer.getInteger("connect4.metricsPort");
+        if (metricsPort != null) {
+            try {
+                Connect4Metrics.serve(metricsPort);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
         /**
          * Establishes a defautl server (calls the defautl constructor).
          */
         Connect4Server server = new Connect4Server();
+        if (args.length > 0 && args[0].equals("threads")) {
+            server.serveBlocking(Executors.newCachedThreadPool());
+            return;
+        }
+        if (args.length > 0 && args[0].equals("virtual")) {
+            server.serveBlocking(newVirtualThreadExecutor());
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 1) {
+            threads = Integer.parseInt(args[1]);
+        }
+        System.out.println("Launching Server");
+        try {
+            String directory = System.getProperty("connect4.directory");
+            int node = Integer.getInteger("connect4.node", 0);
+            if (directory != null) {
+                Connect4.partitionIds(node, Connect4GameDirectory.MAX_NODES);
+            }
+            server.nio = new Connect4NioServer(PORT, threads);
+            server.serverSocket = server.nio.getChannel().socket();
+            if (directory != null) {
+                server.nio.setDirectory(new Connect4GameDirectory(
+                        new Connect4GameDirectory.FileStore(Paths.get(directory)),
+                        node, System.getProperty("connect4.host", "localhost"), PORT));
+                System.out.println("Running as node " + node);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (server.active) {
+                server.active = false;
+                server.drain();
+            }
+        }, "Connect4Drain"));
+        Thread key = new Thread(new KeyListener(server));
+        key.setDaemon(true);
+        key.start();
+        System.out.println("Searching for Players");
+    }
+
+    /**
+     * Drains the NIO server and reports how many games were left to the
+     * replacement.
+     */
+    private void drain() {
+        System.out.println("Draining Server");
+        int left = nio.drain(TimeUnit.SECONDS.toMillis(DRAIN_SECONDS));
+        if (left >= 0) {
+            System.out.println("Server drained, " + left + " games left unfinished");
+        }
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for every task. Virtual
+     * threads need Java 21, so the factory method is looked up at run time
+     * and a cached pool of platform threads is used on older runtimes.
+     *
+     * @return the executor
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Runs the blocking server. The accept loop only accepts; every
+     * connection gets a task on the executor that does the handshake and, once
+     * the connection is in a game, runs the game. Closing the server lets the
+     * games in progress finish.
+     *
+     * @param executor runs the connection tasks
+     */
+    private void serveBlocking(ExecutorService executor) {
+        this.executor = executor;
+        matchmaker = new Connect4Matchmaker(this);
+        timers = new Connect4TimerWheel("Connect4Timers", 100, 512);
 
         /**
          * Initiates an instance of the KeyListener class listening on the
          * server instance at the established port.
          */
-        Thread key = new Thread(new KeyListener(server));
+        Thread key = new Thread(new KeyListener(this));
         key.start();
-        char mode;
 
         /**
          * Launches the server.
          */
         System.out.println("Launching Server");
         try {
-            server.serverSocket = new ServerSocket(portServer);
+            serverSocket = new ServerSocket(PORT);
         } catch (Exception ex) {
             ex.printStackTrace();
-            server.active = false;
+            active = false;
         }
-
-        /**
-         * Waits for clients to establish connections for the users. Sets up
-         * appropriate I/O connections between all sockets, clients and the
-         * server. Checks for computer opponent.
-         */
-        while (server.active) {
-            if (player == 1) {
-                System.out.println("Searching for Players");
-                try {
-                    p1 = server.serverSocket.accept();
-                } catch (Exception e) {
-                    if (server.active == false) {
-                        break;
-                    } else {
-                        e.printStackTrace();
-                        break;
-                    }
-                }
-                try {
-                    output1 = new ObjectOutputStream(p1.getOutputStream());
-                    input1 = new ObjectInputStream(p1.getInputStream());
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    continue;
-                }
-                try {
-                    mode = (char) input1.readObject();
-                    output1.writeObject(P1);
-                    output1.writeObject(portGUI++);
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    continue;
-                }
-                System.out.println("Found Player:"
-                        + "\nPlayer 1 Port: " + (portGUI - 1));
-                if (mode == PLAYER) {
-                    player = 2;
-                } else {
-                    game = new Connect4(p1, null, output1, null,
-                            input1, null, 1);
-                    Game playGame = new Game(game);
-                    threadGame = new Thread(playGame);
-                    threadGame.start();
-                    System.out.println("Launching game against computer opponent.");
-                }
-            } else {
-                try {
-                    p2 = server.serverSocket.accept();
-                } catch (Exception e) {
+        System.out.println("Searching for Players");
+        while (active) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (Exception e) {
+                if (active) {
                     e.printStackTrace();
-                    continue;
-                }
-                try {
-                    output2 = new ObjectOutputStream(p2.getOutputStream());
-                    input2 = new ObjectInputStream(p2.getInputStream());
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    continue;
-                }
-                try {
-                    mode = (char) input2.readObject();
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    continue;
-                }
-                if (mode == PLAYER) {
-                    try {
-                        output2.writeObject(P2);
-                        output2.writeObject(portGUI++);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        continue;
-                    }
-                    System.out.println("Found Player:"
-                            + "\nPlayer 2 Port: " + (portGUI - 1));
-                    game = new Connect4(p1, p2, output1,
-                            output2, input1, input2, 2);
-                    Game playGame = new Game(game);
-                    threadGame = new Thread(playGame);
-                    threadGame.start();
-                    player = 1;
-                    System.out.println("Launching 2 player game.");
-                } else {
-                    try {
-                        output2.writeObject(P1);
-                        output2.writeObject(portGUI++);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        continue;
-                    }
-                    System.out.println("Found Player:"
-                            + "\nPlayer 1 Port: " + (portGUI - 1));
-                    game = new Connect4(p2, null, output2, null,
-                            input2, null, 1);
-                    Game playGame = new Game(game);
-                    threadGame = new Thread(playGame);
-                    threadGame.start();
-                    System.out.println("Launching game against computer opponent.");
                 }
+                break;
             }
+            executor.execute(() -> handshake(socket));
         }
+        matchmaker.shutdown();
+        executor.shutdown();
+    }
+
+    /**
+     * Sets up a new client's I/O and reads its game mode, and the board and
+     * rating a binary client may send with it. Against the
+     * computer the game is run right away on the calling thread. Otherwise the
+     * client goes to the matchmaker and the task ends; the game gets a task of
+     * its own once the client has been paired. A client that has not sent its
+     * mode within Connect4Protocol.HANDSHAKE_MILLIS has its socket closed.
+     *
+     * @param socket the accepted client socket
+     */
+    private void handshake(Socket socket) {
+        Connect4StreamPeer player;
+        char mode;
+        int rows = ROWS;
+        int columns = COLUMNS;
+        int connect = 4;
+        int rating = 0;
+        Connect4TimerWheel.Timeout timeout = timers.schedule(() -> {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, Connect4Protocol.HANDSHAKE_MILLIS);
+        try {
+            player = new Connect4StreamPeer(socket);
+            Object obj = player.receive();
+            if (obj instanceof Connect4Protocol.Message && ((Connect4Protocol.Message) obj)
+                    .getOpcode() == Connect4Protocol.OP_MODE) {
+                Connect4Protocol.Message message = (Connect4Protocol.Message) obj;
+                message.checkBoard();
+                obj = message.getMode();
+                rows = message.getRows();
+                columns = message.getColumns();
+                connect = message.getConnect();
+                rating = message.getRating();
+            }
+            if (!(obj instanceof Character)) {
+                throw new IOException("Expected a game mode; games here"
+                        + " cannot be resumed");
+            }
+            mode = (Character) obj;
+            timeout.cancel();
+        } catch (Exception ex) {
+            if (!timeout.isCancelled() && socket.isClosed()) {
+                return;
+            }
+            ex.printStackTrace();
+            try {
+                socket.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        if (mode == PLAYER) {
+            matchmaker.enqueue(player, mode, rows, columns, connect,
+                    rating == 0 ? Connect4Matchmaker.INITIAL_RATING : rating);
+            return;
+        }
+        Connect4 game;
+        try {
+            sendJoin(player, P1, rows, columns);
+            game = new Connect4(player, null, 1, rows, columns, connect);
+            startClock(game);
+            System.out.println("Launching game against computer opponent.");
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            player.close();
+            return;
+        }
+        game.launchGame();
+    }
+
+    /**
+     * Puts the players of a game on the turn clock. A player who runs out of
+     * time has their socket closed by the wheel and forfeits on the game's
+     * own thread.
+     *
+     * @param game the game
+     */
+    private void startClock(Connect4 game) {
+        if (Connect4.TURN_MILLIS > 0) {
+            game.setTurnClock(timers, Connect4.TURN_MILLIS, null, null);
+        }
+    }
+
+    /**
+     * Tells a player their token and, if their client needs one, a GUI port.
+     *
+     * @param player the player
+     * @param token P1 or P2
+     * @param rows number of rows of the board
+     * @param columns number of columns of the board
+     * @throws IOException the player cannot be reached
+     */
+    private void sendJoin(Connect4StreamPeer player, char token, int rows,
+            int columns) throws IOException {
+        int port = 0;
+        if (player.needsPortGUI()) {
+            synchronized (this) {
+                port = portGUI++;
+            }
+        }
+        player.sendJoin(token, port, rows, columns);
+        System.out.println("Found Player:"
+                + "\nPlayer " + (token == P1 ? 1 : 2) + " Port: " + port);
+    }
+
+    /**
+     * Runs the game of two paired players on a task of its own.
+     *
+     * @param p1 the first player's ticket
+     * @param p2 the second player's ticket
+     */
+    @Override
+    public void paired(Connect4Matchmaker.Ticket p1, Connect4Matchmaker.Ticket p2) {
+        Connect4StreamPeer first = (Connect4StreamPeer) p1.getPeer();
+        Connect4StreamPeer second = (Connect4StreamPeer) p2.getPeer();
+        executor.execute(() -> {
+            Connect4 game;
+            try {
+                sendJoin(first, P1, p1.getRows(), p1.getColumns());
+                sendJoin(second, P2, p1.getRows(), p1.getColumns());
+                game = new Connect4(first, second, 2, p1.getRows(), p1.getColumns(),
+                        p1.getConnect());
+                startClock(game);
+                System.out.println("Launching 2 player game.");
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                first.close();
+                second.close();
+                return;
+            }
+            game.launchGame();
+        });
+    }
+
+    /**
+     * Disconnects a player nobody was found for.
+     *
+     * @param ticket the player's ticket
+     */
+    @Override
+    public void expired(Connect4Matchmaker.Ticket ticket) {
+        ticket.getPeer().close();
     }
 }
@@ -0,0 +1,380 @@
+/**
+ *
+ * Connect4SessionRegistry
+ *
+ * Seats of the games in progress, so players can reconnect to them.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a Session for every player seated in a game in progress, keyed by
+ * game id and token, so that a game outlives a dropped connection. A player
+ * who drops out has GRACE_MILLIS to reconnect and resume with their seat's
+ * secret key before they count as having quit. Games nobody has been heard
+ * from in for IDLE_MILLIS are given up on, the player to move counting as
+ * having quit.
+ *
+ * Both timeouts run on a Connect4TimerWheel, so thousands of sessions cost a
+ * bucket entry each rather than a timer thread or a scan.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4SessionRegistry extends Connect4Constants {
+
+    /**
+     * How long a dropped player's seat is kept for them.
+     */
+    public static final long GRACE_MILLIS = 30000;
+
+    /**
+     * How long a game may go without a move before it is given up on.
+     */
+    public static final long IDLE_MILLIS = 600000;
+
+    /**
+     * Gets told when a player loses their seat. Called on the timer wheel
+     * thread.
+     */
+    public interface Listener {
+
+        /**
+         * A player did not come back in time, or sat on their turn too long,
+         * and should count as having quit.
+         *
+         * @param game the game
+         * @param player P1 or P2
+         */
+        void abandoned(Connect4 game, char player);
+    }
+
+    /**
+     * One player's seat in a game.
+     */
+    public static class Session {
+
+        /**
+         * The game and the player's token in it.
+         */
+        private final Connect4 game;
+        private final char player;
+
+        /**
+         * Secret the player must show to take the seat again.
+         */
+        private final long key;
+
+        /**
+         * The player's connection, or null while they are away.
+         */
+        private Connect4Peer peer;
+
+        /**
+         * When the player was last heard from, from System.nanoTime.
+         */
+        private volatile long lastActive = System.nanoTime();
+
+        /**
+         * Runs out the grace window while the player is away.
+         */
+        private Connect4TimerWheel.Timeout grace;
+
+        /**
+         * Creates a session.
+         *
+         * @param game the game
+         * @param player P1 or P2
+         * @param key the secret key
+         * @param peer the player's connection
+         */
+        private Session(Connect4 game, char player, long key, Connect4Peer peer) {
+            this.game = game;
+            this.player = player;
+            this.key = key;
+            this.peer = peer;
+        }
+
+        /**
+         * Gets the game.
+         *
+         * @return the game
+         */
+        public Connect4 getGame() {
+            return game;
+        }
+
+        /**
+         * Gets the player's token.
+         *
+         * @return P1 or P2
+         */
+        public char getPlayer() {
+            return player;
+        }
+
+        /**
+         * Gets the secret key of the seat.
+         *
+         * @return the key
+         */
+        public long getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * The sessions, by game id and token.
+     */
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Source of the secret keys.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Runs the grace and idle timeouts.
+     */
+    private final Connect4TimerWheel wheel;
+
+    /**
+     * Gets told when a player loses their seat.
+     */
+    private final Listener listener;
+
+    /**
+     * Creates a registry.
+     *
+     * @param wheel runs the timeouts
+     * @param listener gets told when a player loses their seat
+     */
+    public Connect4SessionRegistry(Connect4TimerWheel wheel, Listener listener) {
+        this.wheel = wheel;
+        this.listener = listener;
+    }
+
+    /**
+     * Combines a game id and a token into a map key.
+     *
+     * @param gameId the game
+     * @param player P1 or P2
+     * @return the key
+     */
+    private static Long id(int gameId, char player) {
+        return (long) gameId << 16 | player;
+    }
+
+    /**
+     * Seats a player in a game that is starting.
+     *
+     * @param game the game
+     * @param player P1 or P2
+     * @param peer the player's connection
+     * @return the player's session
+     */
+    public Session register(Connect4 game, char player, Connect4Peer peer) {
+        Session session = new Session(game, player, random.nextLong(), peer);
+        sessions.put(id(game.getId(), player), session);
+        wheel.schedule(() -> checkIdle(session), IDLE_MILLIS);
+        return session;
+    }
+
+    /**
+     * Holds the seat of a player in a game rebuilt after a restart. The
+     * player is away, so the grace window starts right away.
+     *
+     * @param game the game
+     * @param player P1 or P2
+     * @param key the seat's secret key from before the restart
+     * @return the player's session
+     */
+    public Session restore(Connect4 game, char player, long key) {
+        Session session = new Session(game, player, key, null);
+        sessions.put(id(game.getId(), player), session);
+        synchronized (session) {
+            session.grace = wheel.schedule(() -> expire(session), GRACE_MILLIS);
+        }
+        wheel.schedule(() -> checkIdle(session), IDLE_MILLIS);
+        return session;
+    }
+
+    /**
+     * Finds a game that is being played.
+     *
+     * @param gameId the game
+     * @return the game, or null if it is over or was never played here
+     */
+    public Connect4 getGame(int gameId) {
+        Session session = sessions.get(id(gameId, P1));
+        if (session == null) {
+            return null;
+        }
+        return session.getGame();
+    }
+
+    /**
+     * Gets the games being played.
+     *
+     * @return the games
+     */
+    public List<Connect4> getGames() {
+        List<Connect4> games = new ArrayList<>();
+        for (Session session : sessions.values()) {
+            if (session.getPlayer() == P1) {
+                games.add(session.getGame());
+            }
+        }
+        return games;
+    }
+
+    /**
+     * Gets the ids of the games being played.
+     *
+     * @return the game ids
+     */
+    public int[] getGameIds() {
+        return getGames().stream().mapToInt(Connect4::getId).toArray();
+    }
+
+    /**
+     * Notes that a player was heard from.
+     *
+     * @param game the game
+     * @param player P1 or P2
+     */
+    public void touch(Connect4 game, char player) {
+        Session session = sessions.get(id(game.getId(), player));
+        if (session != null) {
+            session.lastActive = System.nanoTime();
+        }
+    }
+
+    /**
+     * Starts the grace window of a player whose connection dropped. A
+     * connection that has already been replaced by a resume is ignored.
+     *
+     * @param session the player's session
+     * @param peer the connection that dropped
+     */
+    public void disconnected(Session session, Connect4Peer peer) {
+        synchronized (session) {
+            if (session.peer != peer) {
+                return;
+            }
+            session.peer = null;
+            session.grace = wheel.schedule(() -> expire(session), GRACE_MILLIS);
+        }
+    }
+
+    /**
+     * Gives a seat back to a player who reconnected. The key must match the
+     * seat's. A connection still holding the seat, e.g. one whose drop has
+     * not been noticed yet, is closed.
+     *
+     * @param gameId the game
+     * @param player P1 or P2
+     * @param key the key the player showed
+     * @param peer the player's new connection
+     * @return the session, or null if there is no such seat or the key is
+     * wrong
+     */
+    public Session resume(int gameId, char player, long key, Connect4Peer peer) {
+        Session session = sessions.get(id(gameId, player));
+        if (session == null || session.key != key) {
+            return null;
+        }
+        Connect4Peer old;
+        synchronized (session) {
+            if (session.grace != null) {
+                session.grace.cancel();
+                session.grace = null;
+            }
+            old = session.peer;
+            session.peer = peer;
+            session.lastActive = System.nanoTime();
+        }
+        if (old != null) {
+            old.close();
+        }
+        return session;
+    }
+
+    /**
+     * Forgets the sessions of a game that is over.
+     *
+     * @param game the game
+     */
+    public void end(Connect4 game) {
+        end(sessions.remove(id(game.getId(), P1)));
+        end(sessions.remove(id(game.getId(), P2)));
+    }
+
+    /**
+     * Cancels the grace window of a removed session.
+     *
+     * @param session the session, or null
+     */
+    private void end(Session session) {
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            if (session.grace != null) {
+                session.grace.cancel();
+            }
+        }
+    }
+
+    /**
+     * Ends the grace window of a player who is still away.
+     *
+     * @param session the player's session
+     */
+    private void expire(Session session) {
+        synchronized (session) {
+            if (session.peer != null || session.grace == null
+                    || session.grace.isCancelled()) {
+                return;
+            }
+            session.grace = null;
+        }
+        if (sessions.remove(id(session.game.getId(), session.player), session)) {
+            listener.abandoned(session.game, session.player);
+        }
+    }
+
+    /**
+     * Gives up on a game nobody has been heard from in for IDLE_MILLIS, or
+     * checks again once that long will have passed.
+     *
+     * @param session one of the game's sessions
+     */
+    private void checkIdle(Session session) {
+        if (sessions.get(id(session.game.getId(), session.player)) != session) {
+            return;
+        }
+        long lastActive = session.lastActive;
+        Session other = sessions.get(id(session.game.getId(),
+                session.player == P1 ? P2 : P1));
+        if (other != null) {
+            lastActive = Math.max(lastActive, other.lastActive);
+        }
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActive);
+        if (idle < IDLE_MILLIS) {
+            wheel.schedule(() -> checkIdle(session), IDLE_MILLIS - idle);
+            return;
+        }
+        end(session.game);
+        listener.abandoned(session.game, session.game.getTurn());
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ *
+ * Connect4Solver
+ *
+ * Perfect play solver for the standard board.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+/**
+ * Computes the exact game theoretic value of a position.
+ *
+ * Scores are from the point of view of the side to move. A positive score
+ * means the side to move wins, and is 1 plus the number of its tokens left
+ * unplayed when it makes the winning move, so quicker wins score higher. A
+ * negative score is the same for the opponent and 0 is a draw.
+ * distanceToWin turns a score back into plies.
+ *
+ * The score is found with a series of null window searches that narrow down
+ * an interval around it. Each search is a negamax that only looks at moves
+ * which do not lose at once, tries the most threatening moves first, keeps
+ * upper bounds in a transposition table and takes exact values from an
+ * opening book built by the solver. The table may be shared by solvers on
+ * other threads. Its scores are not comparable with those of Connect4Search,
+ * so the two must not share a table.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4Solver extends Connect4Constants {
+
+    /**
+     * Number of cells on the board.
+     */
+    public static final int CELLS = ROWS * COLUMNS;
+
+    /**
+     * Lowest and highest possible scores of a game that is not over.
+     */
+    public static final int MIN_SCORE = -CELLS / 2 + 3;
+    public static final int MAX_SCORE = (CELLS + 1) / 2 - 3;
+
+    /**
+     * Columns in the order they are searched, center first.
+     */
+    private static final int[] MOVE_ORDER = moveOrder();
+
+    /**
+     * Upper bounds of solved positions, or null.
+     */
+    private final Connect4TranspositionTable table;
+
+    /**
+     * Book with exact scores, or null.
+     */
+    private final Connect4OpeningBook book;
+
+    /**
+     * The board being solved.
+     */
+    private Connect4Board board;
+
+    /**
+     * Moves of each ply sorted by score, preallocated so the search does not
+     * allocate.
+     */
+    private final int[][] sortedColumns = new int[CELLS + 1][COLUMNS];
+    private final int[][] sortedScores = new int[CELLS + 1][COLUMNS];
+
+    /**
+     * Nodes visited since the solver was created.
+     */
+    private long nodes;
+
+    /**
+     * Creates a solver with its own table and no book.
+     */
+    public Connect4Solver() {
+        this(new Connect4TranspositionTable(64), null);
+    }
+
+    /**
+     * Creates a solver.
+     *
+     * @param table table for upper bounds, or null for none
+     * @param book opening book, only used if its scores are exact, or null
+     */
+    public Connect4Solver(Connect4TranspositionTable table, Connect4OpeningBook book) {
+        this.table = table;
+        if (book != null && book.isExact()) {
+            this.book = book;
+        } else {
+            this.book = null;
+        }
+    }
+
+    /**
+     * Computes the exact score of a position.
+     *
+     * @param position the position, which must not be won already
+     * @return the score, see the class description
+     * @throws IllegalArgumentException the position is not on the standard
+     * board
+     */
+    public int solve(Connect4Board position) {
+        if (!position.isStandard()) {
+            throw new IllegalArgumentException("Only the standard board can be solved");
+        }
+        board = new Connect4Board(position);
+        if (board.canWinNext()) {
+            return (CELLS + 1 - board.getMoves()) / 2;
+        }
+
+        /**
+         * Narrows [min, max] with null window searches. Probing closer to 0
+         * first pays off since most positions are near a draw.
+         */
+        int min = -(CELLS - board.getMoves()) / 2;
+        int max = (CELLS + 1 - board.getMoves()) / 2;
+        while (min < max) {
+            int med = min + (max - min) / 2;
+            if (med <= 0 && min / 2 < med) {
+                med = min / 2;
+            } else if (med >= 0 && max / 2 > med) {
+                med = max / 2;
+            }
+            int r = negamax(med, med + 1);
+            if (r <= med) {
+                max = r;
+            } else {
+                min = r;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Finds a move that keeps the exact score of a position.
+     *
+     * @param position the position, which must not be won or full
+     * @return zero based column of a best move
+     */
+    public int bestMove(Connect4Board position) {
+        int best = -1;
+        int bestScore = Integer.MIN_VALUE;
+        Connect4Board copy = new Connect4Board(position);
+        for (int i = 0; i < COLUMNS; i++) {
+            int column = MOVE_ORDER[i];
+            if (!copy.canPlay(column)) {
+                continue;
+            }
+            if (copy.isWinningMove(column)) {
+                return column;
+            }
+            copy.play(column);
+            int score;
+            if (copy.isFull()) {
+                score = 0;
+            } else {
+                score = -solve(copy);
+            }
+            copy.undo(column);
+            if (score > bestScore) {
+                bestScore = score;
+                best = column;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Turns a score into the number of plies until the game ends with that
+     * result under perfect play.
+     *
+     * @param position the position that was solved
+     * @param score its score
+     * @return plies until the win or loss, or until the board is full for a
+     * draw
+     */
+    public static int distanceToWin(Connect4Board position, int score) {
+        int moves = position.getMoves();
+        int mine = moves / 2;
+        int theirs = moves - mine;
+        if (score > 0) {
+            return 2 * (CELLS / 2 + 1 - score - mine) - 1;
+        } else if (score < 0) {
+            return 2 * (CELLS / 2 + 1 + score - theirs);
+        }
+        return CELLS - moves;
+    }
+
+    /**
+     * Gets the number of nodes visited since the solver was created.
+     *
+     * @return the node count
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Negamax with alpha-beta pruning. The caller has made sure the side to
+     * move cannot win at once.
+     *
+     * @param alpha lower bound of the window
+     * @param beta upper bound of the window, above alpha
+     * @return the exact score if it lies in the window, otherwise a bound on
+     * the side it falls
+     */
+    private int negamax(int alpha, int beta) {
+        nodes++;
+        int moves = board.getMoves();
+        long next = board.possibleNonLosingMoves();
+        if (next == 0) {
+            return -(CELLS - moves) / 2;
+        }
+        if (moves >= CELLS - 2) {
+            return 0;
+        }
+
+        /**
+         * The opponent cannot win on its next move, which bounds the score
+         * from below.
+         */
+        int min = -(CELLS - 2 - moves) / 2;
+        if (alpha < min) {
+            alpha = min;
+            if (alpha >= beta) {
+                return alpha;
+            }
+        }
+
+        /**
+         * We cannot win on this move either, which bounds it from above, and
+         * the table may know a tighter bound.
+         */
+        int max = (CELLS - 1 - moves) / 2;
+        long key = board.key();
+        if (table != null) {
+            long entry = table.probe(key);
+            if (entry != Connect4TranspositionTable.MISS) {
+                max = Connect4TranspositionTable.score(entry);
+            }
+        }
+        if (beta > max) {
+            beta = max;
+            if (alpha >= beta) {
+                return beta;
+            }
+        }
+        if (book != null && moves <= book.getPlies()) {
+            int score = book.getScore(board, Integer.MIN_VALUE);
+            if (score != Integer.MIN_VALUE) {
+                return score;
+            }
+        }
+
+        /**
+         * Sorts the safe moves by how many threats they create, keeping
+         * center first order between equal scores.
+         */
+        int[] columns = sortedColumns[moves];
+        int[] scores = sortedScores[moves];
+        int n = 0;
+        for (int i = COLUMNS - 1; i >= 0; i--) {
+            int column = MOVE_ORDER[i];
+            long move = next & board.columnMask(column);
+            if (move == 0) {
+                continue;
+            }
+            int score = board.moveScore(move);
+            int j = n++;
+            while (j > 0 && scores[j - 1] > score) {
+                columns[j] = columns[j - 1];
+                scores[j] = scores[j - 1];
+                j--;
+            }
+            columns[j] = column;
+            scores[j] = score;
+        }
+
+        for (int i = n - 1; i >= 0; i--) {
+            int column = columns[i];
+            board.play(column);
+            int score = -negamax(-beta, -alpha);
+            board.undo(column);
+            if (score >= beta) {
+                return score;
+            }
+            if (score > alpha) {
+                alpha = score;
+            }
+        }
+
+        if (table != null) {
+            table.store(key, alpha, Connect4TranspositionTable.BOUND_UPPER,
+                    CELLS - moves, -1);
+        }
+        return alpha;
+    }
+
+    /**
+     * Builds the center first column order.
+     *
+     * @return the column order
+     */
+    private static int[] moveOrder() {
+        int[] order = new int[COLUMNS];
+        for (int i = 0; i < COLUMNS; i++) {
+            order[i] = COLUMNS / 2 + (1 - 2 * (i % 2)) * (i + 1) / 2;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ *
+ * Connect4State
+ *
+ * Common view of a game state, whatever its board size.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+/**
+ * Game state of a single Connect4 game. Boards whose cells fit in 64 bits use
+ * the single word Connect4Board; larger variants fall back to the multi-word
+ * Connect4WideBoard. create picks the right one for a geometry.
+ *
+ * Columns are zero based here, unlike the 1 to COLUMNS numbering players see.
+ *
+ * @author James Kendall Bruce
+ */
+public interface Connect4State {
+
+    /**
+     * Creates an empty state for a board geometry, using the single word
+     * bitboard whenever the board fits in it.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param connect tokens in a row needed to win
+     * @return an empty state with P1 to move
+     * @throws IllegalArgumentException the geometry is not playable
+     */
+    static Connect4State create(int rows, int columns, int connect) {
+        if (Connect4Board.fits(rows, columns, connect)) {
+            return new Connect4Board(rows, columns, connect);
+        }
+        return new Connect4WideBoard(rows, columns, connect);
+    }
+
+    /**
+     * Gets the number of rows.
+     *
+     * @return the row count
+     */
+    int getRows();
+
+    /**
+     * Gets the number of columns.
+     *
+     * @return the column count
+     */
+    int getColumns();
+
+    /**
+     * Gets the number of tokens in a row needed to win.
+     *
+     * @return the win length
+     */
+    int getConnect();
+
+    /**
+     * Checks that a column exists and still has room.
+     *
+     * @param column zero based column
+     * @return true if a token can be dropped into the column
+     */
+    boolean canPlay(int column);
+
+    /**
+     * Drops a token for the side to move. The caller must make sure the
+     * column is playable.
+     *
+     * @param column zero based column
+     */
+    void play(int column);
+
+    /**
+     * Takes back the last token dropped into a column.
+     *
+     * @param column zero based column of the move to take back
+     */
+    void undo(int column);
+
+    /**
+     * Checks whether dropping a token into the column would win the game for
+     * the side to move, without playing it.
+     *
+     * @param column zero based playable column
+     * @return true if the move wins
+     */
+    boolean isWinningMove(int column);
+
+    /**
+     * Checks whether the player who made the last move has won.
+     *
+     * @return true if the last move won the game
+     */
+    boolean isWin();
+
+    /**
+     * Checks whether every cell of the board is filled.
+     *
+     * @return true if no more moves can be made
+     */
+    boolean isFull();
+
+    /**
+     * Gets the number of tokens in a column.
+     *
+     * @param column zero based column
+     * @return number of tokens in the column
+     */
+    int getHeight(int column);
+
+    /**
+     * Gets the number of tokens played so far.
+     *
+     * @return the move count
+     */
+    int getMoves();
+
+    /**
+     * Gets the token of the player whose turn it is.
+     *
+     * @return P1 or P2
+     */
+    char getTurn();
+
+    /**
+     * Copies the state, so it can be handed to another thread.
+     *
+     * @return a copy sharing no state with this one
+     */
+    Connect4State copy();
+
+    /**
+     * Builds the legacy char[][] view of the board, row 0 being the bottom and
+     * empty cells holding a space. Only meant for clients that still expect
+     * the 2D layout.
+     *
+     * @return a new char[rows][columns] array
+     */
+    char[][] toCharArray();
+}
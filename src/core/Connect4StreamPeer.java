@@ -0,0 +1,272 @@
+/**
+ *
+ * Connect4StreamPeer
+ *
+ * Blocking connection to a client, in whichever protocol it speaks.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A client connection over blocking socket streams, used by the thread per
+ * connection servers. The protocol is picked from the client's first two
+ * bytes: the Java serialization header means an old client, which gets
+ * serialized Strings and boards as before; Connect4Protocol.MAGIC means a
+ * binary client, which gets frames.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4StreamPeer extends Connect4Constants implements Connect4Peer {
+
+    /**
+     * The client socket, or null if only the object streams were given.
+     */
+    private Socket socket;
+
+    /**
+     * Buffered input under either protocol's stream, or null if only the
+     * object streams were given.
+     */
+    private BufferedInputStream in;
+
+    /**
+     * Streams of an old client.
+     */
+    private ObjectOutputStream objectOutput;
+    private ObjectInputStream objectInput;
+
+    /**
+     * Streams of a binary client.
+     */
+    private DataOutputStream dataOutput;
+    private DataInputStream dataInput;
+
+    /**
+     * Protocol version agreed with a binary client.
+     */
+    private int version;
+
+    /**
+     * Reads the client's opening and sets up the streams for its protocol.
+     *
+     * @param socket the accepted client socket
+     * @throws IOException the client closed early or speaks neither protocol
+     */
+    public Connect4StreamPeer(Socket socket) throws IOException {
+        this.socket = socket;
+        in = new BufferedInputStream(socket.getInputStream());
+        in.mark(Connect4Protocol.LENGTH_BYTES);
+        int high = in.read();
+        int low = in.read();
+        if (high < 0 || low < 0) {
+            throw new EOFException();
+        }
+        short magic = (short) (high << 8 | low);
+        if (magic == Connect4Protocol.SERIALIZATION_MAGIC) {
+            in.reset();
+            objectOutput = new ObjectOutputStream(socket.getOutputStream());
+            objectInput = new ObjectInputStream(in);
+        } else if (magic == Connect4Protocol.MAGIC) {
+            int offered = in.read();
+            if (offered < 1) {
+                throw new IOException("Bad protocol version " + offered);
+            }
+            version = Math.min(offered, Connect4Protocol.VERSION);
+            dataInput = new DataInputStream(in);
+            dataOutput = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream()));
+            write(Connect4Protocol.hello(version));
+        } else {
+            throw new IOException("Unknown protocol");
+        }
+    }
+
+    /**
+     * Wraps the object streams of an old client that are already open.
+     *
+     * @param output output to the client
+     * @param input input from the client
+     */
+    public Connect4StreamPeer(ObjectOutputStream output, ObjectInputStream input) {
+        objectOutput = output;
+        objectInput = input;
+    }
+
+    /**
+     * Blocks until the client sends something.
+     *
+     * @return what an old client would have sent: a Character mode, an
+     * Integer column or a quit String
+     * @throws IOException the client is gone or sent something unknown
+     */
+    public Object receive() throws IOException {
+        if (objectInput != null) {
+            try {
+                return objectInput.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+        while (true) {
+            Object obj = Connect4Protocol.read(dataInput).toInput();
+            if (obj != null) {
+                return obj;
+            }
+        }
+    }
+
+    @Override
+    public void sendJoin(char token, int port, int rows, int columns)
+            throws IOException {
+        if (objectOutput != null) {
+            objectOutput.writeObject(token);
+            objectOutput.writeObject(port);
+        } else {
+            write(Connect4Protocol.join(token, port, rows, columns));
+        }
+    }
+
+    @Override
+    public boolean needsPortGUI() {
+        return objectOutput != null || version < 3;
+    }
+
+    @Override
+    public boolean canResume() {
+        return objectOutput == null && version >= 4;
+    }
+
+    @Override
+    public void sendSession(char token, int gameId, long key) throws IOException {
+        if (canResume()) {
+            write(Connect4Protocol.session(token, gameId, key));
+        }
+    }
+
+    @Override
+    public void sendStatus(String status) throws IOException {
+        if (objectOutput != null) {
+            objectOutput.writeObject(status);
+        } else {
+            write(Connect4Protocol.status(status));
+        }
+    }
+
+    /**
+     * Sends a move. Old clients get the whole board, with the stream reset
+     * first so that the new array is written out instead of a reference to
+     * the last one.
+     */
+    @Override
+    public void sendMove(Connect4State board, int column, int row, char token)
+            throws IOException {
+        if (objectOutput != null) {
+            objectOutput.reset();
+            objectOutput.writeObject(board.toCharArray());
+        } else if (version < 2) {
+            write(Connect4Protocol.move(column, row, token));
+        } else {
+            write(Connect4Protocol.move(column, row, token, board.getMoves()));
+        }
+    }
+
+    /**
+     * Sends the board. Old clients only get it once there is something on it,
+     * since they start from an empty board anyway, and version 1 clients
+     * cannot take snapshots at all.
+     */
+    @Override
+    public void sendSnapshot(Connect4State board) throws IOException {
+        if (objectOutput != null) {
+            if (board.getMoves() > 0) {
+                objectOutput.reset();
+                objectOutput.writeObject(board.toCharArray());
+            }
+        } else if (version >= 2) {
+            write(Connect4Protocol.snapshot(board));
+        }
+    }
+
+    /**
+     * Checks for a closed connection by trying to read a byte, which is put
+     * back. A read that times out means the client is there but quiet.
+     */
+    @Override
+    public boolean isOpen() {
+        if (socket == null) {
+            return true;
+        }
+        if (socket.isClosed()) {
+            return false;
+        }
+        try {
+            if (in.available() > 0) {
+                return true;
+            }
+            socket.setSoTimeout(1);
+            in.mark(1);
+            try {
+                if (in.read() < 0) {
+                    return false;
+                }
+                in.reset();
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes and flushes one frame.
+     *
+     * @param frame the frame
+     * @throws IOException the frame cannot be sent
+     */
+    private void write(byte[] frame) throws IOException {
+        dataOutput.write(frame);
+        dataOutput.flush();
+    }
+
+    /**
+     * Closes the connection. With a socket only the socket is closed, which
+     * never blocks, so it may be done from another thread while the game
+     * waits to read from it, e.g. when a turn clock runs out. Everything sent
+     * has been flushed already.
+     */
+    @Override
+    public void close() {
+        try {
+            if (socket != null) {
+                socket.close();
+            } else if (objectOutput != null) {
+                objectOutput.close();
+                objectInput.close();
+            } else {
+                dataOutput.close();
+                dataInput.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
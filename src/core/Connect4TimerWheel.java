@@ -0,0 +1,210 @@
+/**
+ *
+ * Connect4TimerWheel
+ *
+ * Hashed timer wheel for the server's many coarse timeouts.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules large numbers of timeouts that rarely fire, such as reconnect
+ * grace windows and idle sessions, at constant cost each. Time is cut into
+ * ticks and the wheel is a ring of buckets, one per tick; a timeout goes into
+ * the bucket of the tick it expires on, with a count of the full turns of the
+ * wheel still to wait. Each tick only the current bucket is looked at.
+ *
+ * Scheduling and cancelling never lock and may be done from any thread.
+ * Timeouts fire on the wheel's own thread, up to one tick late, so their
+ * tasks should be quick and hand anything slow to another thread.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4TimerWheel implements Runnable {
+
+    /**
+     * A scheduled task, which can be cancelled until it fires.
+     */
+    public static class Timeout {
+
+        /**
+         * The task to run.
+         */
+        private final Runnable task;
+
+        /**
+         * Tick the timeout fires on.
+         */
+        private final long deadlineTick;
+
+        /**
+         * Full turns of the wheel still to wait, once in a bucket.
+         */
+        private long rounds;
+
+        /**
+         * Set once cancelled.
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * Creates a timeout.
+         *
+         * @param task the task to run
+         * @param deadlineTick tick the timeout fires on
+         */
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Stops the task from running, if it has not run yet.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Tells whether the timeout was cancelled.
+         *
+         * @return true if cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Length of a tick in nanoseconds.
+     */
+    private final long tickNanos;
+
+    /**
+     * The buckets. Only touched on the wheel thread.
+     */
+    private final List<List<Timeout>> wheel;
+
+    /**
+     * Timeouts scheduled since the last tick.
+     */
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * When the wheel started, from System.nanoTime.
+     */
+    private final long start;
+
+    /**
+     * Ticks done so far. Only written on the wheel thread.
+     */
+    private volatile long tick;
+
+    /**
+     * The wheel thread.
+     */
+    private final Thread thread;
+
+    /**
+     * Cleared once the wheel is stopped.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts a wheel.
+     *
+     * @param name name of the wheel thread
+     * @param tickMillis length of a tick, the precision of the timeouts
+     * @param buckets number of buckets; a turn of the wheel takes this many
+     * ticks
+     */
+    public Connect4TimerWheel(String name, long tickMillis, int buckets) {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        wheel = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        start = System.nanoTime();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task the task, run on the wheel thread
+     * @param delayMillis time until it runs
+     * @return the timeout, for cancelling it
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long elapsed = System.nanoTime() - start
+                + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, (elapsed + tickNanos - 1) / tickNanos);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel. Timeouts that have not fired never will.
+     */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    /**
+     * Wheel loop: sleeps until the next tick, files new timeouts, then fires
+     * the due ones in the current bucket.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            long next = start + (tick + 1) * tickNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            tick++;
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                if (timeout.cancelled) {
+                    continue;
+                }
+                long due = Math.max(timeout.deadlineTick, tick);
+                timeout.rounds = (due - tick) / wheel.size();
+                wheel.get((int) (due % wheel.size())).add(timeout);
+            }
+            Iterator<Timeout> bucket = wheel.get((int) (tick % wheel.size())).iterator();
+            while (bucket.hasNext()) {
+                timeout = bucket.next();
+                if (timeout.cancelled) {
+                    bucket.remove();
+                } else if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    bucket.remove();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ *
+ * Connect4TranspositionTable
+ *
+ * Shared cache of searched positions for the computer player.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size transposition table backed by a single long[]. Each slot takes
+ * two words: the packed entry (score, bound type, depth and best move) and the
+ * position key XORed with that entry.
+ *
+ * The table takes no locks. Threads read and write slots racily, and a reader
+ * only trusts a slot if the stored key XOR the stored entry gives back the key
+ * it is looking for, so a slot torn by two writers simply reads as a miss.
+ * This makes one table safe to share between every computer player on the
+ * server.
+ *
+ * Replacement is depth-preferred: a slot holding another position is only
+ * overwritten by a search at least as deep.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4TranspositionTable {
+
+    /**
+     * Bound types. An empty slot reads as bound 0.
+     */
+    public static final int BOUND_UPPER = 1;
+    public static final int BOUND_LOWER = 2;
+    public static final int BOUND_EXACT = 3;
+
+    /**
+     * Value returned by probe when the position is not in the table.
+     */
+    public static final long MISS = 0;
+
+    /**
+     * Bytes taken by one slot.
+     */
+    private static final int SLOT_BYTES = 16;
+
+    /**
+     * Packed entries and verification words, interleaved.
+     */
+    private final long[] table;
+
+    /**
+     * Number of slots minus one. The slot count is a power of two.
+     */
+    private final int slotMask;
+
+    /**
+     * Usage counters, striped so that threads do not contend on them.
+     */
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder collisions = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+
+    /**
+     * Creates a table using at most the given number of megabytes. The slot
+     * count is rounded down to a power of two.
+     *
+     * @param megabytes size of the table, at least 1
+     */
+    public Connect4TranspositionTable(int megabytes) {
+        if (megabytes < 1 || megabytes > 16384) {
+            throw new IllegalArgumentException("Table size must be between 1 "
+                    + "and 16384 MB");
+        }
+        long slots = Long.highestOneBit(megabytes * 1024L * 1024L / SLOT_BYTES);
+        slots = Math.min(slots, 1 << 29);
+        table = new long[(int) slots * 2];
+        slotMask = (int) slots - 1;
+    }
+
+    /**
+     * Looks up a position.
+     *
+     * @param key the position key
+     * @return the packed entry, or MISS if the position is not stored
+     */
+    public long probe(long key) {
+        probes.increment();
+        int i = index(key);
+        long entry = table[i];
+        long check = table[i + 1];
+        if (entry == MISS) {
+            return MISS;
+        }
+        if ((check ^ entry) != key) {
+            collisions.increment();
+            return MISS;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * Stores the result of a search, unless the slot holds a different
+     * position searched to a greater depth.
+     *
+     * @param key the position key
+     * @param score the score, which must fit in an int
+     * @param bound BOUND_EXACT, BOUND_LOWER or BOUND_UPPER
+     * @param depth the depth searched, 0 to 255
+     * @param move zero based best column, or -1 if none
+     */
+    public void store(long key, int score, int bound, int depth, int move) {
+        int i = index(key);
+        long old = table[i];
+        if (old != MISS && (table[i + 1] ^ old) != key && depth(old) > depth) {
+            return;
+        }
+        long entry = ((long) score << 32) | ((long) (depth & 0xFF) << 16)
+                | (bound << 8) | ((move + 1) & 0xFF);
+        table[i] = entry;
+        table[i + 1] = key ^ entry;
+        stores.increment();
+    }
+
+    /**
+     * Empties the table and resets its counters.
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        probes.reset();
+        hits.reset();
+        collisions.reset();
+        stores.reset();
+    }
+
+    /**
+     * Gets the score of a packed entry.
+     *
+     * @param entry the packed entry
+     * @return the stored score
+     */
+    public static int score(long entry) {
+        return (int) (entry >> 32);
+    }
+
+    /**
+     * Gets the depth of a packed entry.
+     *
+     * @param entry the packed entry
+     * @return the stored depth
+     */
+    public static int depth(long entry) {
+        return (int) (entry >>> 16) & 0xFF;
+    }
+
+    /**
+     * Gets the bound type of a packed entry.
+     *
+     * @param entry the packed entry
+     * @return BOUND_EXACT, BOUND_LOWER or BOUND_UPPER
+     */
+    public static int bound(long entry) {
+        return (int) (entry >>> 8) & 0xFF;
+    }
+
+    /**
+     * Gets the best move of a packed entry.
+     *
+     * @param entry the packed entry
+     * @return zero based column, or -1 if none was stored
+     */
+    public static int move(long entry) {
+        return (int) (entry & 0xFF) - 1;
+    }
+
+    /**
+     * Gets the number of slots in the table.
+     *
+     * @return the slot count
+     */
+    public int getSlots() {
+        return slotMask + 1;
+    }
+
+    /**
+     * Gets the number of lookups since the table was created or cleared.
+     *
+     * @return the probe count
+     */
+    public long getProbes() {
+        return probes.sum();
+    }
+
+    /**
+     * Gets the number of lookups that found their position.
+     *
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that found a different (or torn) position in
+     * their slot. A high rate means the table is too small for the load.
+     *
+     * @return the collision count
+     */
+    public long getCollisions() {
+        return collisions.sum();
+    }
+
+    /**
+     * Gets the number of entries written.
+     *
+     * @return the store count
+     */
+    public long getStores() {
+        return stores.sum();
+    }
+
+    /**
+     * Summary of the counters, for logging.
+     *
+     * @return one line with the table size and counters
+     */
+    @Override
+    public String toString() {
+        return "Transposition table: " + getSlots() + " slots, "
+                + getProbes() + " probes, " + getHits() + " hits, "
+                + getCollisions() + " collisions, " + getStores() + " stores";
+    }
+
+    /**
+     * Finds the first word of the slot of a key. Keys are mixed first since
+     * bitboard keys have most of their entropy in a few low bits.
+     *
+     * @param key the position key
+     * @return index into the table array
+     */
+    private int index(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return ((int) (h >>> 32) & slotMask) << 1;
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ *
+ * Connect4WideBoard
+ *
+ * Game state for boards too large for a single 64 bit word.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+/**
+ * Multi-word fallback for Connect4Board, for boards that do not fit in its
+ * single word or whose win checks would shift too far. Each player keeps one long per
+ * column, bit r of a column word being row r, so any board of up to 64 rows
+ * and any number of columns can be held. Vertical lines are tested with
+ * shifts within one word; the other directions step across column words with
+ * the row bit shifted by the slope of the line. Win checks only look at lines
+ * through the last token.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4WideBoard extends Connect4Constants implements Connect4State {
+
+    /**
+     * Board geometry.
+     */
+    private final int rows;
+    private final int columns;
+    private final int connect;
+
+    /**
+     * Column words of each player, P1 first.
+     */
+    private final long[][] tokens;
+
+    /**
+     * Number of tokens in each column.
+     */
+    private final int[] height;
+
+    /**
+     * Column of every move played, so the last one is known.
+     */
+    private final int[] history;
+
+    /**
+     * Number of tokens played so far.
+     */
+    private int moves;
+
+    /**
+     * Creates an empty board with P1 to move.
+     *
+     * @param rows number of rows, at most 64
+     * @param columns number of columns
+     * @param connect tokens in a row needed to win
+     * @throws IllegalArgumentException the geometry is not playable
+     */
+    public Connect4WideBoard(int rows, int columns, int connect) {
+        if (rows < 1 || rows > 64 || columns < 1) {
+            throw new IllegalArgumentException("Cannot play on a " + rows + "x"
+                    + columns + " board");
+        }
+        if (connect < 2 || connect > Math.max(rows, columns)) {
+            throw new IllegalArgumentException("Cannot connect " + connect
+                    + " on a " + rows + "x" + columns + " board");
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.connect = connect;
+        tokens = new long[2][columns];
+        height = new int[columns];
+        history = new int[rows * columns];
+    }
+
+    @Override
+    public Connect4WideBoard copy() {
+        Connect4WideBoard board = new Connect4WideBoard(rows, columns, connect);
+        for (int p = 0; p < 2; p++) {
+            System.arraycopy(tokens[p], 0, board.tokens[p], 0, columns);
+        }
+        System.arraycopy(height, 0, board.height, 0, columns);
+        System.arraycopy(history, 0, board.history, 0, moves);
+        board.moves = moves;
+        return board;
+    }
+
+    @Override
+    public boolean canPlay(int column) {
+        return column >= 0 && column < columns && height[column] < rows;
+    }
+
+    @Override
+    public void play(int column) {
+        tokens[moves & 1][column] |= 1L << height[column];
+        height[column] += 1;
+        history[moves] = column;
+        moves += 1;
+    }
+
+    @Override
+    public void undo(int column) {
+        moves -= 1;
+        height[column] -= 1;
+        tokens[moves & 1][column] &= ~(1L << height[column]);
+    }
+
+    @Override
+    public boolean isWinningMove(int column) {
+        long[] mine = tokens[moves & 1];
+        int row = height[column];
+        mine[column] |= 1L << row;
+        boolean win = lineThrough(mine, row, column);
+        mine[column] &= ~(1L << row);
+        return win;
+    }
+
+    @Override
+    public boolean isWin() {
+        if (moves == 0) {
+            return false;
+        }
+        int column = history[moves - 1];
+        return lineThrough(tokens[(moves - 1) & 1], height[column] - 1, column);
+    }
+
+    @Override
+    public boolean isFull() {
+        return moves == rows * columns;
+    }
+
+    @Override
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public int getColumns() {
+        return columns;
+    }
+
+    @Override
+    public int getConnect() {
+        return connect;
+    }
+
+    @Override
+    public int getHeight(int column) {
+        return height[column];
+    }
+
+    @Override
+    public int getMoves() {
+        return moves;
+    }
+
+    @Override
+    public char getTurn() {
+        if ((moves & 1) == 0) {
+            return P1;
+        }
+        return P2;
+    }
+
+    @Override
+    public char[][] toCharArray() {
+        char[][] gameBoard = new char[rows][columns];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                long b = 1L << r;
+                if ((tokens[0][c] & b) != 0) {
+                    gameBoard[r][c] = P1;
+                } else if ((tokens[1][c] & b) != 0) {
+                    gameBoard[r][c] = P2;
+                } else {
+                    gameBoard[r][c] = ' ';
+                }
+            }
+        }
+        return gameBoard;
+    }
+
+    /**
+     * Checks for a winning line through one token.
+     *
+     * @param words column words of the token's owner
+     * @param row row of the token
+     * @param column column of the token
+     * @return true if the token is part of a winning line
+     */
+    private boolean lineThrough(long[] words, int row, int column) {
+        if (row + 1 >= connect) {
+            long run = (words[column] >>> (row + 1 - connect));
+            long full = connect == 64 ? ~0L : (1L << connect) - 1;
+            if ((run & full) == full) {
+                return true;
+            }
+        }
+        for (int slope = -1; slope <= 1; slope++) {
+            int total = 1 + count(words, row, column, 1, slope)
+                    + count(words, row, column, -1, -slope);
+            if (total >= connect) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the tokens next to a cell along one direction.
+     *
+     * @param words column words of the player
+     * @param row row of the starting cell
+     * @param column column of the starting cell
+     * @param dc column step, 1 or -1
+     * @param dr row step per column, -1, 0 or 1
+     * @return number of consecutive tokens, not counting the starting cell
+     */
+    private int count(long[] words, int row, int column, int dc, int dr) {
+        int total = 0;
+        int c = column + dc;
+        int r = row + dr;
+        while (c >= 0 && c < columns && r >= 0 && r < rows
+                && (words[c] & (1L << r)) != 0) {
+            total++;
+            c += dc;
+            r += dr;
+        }
+        return total;
+    }
+}
@@ -14,6 +14,8 @@
 package ui;
 
 import core.Connect4Constants;
+import core.Connect4EventBus;
+import core.Connect4Protocol;
 
 import javafx.application.Application;
 import javafx.scene.Scene;
@@ -35,9 +37,6 @@ import javafx.scene.text.Text;
 import javafx.scene.text.Font;
 import javafx.scene.text.FontPosture;
 import javafx.scene.text.FontWeight;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import javafx.application.Platform;
 import java.util.List;
 
@@ -45,7 +44,9 @@ import java.util.List;
  * Radically overhauled version of the Connect4GUI class. Extends JavaFX
  * Application class for functionality. GUI now presents a colored grid for the
  * game board as opposed to a disproportionate String layout as it utilized
- * before.
+ * before. Runs in the client's process and takes its Connect4Protocol
+ * messages off a Connect4EventBus, coloring one cell per announced move
+ * instead of redrawing the whole board.
  *
  * @author James Kendall Bruce
  */
@@ -57,39 +58,36 @@ public class Connect4GUI extends Application {
     private int HEIGHT = 500;
 
     /**
-     * I/O streams
+     * Bus to the client, handed over before launch since JavaFX creates the
+     * Application itself.
      */
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private static volatile Connect4EventBus eventBus;
 
     /**
-     * True if the GUI application is currently running.
+     * The client's bus.
      */
-    private boolean running;
-    private int port;
+    private Connect4EventBus bus;
 
     /**
-     * The player whose turn it currently is.
+     * True if the GUI application is currently running.
      */
-    private char currentPlayer;
-
-    private Object inData = null;
+    private volatile boolean running;
 
     /**
-     * Place holder for various methods.
+     * The player whose turn it currently is.
      */
-    private char c = ' ';
+    private char currentPlayer;
 
     /**
-     * 2D Array to hold the entire game board.
+     * Size of the board.
      */
-    private char[][] gameBoard = null;
+    private int rows = Connect4Constants.ROWS;
+    private int cols = Connect4Constants.COLUMNS;
 
     /**
-     * Must access the constants through the Connect4Constants class since it
-     * extends Application instead. Starts in the state of waiting.
+     * True while it is this player's turn and no column has been picked yet.
      */
-    private String updateMessage = Connect4Constants.WAITING;
+    private volatile boolean myTurn;
 
     /**
      * Main JavaFX component to attach the other JavaFX components too.
@@ -136,30 +134,20 @@ public class Connect4GUI extends Application {
         public void handle(MouseEvent event) {
 
             /**
-             * Checks whose turn it is, if they have made a valid play and if
-             * they have won. Also checks for a tie game.
+             * Only one column may be picked per turn, and only on this
+             * player's own turn.
              */
-            if ((updateMessage.equals(Connect4Constants.P2_WINS)
-                    || updateMessage.equals(Connect4Constants.P2_TURN)
-                    || updateMessage.equals(Connect4Constants.P2_INVALID))
-                    && currentPlayer == Connect4Constants.P1) {
-                return;
-            } else if ((updateMessage.equals(Connect4Constants.P1_WINS)
-                    || updateMessage.equals(Connect4Constants.P1_TURN)
-                    || updateMessage.equals(Connect4Constants.P1_INVALID))
-                    && currentPlayer == Connect4Constants.P2) {
-                return;
-            } else if (updateMessage.equals(Connect4Constants.WAITING)
-                    || updateMessage.equals(Connect4Constants.TIE)) {
+            if (!myTurn) {
                 return;
             }
+            myTurn = false;
 
             /**
              * After all other if/else blocks, it sets the out object to be the
              * column selected.
              */
             try {
-                out.writeObject(column);
+                bus.submit(Connect4Protocol.play(column));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -177,11 +165,21 @@ public class Connect4GUI extends Application {
     @Override
     public void start(Stage primaryStage) throws Exception {
 
+        Application.Parameters params2 = getParameters();
+        List<String> rawArguments2 = params2.getRaw();
+        currentPlayer = rawArguments2.get(0).charAt(0);
+        System.out.println(currentPlayer);
+        if (rawArguments2.size() > 2) {
+            rows = Integer.parseInt(rawArguments2.get(1));
+            cols = Integer.parseInt(rawArguments2.get(2));
+        }
+        bus = eventBus;
+
         /**
-         * Sets the message displayed to the current updateMessage and defines
-         * the appearance of this
+         * Sets the message displayed to the waiting message and defines the
+         * appearance of this
          */
-        message.setText(updateMessage);
+        message.setText(Connect4Constants.WAITING);
         message.setVisible(true);
         message.setFont(Font.font("verdana", FontWeight.EXTRA_BOLD,
                 FontPosture.REGULAR, .05 * HEIGHT));
@@ -189,16 +187,16 @@ public class Connect4GUI extends Application {
         /**
          * Creates a button array to hold the entire grid.
          */
-        Button[][] circles = new Button[Connect4Constants.ROWS][Connect4Constants.COLUMNS];
-        GridPane[] columns = new GridPane[Connect4Constants.COLUMNS];
-        for (int i = 0; i < Connect4Constants.COLUMNS; i++) {
+        Button[][] circles = new Button[rows][cols];
+        GridPane[] columns = new GridPane[cols];
+        for (int i = 0; i < cols; i++) {
             columns[i] = new GridPane();
             gameGrid.add(columns[i], i, 0);
         }
-        for (int r = Connect4Constants.ROWS - 1; r >= 0; r--) {
-            for (int c = 0; c < Connect4Constants.COLUMNS; c++) {
+        for (int r = rows - 1; r >= 0; r--) {
+            for (int c = 0; c < cols; c++) {
                 Button circle = new Button();
-                int temp = (5 - r) % Connect4Constants.ROWS;
+                int temp = rows - 1 - r;
                 circles[temp][c] = circle;
                 circles[temp][c].setBorder(new Border(new BorderStroke(Color.BLACK,
                         BorderStrokeStyle.SOLID, CornerRadii.EMPTY, BorderWidths.DEFAULT)));
@@ -216,8 +214,8 @@ public class Connect4GUI extends Application {
         mainPane.add(gameGrid, 0, 1);
         Scene gameScene = new Scene(mainPane, 600, 600);
 
-        for (int r = 0; r < Connect4Constants.ROWS; r++) {
-            for (int c = 0; c < Connect4Constants.COLUMNS; c++) {
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
                 circles[r][c].prefWidthProperty().bind(gameGrid.widthProperty());
                 circles[r][c].prefHeightProperty().bind(gameGrid.heightProperty());
             }
@@ -231,37 +229,15 @@ public class Connect4GUI extends Application {
         primaryStage.sizeToScene();
         primaryStage.show();
 
-        Application.Parameters params2 = getParameters();
-        List<String> rawArguments2 = params2.getRaw();
-        currentPlayer = rawArguments2.get(1).charAt(0);
-        System.out.println(currentPlayer);
-        port = Integer.parseInt(rawArguments2.get(0));
-        String host = "localhost";
-
         /**
          * Initiates a clickHandler for each column and inputs the approrpiate
          * column int.
          */
-        ColumnClickHandler eventHandler0 = new ColumnClickHandler(1);
-        columns[0].addEventFilter(MouseEvent.MOUSE_CLICKED, eventHandler0);
-
-        ColumnClickHandler eventHandler1 = new ColumnClickHandler(2);
-        columns[1].addEventFilter(MouseEvent.MOUSE_CLICKED, eventHandler1);
-
-        ColumnClickHandler eventHandler2 = new ColumnClickHandler(3);
-        columns[2].addEventFilter(MouseEvent.MOUSE_CLICKED, eventHandler2);
-
-        ColumnClickHandler eventHandler3 = new ColumnClickHandler(4);
-        columns[3].addEventFilter(MouseEvent.MOUSE_CLICKED, eventHandler3);
-
-        ColumnClickHandler eventHandler4 = new ColumnClickHandler(5);
-        columns[4].addEventFilter(MouseEvent.MOUSE_CLICKED, eventHandler4);
-
-        ColumnClickHandler eventHandler5 = new ColumnClickHandler(6);
-        columns[5].addEventFilter(MouseEvent.MOUSE_CLICKED, eventHandler5);
-
-        ColumnClickHandler eventHandler6 = new ColumnClickHandler(7);
-        columns[6].addEventFilter(MouseEvent.MOUSE_CLICKED, eventHandler6);
+        ColumnClickHandler[] eventHandlers = new ColumnClickHandler[cols];
+        for (int i = 0; i < cols; i++) {
+            eventHandlers[i] = new ColumnClickHandler(i + 1);
+            columns[i].addEventFilter(MouseEvent.MOUSE_CLICKED, eventHandlers[i]);
+        }
 
         /**
          * Checks if either player has quit the game or otherwise exitted out of
@@ -270,11 +246,7 @@ public class Connect4GUI extends Application {
         primaryStage.setOnCloseRequest(event -> {
             try {
                 if (running == true) {
-                    if (currentPlayer == Connect4Constants.P1) {
-                        out.writeObject(Connect4Constants.P1_QUIT);
-                    } else {
-                        out.writeObject(Connect4Constants.P2_QUIT);
-                    }
+                    bus.submit(Connect4Protocol.quit(currentPlayer));
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -283,103 +255,16 @@ public class Connect4GUI extends Application {
         });
 
         /**
-         * Creates a runnable action for the Application to update the
-         * gameBoard. Unselected grid spots remain white. Player 1 is Red and
-         * Player 2 is Blue.
-         */
-        Runnable runUpdateBoard = () -> {
-            for (int r = 0; r < Connect4Constants.ROWS; r++) {
-                for (int col = 0; col < Connect4Constants.COLUMNS; col++) {
-                    c = gameBoard[r][col];
-                    if (c == ' ') {
-                        circles[r][col].setBackground(new Background(
-                                new BackgroundFill(Color.WHITE, CornerRadii.EMPTY,
-                                        Insets.EMPTY)));
-                    } else if (c == Connect4Constants.P1) {
-                        circles[r][col].setBackground(new Background(
-                                new BackgroundFill(Color.RED, CornerRadii.EMPTY,
-                                        Insets.EMPTY)));
-                    } else {
-                        circles[r][col].setBackground(new Background(
-                                new BackgroundFill(Color.BLUE, CornerRadii.EMPTY,
-                                        Insets.EMPTY)));
-                    }
-                }
-            }
-        };
-
-        /**
-         * Creates a runnable action for the Applicaiton to update the message
-         * GUI component. Checks the current player, the token dropped and the
-         * state of the updateMessage variable to decipher the appropriate
-         * message to output.
-         */
-        Runnable runUpdateMessage = () -> {
-            System.out.println(updateMessage);
-            if (currentPlayer == Connect4Constants.P1 && updateMessage.equals(
-                    Connect4Constants.P1_WINS)) {
-                message.setText(Connect4Constants.P1_WINS_GUI);
-                running = false;
-            } else if (currentPlayer == Connect4Constants.P1 && updateMessage.equals(
-                    Connect4Constants.P2_WINS)) {
-                message.setText(Connect4Constants.OPPONENT_P2_WINS_GUI);
-                running = false;
-            } else if (currentPlayer == Connect4Constants.P2 && updateMessage.equals(
-                    Connect4Constants.P1_WINS)) {
-                message.setText(Connect4Constants.OPPONENT_P1_WINS_GUI);
-                running = false;
-            } else if (currentPlayer == Connect4Constants.P2 && updateMessage.equals(
-                    Connect4Constants.P2_WINS)) {
-                message.setText(Connect4Constants.P2_WINS_GUI);
-                running = false;
-            } else if (updateMessage.equals(Connect4Constants.TIE)) {
-                message.setText(updateMessage);
-                running = false;
-            } else if ((updateMessage.equals(Connect4Constants.P2_TURN)
-                    || updateMessage.equals(Connect4Constants.P2_INVALID))
-                    && currentPlayer == Connect4Constants.P2) {
-                message.setText(Connect4Constants.P2_YOUR_TURN_GUI);
-            } else if ((updateMessage.equals(Connect4Constants.P1_TURN)
-                    || updateMessage.equals(Connect4Constants.P1_INVALID))
-                    && currentPlayer == Connect4Constants.P1) {
-                message.setText(Connect4Constants.P1_YOUR_TURN_GUI);
-            } else if ((updateMessage.equals(Connect4Constants.P2_TURN)
-                    || updateMessage.equals(Connect4Constants.P2_INVALID))
-                    && currentPlayer != Connect4Constants.P2) {
-                message.setText(Connect4Constants.WAITING_FOR_P2_GUI);
-            } else if ((updateMessage.equals(Connect4Constants.P1_TURN)
-                    || updateMessage.equals(Connect4Constants.P1_INVALID))
-                    && currentPlayer != Connect4Constants.P1) {
-                message.setText(Connect4Constants.WAITING_FOR_P1_GUI);
-            } else if (updateMessage.equals(Connect4Constants.P1_QUIT)) {
-                running = false;
-                message.setText(Connect4Constants.P1_QUIT);
-            } else if (updateMessage.equals(Connect4Constants.P2_QUIT)) {
-                running = false;
-                message.setText(Connect4Constants.P2_QUIT);
-            }
-        };
-
-        /**
-         * Thread instance to establish I/O connections. Monitors the state of
-         * the running variable to check for activity and monitors all button
-         * clicks and ouput messages to client and GUI application.
+         * Thread instance to take the client's messages off the bus as they
+         * arrive. Monitors the state of the running variable to check for
+         * activity. A daemon, so a closed window never waits on it.
          */
-        new Thread(() -> {
-            Socket gameSocket;
-            try {
-                gameSocket = new Socket(host, port);
-                out = new ObjectOutputStream(gameSocket.getOutputStream());
-                in = new ObjectInputStream(gameSocket.getInputStream());
-            } catch (Exception e) {
-                e.printStackTrace();
-                return;
-            }
-
+        Thread reader = new Thread(() -> {
             running = true;
             while (running) {
+                Connect4Protocol.Message msg;
                 try {
-                    inData = in.readObject();
+                    msg = bus.nextMessage();
                 } catch (Exception e) {
                     if (running == false) {
                         break;
@@ -387,46 +272,117 @@ public class Connect4GUI extends Application {
                     e.printStackTrace();
                     break;
                 }
-                if (inData instanceof char[][]) {
-                    gameBoard = (char[][]) inData;
-                    Platform.runLater(runUpdateBoard);
-                } else if (inData instanceof String) {
-                    updateMessage = (String) inData;
-                    Platform.runLater(runUpdateMessage);
+
+                /**
+                 * Colors the cell of each move: player 1 is Red and player 2
+                 * is Blue. A snapshot recolors every cell. Every other frame
+                 * updates the message.
+                 */
+                if (msg.getOpcode() == Connect4Protocol.OP_MOVE) {
+                    Button circle = circles[msg.getRow()][msg.getColumn()];
+                    Background background = cellBackground(msg.getToken());
+                    Platform.runLater(() -> circle.setBackground(background));
+                } else if (msg.getOpcode() == Connect4Protocol.OP_SNAPSHOT) {
+                    char[][] gameBoard = msg.toBoard();
+                    Platform.runLater(() -> {
+                        for (int r = 0; r < gameBoard.length; r++) {
+                            for (int c = 0; c < gameBoard[r].length; c++) {
+                                circles[r][c].setBackground(
+                                        cellBackground(gameBoard[r][c]));
+                            }
+                        }
+                    });
                 } else {
-                    System.out.println("Not a String");
-                    break;
-                }
-                try {
-                    Thread.sleep(100);
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    String text = updateMessage(msg);
+                    if (text != null) {
+                        Platform.runLater(() -> message.setText(text));
+                    }
                 }
             }
-            try {
-                columns[0].removeEventFilter(MouseEvent.MOUSE_CLICKED,
-                        eventHandler0);
-                columns[1].removeEventFilter(MouseEvent.MOUSE_CLICKED,
-                        eventHandler1);
-                columns[2].removeEventFilter(MouseEvent.MOUSE_CLICKED,
-                        eventHandler2);
-                columns[3].removeEventFilter(MouseEvent.MOUSE_CLICKED,
-                        eventHandler3);
-                columns[4].removeEventFilter(MouseEvent.MOUSE_CLICKED,
-                        eventHandler4);
-                columns[5].removeEventFilter(MouseEvent.MOUSE_CLICKED,
-                        eventHandler5);
-                columns[6].removeEventFilter(MouseEvent.MOUSE_CLICKED,
-                        eventHandler6);
-                out.close();
-                in.close();
-                gameSocket.close();
+            Platform.runLater(() -> {
+                for (int i = 0; i < cols; i++) {
+                    columns[i].removeEventFilter(MouseEvent.MOUSE_CLICKED,
+                            eventHandlers[i]);
+                }
+            });
+        });
+        reader.setDaemon(true);
+        reader.start();
 
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }).start();
+    }
 
+    /**
+     * Gets the background of a cell: Red for player 1, Blue for player 2 and
+     * White for an empty cell.
+     *
+     * @param token the token in the cell, or a space
+     * @return the background
+     */
+    private static Background cellBackground(char token) {
+        Color color = Color.WHITE;
+        if (token == Connect4Constants.P1) {
+            color = Color.RED;
+        } else if (token == Connect4Constants.P2) {
+            color = Color.BLUE;
+        }
+        return new Background(new BackgroundFill(color, CornerRadii.EMPTY,
+                Insets.EMPTY));
+    }
+
+    /**
+     * Works out the message to show for a status frame, checking the current
+     * player and the token in the frame. Also tracks whether it is this
+     * player's turn and stops the GUI once the game is over.
+     *
+     * @param msg a TURN, INVALID, WIN, TIE or QUIT frame
+     * @return the text to show, or null to leave the message as it is
+     */
+    private String updateMessage(Connect4Protocol.Message msg) {
+        char token = msg.getToken();
+        switch (msg.getOpcode()) {
+            case Connect4Protocol.OP_TURN:
+            case Connect4Protocol.OP_INVALID:
+                myTurn = token == currentPlayer;
+                if (token == currentPlayer && token == Connect4Constants.P1) {
+                    return Connect4Constants.P1_YOUR_TURN_GUI;
+                } else if (token == currentPlayer) {
+                    return Connect4Constants.P2_YOUR_TURN_GUI;
+                } else if (token == Connect4Constants.P1) {
+                    return Connect4Constants.WAITING_FOR_P1_GUI;
+                }
+                return Connect4Constants.WAITING_FOR_P2_GUI;
+            case Connect4Protocol.OP_WIN:
+                running = false;
+                if (token == currentPlayer && token == Connect4Constants.P1) {
+                    return Connect4Constants.P1_WINS_GUI;
+                } else if (token == currentPlayer) {
+                    return Connect4Constants.P2_WINS_GUI;
+                } else if (token == Connect4Constants.P1) {
+                    return Connect4Constants.OPPONENT_P1_WINS_GUI;
+                }
+                return Connect4Constants.OPPONENT_P2_WINS_GUI;
+            case Connect4Protocol.OP_TIE:
+                running = false;
+                return Connect4Constants.TIE_GAME_GUI;
+            case Connect4Protocol.OP_QUIT:
+                running = false;
+                if (token == Connect4Constants.P1) {
+                    return Connect4Constants.P1_QUIT;
+                }
+                return Connect4Constants.P2_QUIT;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Hands over the bus to the client. Must be called before the GUI is
+     * launched.
+     *
+     * @param bus the client's bus
+     */
+    public static void setEventBus(Connect4EventBus bus) {
+        eventBus = bus;
     }
 
     /**
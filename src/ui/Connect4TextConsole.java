@@ -165,16 +165,16 @@ public class Connect4TextConsole extends Connect4Constants {
 
     /**
      * A method to convert the gameBoard 2D array into a String for the text
-     * console.
+     * console. Works for any board size.
      *
      * @param gameBoard the 2d array representing the columsn and rows
      * @return the completed String with column borders
      */
     public String displayBoard(char[][] gameBoard) {
         StringBuilder res = new StringBuilder();
-        for (int i = 5; i >= 0; i--) {
+        for (int i = gameBoard.length - 1; i >= 0; i--) {
             res.append('|');
-            for (int j = 0; j <= 6; j++) {
+            for (int j = 0; j < gameBoard[i].length; j++) {
                 res.append(gameBoard[i][j]);
                 res.append('|');
             }
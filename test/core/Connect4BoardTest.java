@@ -0,0 +1,120 @@
+/**
+ *
+ * Connect4BoardTest
+ *
+ * Tests of the bitboard game states.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests Connect4Board against Connect4WideBoard, which checks lines one cell
+ * at a time, over random games on several geometries, and the geometries the
+ * single word board must refuse.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4BoardTest extends Connect4Constants {
+
+    /**
+     * Seed of the random games.
+     */
+    private static final long SEED = 20240601L;
+
+    /**
+     * Random games played on each geometry.
+     */
+    private static final int GAMES = 200;
+
+    @Test
+    public void tallNarrowBoardDoesNotWrapShifts() {
+        assertFalse(Connect4Board.fits(31, 2, 4));
+        assertThrows(IllegalArgumentException.class, () -> new Connect4Board(31, 2, 4));
+
+        /**
+         * Two tokens in a column are not four in a row.
+         */
+        Connect4State state = Connect4State.create(31, 2, 4);
+        assertTrue(state instanceof Connect4WideBoard);
+        state.play(0);
+        state.play(0);
+        assertFalse(state.isWinningMove(1));
+        state.play(1);
+        assertFalse(state.isWin());
+    }
+
+    @Test
+    public void fitsBoundsTheLongestShift() {
+        assertTrue(Connect4Board.fits(ROWS, COLUMNS, 4));
+        assertTrue(Connect4Board.fits(7, 8, 5));
+        assertTrue(Connect4Board.fits(19, 3, 3));
+        assertFalse(Connect4Board.fits(20, 3, 4));
+        assertFalse(Connect4Board.fits(8, 8, 4));
+    }
+
+    @Test
+    public void createPicksTheBoardThatFits() {
+        assertTrue(Connect4State.create(ROWS, COLUMNS, 4) instanceof Connect4Board);
+        assertTrue(Connect4State.create(15, 4, 5) instanceof Connect4WideBoard);
+        assertTrue(Connect4State.create(31, 2, 2) instanceof Connect4Board);
+    }
+
+    @Test
+    public void bitboardAgreesWithWideBoard() {
+        int[][] geometries = {
+            {ROWS, COLUMNS, 4}, {5, 5, 3}, {7, 8, 5}, {4, 12, 4}, {12, 4, 4},
+            {19, 3, 3}, {31, 2, 2}, {3, 16, 3}, {6, 9, 6}
+        };
+        Random random = new Random(SEED);
+        for (int[] g : geometries) {
+            for (int game = 0; game < GAMES; game++) {
+                playOut(random, g[0], g[1], g[2]);
+            }
+        }
+    }
+
+    /**
+     * Plays one random game on both boards, checking they agree on every
+     * move and on the result.
+     *
+     * @param random picks the moves
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param connect tokens in a row needed to win
+     */
+    private static void playOut(Random random, int rows, int columns, int connect) {
+        Connect4Board board = new Connect4Board(rows, columns, connect);
+        Connect4WideBoard wide = new Connect4WideBoard(rows, columns, connect);
+        String geometry = rows + "x" + columns + " connect " + connect;
+        while (!wide.isWin() && !wide.isFull()) {
+            for (int column = 0; column < columns; column++) {
+                assertEquals(wide.canPlay(column), board.canPlay(column), geometry);
+                if (wide.canPlay(column)) {
+                    assertEquals(wide.isWinningMove(column),
+                            board.isWinningMove(column), geometry);
+                }
+            }
+            int column;
+            do {
+                column = random.nextInt(columns);
+            } while (!wide.canPlay(column));
+            wide.play(column);
+            board.play(column);
+            assertEquals(wide.isWin(), board.isWin(), geometry);
+        }
+        assertEquals(wide.isFull(), board.isFull(), geometry);
+    }
+}
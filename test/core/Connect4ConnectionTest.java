@@ -0,0 +1,130 @@
+/**
+ *
+ * Connect4ConnectionTest
+ *
+ * Tests of the NIO server's client connections.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a Connect4Connection sends its frames in the order the game
+ * sent them, whichever threads they come from. Two players on different
+ * event loops play each other while asking for a snapshot after every move;
+ * a MOVE must always follow the move before it or the snapshot before it,
+ * never one the client has already seen.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4ConnectionTest extends Connect4Constants {
+
+    /**
+     * Games played.
+     */
+    private static final int GAMES = 30;
+
+    /**
+     * Longest wait for a frame.
+     */
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    @Test
+    public void framesKeepTheGameOrder() throws Exception {
+        Connect4NioServer server = new Connect4NioServer(0, 2);
+        ExecutorService players = Executors.newFixedThreadPool(2);
+        try {
+            int port = server.getChannel().socket().getLocalPort();
+            for (int game = 0; game < GAMES; game++) {
+                Future<String> first = players.submit(() -> play(port));
+                Future<String> second = players.submit(() -> play(port));
+                assertNull(first.get());
+                assertNull(second.get());
+            }
+        } finally {
+            players.shutdownNow();
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Plays one game, asking for a snapshot after every move received. The
+     * players fill the first columns one after the other, which cannot make
+     * a line of four, then the player on turn quits, so no SYNC is ever sent
+     * to a closed connection.
+     *
+     * @param port the server's port
+     * @return what was out of order, or null if nothing was
+     * @throws IOException the server cannot be reached
+     */
+    private static String play(int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(Connect4Protocol.clientHello());
+            out.write(Connect4Protocol.mode(PLAYER));
+            out.flush();
+
+            char token = 0;
+            int seq = -1;
+            while (true) {
+                Connect4Protocol.Message message = Connect4Protocol.read(in);
+                switch (message.getOpcode()) {
+                    case Connect4Protocol.OP_JOIN:
+                        token = message.getToken();
+                        break;
+                    case Connect4Protocol.OP_SNAPSHOT:
+                        if (message.getSeq() < seq) {
+                            return "snapshot " + message.getSeq() + " after " + seq;
+                        }
+                        seq = message.getSeq();
+                        break;
+                    case Connect4Protocol.OP_MOVE:
+                        if (message.getSeq() != seq + 1) {
+                            return "move " + message.getSeq() + " after " + seq;
+                        }
+                        seq = message.getSeq();
+                        out.write(Connect4Protocol.sync());
+                        out.flush();
+                        break;
+                    case Connect4Protocol.OP_TURN:
+                        if (message.getToken() != token) {
+                            break;
+                        }
+                        if (seq >= 3 * ROWS) {
+                            out.write(Connect4Protocol.quit(token));
+                            out.flush();
+                            return null;
+                        }
+                        out.write(Connect4Protocol.play(seq / ROWS + 1));
+                        out.flush();
+                        break;
+                    case Connect4Protocol.OP_QUIT:
+                        return null;
+                    case Connect4Protocol.OP_INVALID:
+                    case Connect4Protocol.OP_WIN:
+                    case Connect4Protocol.OP_TIE:
+                        return "unexpected frame " + message.getOpcode();
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ *
+ * Connect4GameDirectoryTest
+ *
+ * Tests of the directory several server nodes share.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests Connect4GameDirectory: finding the node that owns a game, picking a
+ * node for new players, expiring nodes on the local clock, and sending a
+ * resuming player from one Connect4NioServer node to the one running their
+ * game. The nodes share a MemoryStore. Heartbeats are run by hand, except
+ * between the servers, which run their own.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4GameDirectoryTest extends Connect4Constants {
+
+    /**
+     * How long to wait for the servers' heartbeats.
+     */
+    private static final long WAIT_MILLIS = 5 * Connect4GameDirectory.HEARTBEAT_MILLIS;
+
+    /**
+     * Where the nodes keep their records.
+     */
+    private final Connect4GameDirectory.MemoryStore store =
+            new Connect4GameDirectory.MemoryStore();
+
+    /**
+     * The nodes' clock, moved on by hand, in nanoseconds.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Gives ids back to the whole process after a test partitions them.
+     */
+    @AfterEach
+    public void tearDown() {
+        Connect4.partitionIds(0, 1);
+    }
+
+    /**
+     * Creates a node whose heartbeats are run by hand.
+     *
+     * @param id number of the node
+     * @param load its open connections
+     * @param games its game ids
+     * @return the node's directory
+     */
+    private Connect4GameDirectory node(int id, AtomicInteger load, int... games) {
+        Connect4GameDirectory directory = new Connect4GameDirectory(store, id,
+                "localhost", 8000 + id, clock::get);
+        directory.track(load::get, () -> games);
+        return directory;
+    }
+
+    @Test
+    public void locateFindsTheNodeRunningAGame() {
+        Connect4GameDirectory first = node(0, new AtomicInteger(), 10, 12);
+        Connect4GameDirectory second = node(1, new AtomicInteger(), 11);
+        first.heartbeat();
+        second.heartbeat();
+        first.heartbeat();
+
+        assertEquals(8001, first.locate(11).getPort());
+        assertEquals(8000, second.locate(10).getPort());
+        assertEquals(8000, second.locate(12).getPort());
+        assertNull(first.locate(10), "a node's own games stay with it");
+        assertNull(first.locate(13), "no node runs the game");
+    }
+
+    @Test
+    public void pickNodeRedirectsPastTheMargin() {
+        AtomicInteger load = new AtomicInteger(100);
+        AtomicInteger otherLoad = new AtomicInteger(
+                100 - Connect4GameDirectory.REDIRECT_MARGIN);
+        Connect4GameDirectory busy = node(0, load);
+        Connect4GameDirectory other = node(1, otherLoad);
+        other.heartbeat();
+        busy.heartbeat();
+        assertNull(busy.pickNode(), "within the margin players stay");
+
+        otherLoad.set(100 - Connect4GameDirectory.REDIRECT_MARGIN - 2);
+        other.heartbeat();
+        busy.heartbeat();
+        assertEquals(1, busy.pickNode().getId());
+        assertEquals(1, busy.pickNode().getId());
+        assertNull(busy.pickNode(), "players sent count towards the target's load");
+
+        busy.heartbeat();
+        assertEquals(1, busy.pickNode().getId(), "the count starts over each heartbeat");
+    }
+
+    @Test
+    public void pickNodePicksTheLeastLoaded() {
+        Connect4GameDirectory busy = node(0, new AtomicInteger(200));
+        node(1, new AtomicInteger(40)).heartbeat();
+        node(2, new AtomicInteger(10)).heartbeat();
+        node(3, new AtomicInteger(30)).heartbeat();
+        busy.heartbeat();
+
+        assertEquals(3, busy.getNodes().size());
+        assertEquals(2, busy.pickNode().getId());
+    }
+
+    @Test
+    public void nodesExpireOnTheLocalClock() {
+        Connect4GameDirectory local = node(0, new AtomicInteger(), 10);
+
+        /**
+         * The other node's clock is a day behind; its records still count as
+         * long as they keep changing.
+         */
+        long remote = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+        store.publish(new Connect4GameDirectory.Node(1, "localhost", 8001, 0, remote,
+                new int[] {11}));
+        local.heartbeat();
+        assertNotNull(local.locate(11));
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(
+                Connect4GameDirectory.EXPIRY_MILLIS));
+        local.heartbeat();
+        assertNotNull(local.locate(11), "not expired yet");
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        local.heartbeat();
+        assertNull(local.locate(11), "expired once unchanged for too long");
+        assertEquals(0, local.getNodes().size());
+
+        store.publish(new Connect4GameDirectory.Node(1, "localhost", 8001, 0,
+                remote + 1, new int[] {11}));
+        local.heartbeat();
+        assertNotNull(local.locate(11), "back once it publishes again");
+    }
+
+    @Test
+    public void partitionedIdsDoNotOverlap() {
+        Connect4.partitionIds(1, Connect4GameDirectory.MAX_NODES);
+        Connect4 first = new Connect4(null, null, 2, ROWS, COLUMNS, 4);
+        Connect4 second = new Connect4(null, null, 2, ROWS, COLUMNS, 4);
+        Connect4.partitionIds(2, Connect4GameDirectory.MAX_NODES);
+        Connect4 third = new Connect4(null, null, 2, ROWS, COLUMNS, 4);
+
+        assertEquals(1, first.getId() % Connect4GameDirectory.MAX_NODES);
+        assertEquals(1, second.getId() % Connect4GameDirectory.MAX_NODES);
+        assertNotEquals(first.getId(), second.getId());
+        assertEquals(2, third.getId() % Connect4GameDirectory.MAX_NODES);
+    }
+
+    @Test
+    public void resumeIsSentToTheOwningNode() throws Exception {
+        Connect4NioServer owner = new Connect4NioServer(0, 1);
+        Connect4NioServer other = new Connect4NioServer(0, 1);
+        try {
+            int ownerPort = owner.getChannel().socket().getLocalPort();
+            int otherPort = other.getChannel().socket().getLocalPort();
+            owner.setDirectory(new Connect4GameDirectory(store, 0, "localhost",
+                    ownerPort));
+            Connect4GameDirectory directory = new Connect4GameDirectory(store, 1,
+                    "localhost", otherPort);
+            other.setDirectory(directory);
+
+            /**
+             * Starts a game against the computer on the owner, then drops
+             * the connection.
+             */
+            Connect4Protocol.Message join;
+            Connect4Protocol.Message session;
+            try (Socket socket = connect(ownerPort)) {
+                send(socket, Connect4Protocol.redirectedMode(COMPUTER));
+                DataInputStream in = input(socket);
+                join = Connect4Protocol.read(in);
+                session = Connect4Protocol.read(in);
+            }
+            assertEquals(Connect4Protocol.OP_JOIN, join.getOpcode());
+            assertEquals(Connect4Protocol.OP_SESSION, session.getOpcode());
+            byte[] resume = Connect4Protocol.resume(join.getToken(),
+                    session.getGameId(), session.getKey());
+
+            long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+            while (directory.locate(session.getGameId()) == null
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Connect4Protocol.Message redirect;
+            try (Socket socket = connect(otherPort)) {
+                send(socket, resume);
+                redirect = Connect4Protocol.read(input(socket));
+            }
+            assertEquals(Connect4Protocol.OP_REDIRECT, redirect.getOpcode());
+            assertEquals(ownerPort, redirect.getPort());
+
+            Connect4Protocol.Message rejoin;
+            try (Socket socket = connect(redirect.getPort())) {
+                send(socket, resume);
+                rejoin = Connect4Protocol.read(input(socket));
+            }
+            assertEquals(Connect4Protocol.OP_JOIN, rejoin.getOpcode());
+            assertEquals(join.getToken(), rejoin.getToken());
+        } finally {
+            owner.shutdown();
+            other.shutdown();
+        }
+    }
+
+    /**
+     * Connects to a node and opens a binary session.
+     *
+     * @param port the node's port
+     * @return the connection, past the HELLO
+     * @throws IOException the node cannot be reached
+     */
+    private static Socket connect(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout((int) WAIT_MILLIS);
+        send(socket, Connect4Protocol.clientHello());
+        assertEquals(Connect4Protocol.OP_HELLO,
+                Connect4Protocol.read(input(socket)).getOpcode());
+        return socket;
+    }
+
+    /**
+     * Sends bytes to a node.
+     *
+     * @param socket the connection
+     * @param bytes what to send
+     * @throws IOException the connection failed
+     */
+    private static void send(Socket socket, byte[] bytes) throws IOException {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Reads from a node. Unbuffered, so nothing is read past one frame and
+     * the stream can be wrapped again for the next.
+     *
+     * @param socket the connection
+     * @return the stream
+     * @throws IOException the connection failed
+     */
+    private static DataInputStream input(Socket socket) throws IOException {
+        return new DataInputStream(socket.getInputStream());
+    }
+}
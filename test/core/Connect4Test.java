@@ -0,0 +1,82 @@
+/**
+ *
+ * Connect4Test
+ *
+ * Tests of a game run by launchGame.
+ *
+ * @author James Kendall Bruce
+ *
+ * @version 1.0
+ *
+ */
+package core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests Connect4.launchGame with players on in-memory streams, the way the
+ * blocking server runs a game.
+ *
+ * @author James Kendall Bruce
+ */
+public class Connect4Test extends Connect4Constants {
+
+    @Test
+    public void playerWhoDisconnectsOnTheirTurnForfeits() throws IOException {
+        LongAdder active = Connect4Metrics.counter("games_active");
+        long before = active.sum();
+
+        /**
+         * P1's stream ends before their first move; P2's is never read.
+         */
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        new ObjectOutputStream(header).close();
+        Connect4StreamPeer p1 = new Connect4StreamPeer(
+                new ObjectOutputStream(new ByteArrayOutputStream()),
+                new ObjectInputStream(new ByteArrayInputStream(header.toByteArray())));
+        ByteArrayOutputStream sentP2 = new ByteArrayOutputStream();
+        Connect4StreamPeer p2 = new Connect4StreamPeer(new ObjectOutputStream(sentP2),
+                new ObjectInputStream(new ByteArrayInputStream(header.toByteArray())));
+
+        Connect4 game = new Connect4(p1, p2, 2);
+        game.launchGame();
+
+        assertEquals(true, game.isOver());
+        assertEquals(before, active.sum(), "the game is no longer active");
+        assertEquals(P1_QUIT, lastStatus(sentP2.toByteArray()));
+    }
+
+    /**
+     * Reads back the last status sent to a player.
+     *
+     * @param sent everything written to the player
+     * @return the last String written
+     * @throws IOException the objects cannot be read
+     */
+    private static String lastStatus(byte[] sent) throws IOException {
+        String status = null;
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(sent))) {
+            while (true) {
+                Object obj = in.readObject();
+                if (obj instanceof String) {
+                    status = (String) obj;
+                }
+            }
+        } catch (EOFException e) {
+            return status;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}